@@ -1,10 +1,10 @@
+import huck.simplehttp.AsyncFileBody;
 import huck.simplehttp.HttpException;
 import huck.simplehttp.HttpProcessor;
 import huck.simplehttp.HttpRequest;
 import huck.simplehttp.HttpResponse;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.Map;
@@ -55,7 +55,8 @@ public class ExampleHttpProcessor implements HttpProcessor {
 		case "gif": contentType = "image/gif"; break;
 		default: contentType = "application/octet-stream"; break;
 		}
-		HttpResponse res = new HttpResponse(HttpResponse.Status.OK, ()->new FileInputStream(file).getChannel());
+		// read ahead off the server thread, four 64k buffers deep
+		HttpResponse res = new HttpResponse(HttpResponse.Status.OK, ()->AsyncFileBody.open(file.toPath(), 4, 64 * 1024));
 		res.setHeader("ContentType", contentType);
 		return res;
 	}
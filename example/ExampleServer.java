@@ -2,15 +2,41 @@
 
 import huck.simplehttp.HttpServer;
 
+import java.io.FileInputStream;
 import java.net.InetSocketAddress;
+import java.security.KeyStore;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
 public class ExampleServer {
 	public static void main(String... args) throws Exception {
 		AtomicBoolean stopSignal = new AtomicBoolean(false);
 		int port = 80;
 		ExampleHttpProcessor processor = new ExampleHttpProcessor();
-		HttpServer server = new HttpServer(processor, 4, new InetSocketAddress(port));
-		server.runServer(stopSignal);
+		if( 2 <= args.length ) {
+			// https with a pkcs12 keystore. a self-signed one for local tests :
+			// keytool -genkeypair -alias server -keyalg RSA -dname CN=localhost -storetype PKCS12 -keystore server.p12 -storepass changeit
+			port = 443;
+			HttpServer server = new HttpServer(processor, 4, new InetSocketAddress(port));
+			server.setTls(createSslContext(args[0], args[1].toCharArray()));
+			server.runServer(stopSignal);
+		} else {
+			HttpServer server = new HttpServer(processor, 4, new InetSocketAddress(port));
+			server.runServer(stopSignal);
+		}
+	}
+	
+	private static SSLContext createSslContext(String keystorePath, char[] password) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		try( FileInputStream in = new FileInputStream(keystorePath) ) {
+			keyStore.load(in, password);
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, password);
+		SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(kmf.getKeyManagers(), null, null);
+		return sslContext;
 	}
 }
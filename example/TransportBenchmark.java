@@ -0,0 +1,112 @@
+import huck.simplehttp.HttpException;
+import huck.simplehttp.HttpProcessor;
+import huck.simplehttp.HttpRequest;
+import huck.simplehttp.HttpResponse;
+import huck.simplehttp.HttpServer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// loopback tcp against a unix domain socket, both served by one server. the server closes the connection after each
+// response, so every request pays for its connect too, as a sidecar without keep-alive would.
+//   java TransportBenchmark [requests] [clients] [port]
+public class TransportBenchmark {
+	private static final byte[] REQUEST = "GET /bench HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	public static void main(String... args) throws Exception {
+		int requests = 0 < args.length ? Integer.parseInt(args[0]) : 20000;
+		int clients = 1 < args.length ? Integer.parseInt(args[1]) : 4;
+		int port = 2 < args.length ? Integer.parseInt(args[2]) : 8080;
+
+		Path sockPath = Files.createTempDirectory("simplehttp").resolve("http.sock");
+		InetSocketAddress tcpAddr = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		UnixDomainSocketAddress udsAddr = UnixDomainSocketAddress.of(sockPath);
+
+		final byte[] body = "ok\n".getBytes(StandardCharsets.UTF_8);
+		HttpServer server = new HttpServer(new HttpProcessor() {
+			@Override
+			public HttpResponse process(HttpRequest req) throws HttpException, Exception {
+				return new HttpResponse(HttpResponse.Status.OK, body);
+			}
+			@Override
+			public WritableByteChannel getBodyProcessor(HttpRequest req) {
+				return null;
+			}
+		}, clients * 2, tcpAddr);
+		server.addListenAddress(udsAddr);
+		AtomicBoolean stopSignal = new AtomicBoolean(false);
+		Thread serverThread = new Thread(() -> {
+			try {
+				server.runServer(stopSignal);
+			} catch( Exception ex ) {
+				ex.printStackTrace();
+			}
+		}, "server");
+		serverThread.start();
+		Thread.sleep(500);
+
+		// warm up both paths before measuring
+		run("tcp", tcpAddr, requests / 4, clients, false);
+		run("uds", udsAddr, requests / 4, clients, false);
+		for( int round = 0; round < 3; round++ ) {
+			run("tcp", tcpAddr, requests, clients, true);
+			run("uds", udsAddr, requests, clients, true);
+		}
+
+		stopSignal.set(true);
+		serverThread.join();
+		Files.deleteIfExists(sockPath.getParent());
+	}
+
+	private static void run(String name, final SocketAddress addr, final int requests, int clients, boolean print) throws Exception {
+		final long[] latencies = new long[requests];
+		final AtomicInteger next = new AtomicInteger(0);
+		Thread[] threads = new Thread[clients];
+		long start = System.nanoTime();
+		for( int i = 0; i < clients; i++ ) {
+			threads[i] = new Thread(() -> {
+				ByteBuffer readBuf = ByteBuffer.allocate(1024);
+				int idx;
+				while( requests > (idx = next.getAndIncrement()) ) {
+					long begin = System.nanoTime();
+					try( SocketChannel ch = SocketChannel.open(addr) ) {
+						ByteBuffer req = ByteBuffer.wrap(REQUEST);
+						while( req.hasRemaining() ) {
+							ch.write(req);
+						}
+						readBuf.clear();
+						while( 0 <= ch.read(readBuf) ) {
+							readBuf.clear();
+						}
+					} catch( Exception ex ) {
+						throw new RuntimeException(ex);
+					}
+					latencies[idx] = System.nanoTime() - begin;
+				}
+			});
+			threads[i].start();
+		}
+		for( Thread th : threads ) {
+			th.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		if( !print ) {
+			return;
+		}
+		Arrays.sort(latencies);
+		System.out.printf("%s : %d requests, %d clients, %.0f req/s, p50 %d us, p99 %d us, max %d us%n",
+			name, requests, clients, requests * 1e9 / elapsed,
+			latencies[requests / 2] / 1000, latencies[requests * 99 / 100] / 1000, latencies[requests - 1] / 1000);
+	}
+}
@@ -0,0 +1,196 @@
+package huck.simplehttp;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+// bytes allocated per request on the hot path, against a budget for each shape. exits with 1 when any shape is over
+// its budget, so a build step can run it after compiling :
+//   java -cp bin:libs/log4j-1.2.12.jar huck.simplehttp.AllocationBudget [iterations]
+// the parser and writer shapes run on this thread; the round trips count what the server loop thread allocates while a
+// client sends requests over loopback. in this package to reach the parser directly.
+// after a change that lowers allocation, lower the budget with it
+public class AllocationBudget {
+	private static final byte[] GET_REQUEST = ("GET /api/items?id=42&sort=asc HTTP/1.1\r\n"
+		+ "Host: localhost:8080\r\n"
+		+ "User-Agent: curl/8.4.0\r\n"
+		+ "Accept: */*\r\n"
+		+ "Accept-Encoding: gzip, deflate\r\n"
+		+ "Cookie: session=0123456789abcdef\r\n"
+		+ "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] POST_BODY = new byte[512];
+	private static final byte[] POST_REQUEST = ("POST /api/items HTTP/1.1\r\n"
+		+ "Host: localhost:8080\r\n"
+		+ "User-Agent: curl/8.4.0\r\n"
+		+ "Accept: */*\r\n"
+		+ "Content-Type: application/json\r\n"
+		+ "Content-Length: " + POST_BODY.length + "\r\n"
+		+ "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] RESPONSE_BODY = "{\"id\":42,\"name\":\"item\"}\n".getBytes(StandardCharsets.UTF_8);
+
+	private static interface Shape {
+		public void run() throws Exception;
+	}
+
+	// swallows request bodies and responses
+	private static final WritableByteChannel SINK = new WritableByteChannel() {
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		@Override
+		public void close() {
+		}
+		@Override
+		public int write(ByteBuffer src) {
+			int len = src.remaining();
+			src.position(src.limit());
+			return len;
+		}
+	};
+
+	private static final HttpProcessor PROCESSOR = new HttpProcessor() {
+		@Override
+		public HttpResponse process(HttpRequest req) throws HttpException, Exception {
+			HttpResponse res = req.newResponse(HttpResponse.Status.OK);
+			res.setHeader("Content-Type", "application/json");
+			res.setBody(RESPONSE_BODY);
+			return res;
+		}
+		@Override
+		public WritableByteChannel getBodyProcessor(HttpRequest req) {
+			return SINK;
+		}
+	};
+
+	private static com.sun.management.ThreadMXBean threadBean;
+	private static boolean failed = false;
+
+	public static void main(String... args) throws Exception {
+		int iterations = 0 < args.length ? Integer.parseInt(args[0]) : 20000;
+		threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		// ACCESS lines would measure the appender, not the server
+		Logger.getLogger("http").setLevel(Level.WARN);
+
+		final HttpRequestParser parser = new HttpRequestParser(PROCESSOR, 8080, new ByteBufferPool(10240, 1, false));
+		check("parse GET", 2400, iterations, () -> {
+			parser.release(8080);
+			parser.addBytes(GET_REQUEST, 0, GET_REQUEST.length);
+			parser.releaseBuffer();
+		});
+		final HttpRequestParser recycledParser = new HttpRequestParser(PROCESSOR, 8080, new ByteBufferPool(10240, 1, false));
+		recycledParser.setRecycling();
+		check("parse GET, recycled", 1900, iterations, () -> {
+			recycledParser.release(8080);
+			recycledParser.addBytes(GET_REQUEST, 0, GET_REQUEST.length);
+			recycledParser.releaseBuffer();
+		});
+		check("parse POST, recycled", 1800, iterations, () -> {
+			recycledParser.release(8080);
+			recycledParser.addBytes(POST_REQUEST, 0, POST_REQUEST.length);
+			recycledParser.addBytes(POST_BODY, 0, POST_BODY.length);
+			recycledParser.releaseBuffer();
+		});
+
+		final ByteBuffer writeBuf = ByteBuffer.allocate(1024);
+		check("write response", 3800, iterations, () -> {
+			HttpResponse res = new HttpResponse(HttpResponse.Status.OK, RESPONSE_BODY);
+			res.setHeader("Content-Type", "application/json");
+			writeResponse(res, writeBuf);
+		});
+		recycledParser.release(8080);
+		recycledParser.addBytes(GET_REQUEST, 0, GET_REQUEST.length);
+		final HttpRequest recycledRequest = recycledParser.getRequest();
+		check("write response, recycled", 3500, iterations, () -> {
+			writeResponse(PROCESSOR.process(recycledRequest), writeBuf);
+		});
+
+		roundTrips(iterations / 10, false);
+		roundTrips(iterations / 10, true);
+
+		System.exit(failed ? 1 : 0);
+	}
+
+	private static void writeResponse(HttpResponse res, ByteBuffer writeBuf) throws Exception {
+		HttpResponseWriter writer = new HttpResponseWriter(res.getResponseData(), writeBuf);
+		while( writer.process(SINK) ) {
+		}
+		writer.close();
+	}
+
+	private static void roundTrips(int iterations, boolean recycling) throws Exception {
+		HttpServer server = new HttpServer(PROCESSOR, 16, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.setRecycling(recycling);
+		AtomicBoolean stopSignal = new AtomicBoolean(false);
+		Thread serverThread = new Thread(() -> {
+			try {
+				server.runServer(stopSignal);
+			} catch( Exception ex ) {
+				ex.printStackTrace();
+			}
+		}, "server");
+		serverThread.start();
+		while( server.getListenerStats().isEmpty() ) {
+			Thread.sleep(10);
+		}
+		final SocketAddress addr = server.getListenerStats().get(0).getAddress();
+		final ByteBuffer readBuf = ByteBuffer.allocate(4096);
+		String mode = recycling ? ", recycled" : "";
+		checkThread("round trip GET" + mode, recycling ? 7000 : 8200, iterations, serverThread, () -> {
+			roundTrip(addr, readBuf, GET_REQUEST, null);
+		});
+		checkThread("round trip POST" + mode, recycling ? 6800 : 8000, iterations, serverThread, () -> {
+			roundTrip(addr, readBuf, POST_REQUEST, POST_BODY);
+		});
+		stopSignal.set(true);
+		serverThread.join();
+	}
+
+	private static void roundTrip(SocketAddress addr, ByteBuffer readBuf, byte[] head, byte[] body) throws Exception {
+		try( SocketChannel ch = SocketChannel.open(addr) ) {
+			ByteBuffer req = ByteBuffer.wrap(head);
+			while( req.hasRemaining() ) {
+				ch.write(req);
+			}
+			if( null != body ) {
+				req = ByteBuffer.wrap(body);
+				while( req.hasRemaining() ) {
+					ch.write(req);
+				}
+			}
+			readBuf.clear();
+			while( 0 <= ch.read(readBuf) ) {
+				readBuf.clear();
+			}
+		}
+	}
+
+	private static void check(String name, long budget, int iterations, Shape shape) throws Exception {
+		checkThread(name, budget, iterations, Thread.currentThread(), shape);
+	}
+
+	// warms the shape up, then measures the allocation of thread over iterations runs of it
+	private static void checkThread(String name, long budget, int iterations, Thread thread, Shape shape) throws Exception {
+		for( int i = 0; i < iterations; i++ ) {
+			shape.run();
+		}
+		long before = threadBean.getThreadAllocatedBytes(thread.getId());
+		for( int i = 0; i < iterations; i++ ) {
+			shape.run();
+		}
+		long perRequest = (threadBean.getThreadAllocatedBytes(thread.getId()) - before) / iterations;
+		boolean over = perRequest > budget;
+		failed |= over;
+		System.out.printf("%-30s %8d bytes/request  budget %8d  %s%n", name, perRequest, budget, over ? "OVER" : "ok");
+	}
+}
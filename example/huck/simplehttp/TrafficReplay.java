@@ -0,0 +1,248 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// replays a TrafficCapture file, fragment by fragment.
+//   java huck.simplehttp.TrafficReplay parse <capture> [rounds]
+//     feeds every connection through HttpRequestParser on this thread as fast as it goes
+//   java huck.simplehttp.TrafficReplay live <capture> <host:port> [speed] [threads]
+//     sends every connection to a running server. speed 1 keeps the captured timing, 2 runs it twice as fast,
+//     0 sends back to back on threads connections at a time. latency runs from the last fragment written to the end of
+//     the response, so the client's own pacing isn't counted
+// connections that switched to http/2 carry only their bytes before the switch and are skipped, and so are connections
+// the capture lost records of or that were still open when it stopped.
+// in this package to reach the parser directly
+public class TrafficReplay {
+	private static class Connection {
+		long openNanos;
+		// since the connection opened
+		ArrayList<Long> offsetList = new ArrayList<>();
+		ArrayList<byte[]> fragmentList = new ArrayList<>();
+		long bytes;
+		boolean switched;
+		boolean closed;
+		boolean truncated;
+	}
+
+	// swallows request bodies
+	private static final WritableByteChannel SINK = new WritableByteChannel() {
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+		@Override
+		public void close() {
+		}
+		@Override
+		public int write(ByteBuffer src) {
+			int len = src.remaining();
+			src.position(src.limit());
+			return len;
+		}
+	};
+
+	public static void main(String... args) throws Exception {
+		if( 2 > args.length || (!"parse".equals(args[0]) && !"live".equals(args[0])) || ("live".equals(args[0]) && 3 > args.length) ) {
+			System.err.println("usage : TrafficReplay parse <capture> [rounds]");
+			System.err.println("        TrafficReplay live <capture> <host:port> [speed] [threads]");
+			System.exit(2);
+		}
+		ArrayList<Connection> connList = new ArrayList<>();
+		int incomplete = 0;
+		long bytes = 0;
+		for( Connection conn : load(Paths.get(args[1])) ) {
+			if( conn.truncated || !conn.closed ) {
+				incomplete += 1;
+				continue;
+			}
+			connList.add(conn);
+			bytes += conn.bytes;
+		}
+		System.out.printf("%d connections, %d bytes, %d incomplete skipped%n", connList.size(), bytes, incomplete);
+		if( connList.isEmpty() ) {
+			return;
+		}
+		if( "parse".equals(args[0]) ) {
+			int rounds = 2 < args.length ? Integer.parseInt(args[2]) : 5;
+			for( int round = 0; round < rounds; round++ ) {
+				parse(connList, bytes);
+			}
+		} else {
+			int sep = args[2].lastIndexOf(':');
+			InetSocketAddress addr = new InetSocketAddress(args[2].substring(0, sep), Integer.parseInt(args[2].substring(sep + 1)));
+			double speed = 3 < args.length ? Double.parseDouble(args[3]) : 1;
+			int threads = 4 < args.length ? Integer.parseInt(args[4]) : 64;
+			live(connList, addr, speed, threads);
+		}
+	}
+
+	private static List<Connection> load(Path path) throws Exception {
+		LinkedHashMap<Integer, Connection> connMap = new LinkedHashMap<>();
+		try( TrafficCapture.Reader reader = new TrafficCapture.Reader(path) ) {
+			TrafficCapture.Record record;
+			while( null != (record = reader.next()) ) {
+				Connection conn = connMap.get(record.getConnection());
+				if( TrafficCapture.OPEN == record.getType() ) {
+					conn = new Connection();
+					conn.openNanos = record.getNanos();
+					connMap.put(record.getConnection(), conn);
+				} else if( TrafficCapture.DATA == record.getType() && null != conn ) {
+					conn.offsetList.add(record.getNanos() - conn.openNanos);
+					conn.fragmentList.add(record.getBytes());
+					conn.bytes += record.getBytes().length;
+				} else if( TrafficCapture.SWITCH == record.getType() && null != conn ) {
+					conn.switched = true;
+				} else if( TrafficCapture.CLOSE == record.getType() && null != conn ) {
+					conn.closed = true;
+				} else if( TrafficCapture.TRUNCATED == record.getType() && null != conn ) {
+					conn.truncated = true;
+				}
+			}
+		}
+		ArrayList<Connection> connList = new ArrayList<>();
+		for( Connection conn : connMap.values() ) {
+			if( conn.fragmentList.isEmpty() || conn.switched ) {
+				continue;
+			}
+			connList.add(conn);
+		}
+		return connList;
+	}
+
+	private static void parse(List<Connection> connList, long bytes) throws Exception {
+		HttpProcessor processor = new HttpProcessor() {
+			@Override
+			public HttpResponse process(HttpRequest req) {
+				return null;
+			}
+			@Override
+			public WritableByteChannel getBodyProcessor(HttpRequest req) {
+				return SINK;
+			}
+		};
+		HttpRequestParser parser = new HttpRequestParser(processor, 0, new ByteBufferPool(10240, 1, false));
+		long[] latencies = new long[connList.size()];
+		int requests = 0;
+		TreeMap<String, Integer> errorMap = new TreeMap<>();
+		long start = System.nanoTime();
+		for( int i = 0; i < connList.size(); i++ ) {
+			Connection conn = connList.get(i);
+			parser.release(0);
+			long begin = System.nanoTime();
+			try {
+				for( byte[] fragment : conn.fragmentList ) {
+					if( null != parser.addBytes(fragment, 0, fragment.length) ) {
+						requests += 1;
+						// keep-alive isn't supported. the rest of the connection is dropped, as the server does
+						break;
+					}
+				}
+			} catch( HttpException ex ) {
+				errorMap.merge(ex.getStatus().code(), 1, Integer::sum);
+			} catch( IOException ex ) {
+				errorMap.merge(ex.getClass().getSimpleName(), 1, Integer::sum);
+			}
+			parser.releaseBuffer();
+			latencies[i] = System.nanoTime() - begin;
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("parse : %d requests, %.0f req/s, %.1f MB/s, %s%s%n", requests, requests * 1e9 / elapsed, bytes * 1e3 / elapsed,
+			distribution(latencies), errorMap.isEmpty() ? "" : ", errors " + errorMap);
+	}
+
+	private static void live(final List<Connection> connList, final InetSocketAddress addr, final double speed, int threads) throws Exception {
+		final long[] latencies = new long[connList.size()];
+		final String[] statuses = new String[connList.size()];
+		final AtomicLong maxLag = new AtomicLong(0);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final long firstOpen = connList.get(0).openNanos;
+		final long base = System.nanoTime() + 10000000L;
+		for( int i = 0; i < connList.size(); i++ ) {
+			final int idx = i;
+			pool.execute(() -> {
+				Connection conn = connList.get(idx);
+				long due = base + scaled(conn.openNanos - firstOpen, speed);
+				long lag = waitUntil(due, speed);
+				long current;
+				while( lag > (current = maxLag.get()) && !maxLag.compareAndSet(current, lag) ) {
+				}
+				long begin = System.nanoTime();
+				long sent = begin;
+				try( SocketChannel ch = SocketChannel.open(addr) ) {
+					for( int f = 0; f < conn.fragmentList.size(); f++ ) {
+						waitUntil(begin + scaled(conn.offsetList.get(f), speed), speed);
+						ByteBuffer buf = ByteBuffer.wrap(conn.fragmentList.get(f));
+						while( buf.hasRemaining() ) {
+							ch.write(buf);
+						}
+					}
+					sent = System.nanoTime();
+					ByteBuffer readBuf = ByteBuffer.allocate(4096);
+					byte[] head = new byte[12];
+					int headLen = 0;
+					int readLen;
+					while( 0 <= (readLen = ch.read(readBuf)) ) {
+						readBuf.flip();
+						int len = Math.min(readLen, head.length - headLen);
+						readBuf.get(head, headLen, len);
+						headLen += len;
+						readBuf.clear();
+					}
+					statuses[idx] = head.length == headLen ? new String(head, 9, 3, StandardCharsets.ISO_8859_1) : "none";
+				} catch( Exception ex ) {
+					statuses[idx] = ex.getClass().getSimpleName();
+				}
+				latencies[idx] = System.nanoTime() - sent;
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, TimeUnit.DAYS);
+		long elapsed = System.nanoTime() - base;
+		TreeMap<String, Integer> statusMap = new TreeMap<>();
+		for( String status : statuses ) {
+			statusMap.merge(status, 1, Integer::sum);
+		}
+		System.out.printf("live : %d connections in %.2f s, %.0f req/s, %s, statuses %s, max start lag %d us%n",
+			connList.size(), elapsed / 1e9, connList.size() * 1e9 / elapsed, distribution(latencies), statusMap, maxLag.get() / 1000);
+	}
+
+	private static long scaled(long nanos, double speed) {
+		return 0 >= speed ? 0 : (long)(nanos / speed);
+	}
+
+	// how late the caller already was
+	private static long waitUntil(long due, double speed) {
+		if( 0 >= speed ) {
+			return 0;
+		}
+		long now;
+		while( due > (now = System.nanoTime()) ) {
+			LockSupport.parkNanos(due - now);
+		}
+		return now - due;
+	}
+
+	private static String distribution(long[] latencies) {
+		long[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		int n = sorted.length;
+		return String.format("p50 %d us, p90 %d us, p99 %d us, max %d us", sorted[n / 2] / 1000, sorted[n * 9 / 10] / 1000, sorted[n * 99 / 100] / 1000, sorted[n - 1] / 1000);
+	}
+}
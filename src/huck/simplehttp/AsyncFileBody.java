@@ -0,0 +1,262 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+
+// a file body read ahead with AsynchronousFileChannel, so a page fault on a cold file blocks an io thread instead of
+// the server loop. up to depth buffers of bufferSize are in flight or filled at a time. read() returns 0 while the next
+// one is still being read, and the ready listener fires once it is in memory. as a body supplier :
+//   new HttpResponse(HttpResponse.Status.OK, () -> AsyncFileBody.open(path, 4, 64 * 1024));
+// reading starts with the first read(). the server hands over its file buffer pool and the connection's account before
+// that, so bodies of the pool's buffer size share its direct buffers and every buffer is charged as FILE_BUFFER. a buffer
+// goes back only once no read is in flight on it, since the io thread may still be filling it after close
+public class AsyncFileBody implements NotifyingChannel {
+	private static class Slot {
+		ByteBuffer buf;
+		long position;
+		boolean done;
+	}
+
+	// the size of the server's pooled file buffers
+	static final int DEFAULT_BUFFER_SIZE = 32 * 1024;
+
+	public static AsyncFileBody open(Path path) throws IOException {
+		return open(path, 2, DEFAULT_BUFFER_SIZE, null);
+	}
+	public static AsyncFileBody open(Path path, int depth, int bufferSize) throws IOException {
+		return open(path, depth, bufferSize, null);
+	}
+	// ioPool null : the jdk's default pool for asynchronous channels
+	@SuppressWarnings("resource")
+	public static AsyncFileBody open(Path path, int depth, int bufferSize, ExecutorService ioPool) throws IOException {
+		AsynchronousFileChannel ch = null == ioPool ? AsynchronousFileChannel.open(path, StandardOpenOption.READ)
+			: AsynchronousFileChannel.open(path, Collections.singleton(StandardOpenOption.READ), ioPool);
+		try {
+			return new AsyncFileBody(ch, Math.max(1, depth), Math.max(1, bufferSize));
+		} catch( IOException ex ) {
+			ch.close();
+			throw ex;
+		}
+	}
+
+	private AsynchronousFileChannel ch;
+	private int depth;
+	private int bufferSize;
+	private long size;
+	private long nextPosition;
+	private ArrayDeque<Slot> slotQueue;
+	private ArrayDeque<ByteBuffer> freeQueue;
+	private CompletionHandler<Integer, Slot> handler;
+	private IOException error;
+	private Runnable readyListener;
+	private boolean armed;
+	private boolean open;
+	private boolean started;
+	private ByteBufferPool bufferPool;
+	private MemoryBudget.Account account;
+
+	private AsyncFileBody(AsynchronousFileChannel ch, int depth, int bufferSize) throws IOException {
+		this.ch = ch;
+		this.depth = depth;
+		this.bufferSize = bufferSize;
+		this.size = ch.size();
+		this.nextPosition = 0;
+		this.slotQueue = new ArrayDeque<>(depth);
+		this.freeQueue = new ArrayDeque<>(depth);
+		this.error = null;
+		this.readyListener = null;
+		this.armed = false;
+		this.open = true;
+		this.started = false;
+		this.bufferPool = null;
+		this.account = null;
+		this.handler = new CompletionHandler<Integer, Slot>() {
+			@Override
+			public void completed(Integer readLen, Slot slot) {
+				onRead(slot, readLen);
+			}
+			@Override
+			public void failed(Throwable ex, Slot slot) {
+				onError(slot, ex);
+			}
+		};
+	}
+
+	// before the first read. later calls are ignored
+	synchronized void setMemoryAccount(MemoryBudget.Account account, ByteBufferPool bufferPool) {
+		if( started ) {
+			return;
+		}
+		this.account = account;
+		this.bufferPool = bufferPool;
+	}
+
+	// the file size when it was opened
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized void setReadyListener(Runnable listener) {
+		this.readyListener = listener;
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		synchronized( this ) {
+			if( !open ) {
+				throw new ClosedChannelException();
+			}
+			if( null != error ) {
+				throw error;
+			}
+			if( !started ) {
+				started = true;
+				readAhead();
+			}
+			while( true ) {
+				Slot head = slotQueue.peek();
+				if( null == head ) {
+					return -1;
+				}
+				if( !head.done ) {
+					armed = true;
+					return 0;
+				}
+				if( !head.buf.hasRemaining() ) {
+					slotQueue.poll();
+					if( nextPosition < size ) {
+						freeQueue.add(head.buf);
+					} else {
+						releaseBuffer(head.buf);
+					}
+					readAhead();
+					continue;
+				}
+				int len = Math.min(dst.remaining(), head.buf.remaining());
+				int limit = head.buf.limit();
+				head.buf.limit(head.buf.position() + len);
+				dst.put(head.buf);
+				head.buf.limit(limit);
+				return len;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized( this ) {
+			if( !open ) {
+				return;
+			}
+			open = false;
+			for( Slot slot : slotQueue ) {
+				if( slot.done ) {
+					releaseBuffer(slot.buf);
+				}
+			}
+			slotQueue.clear();
+			for( ByteBuffer buf : freeQueue ) {
+				releaseBuffer(buf);
+			}
+			freeQueue.clear();
+		}
+		// reads still in flight fail with AsynchronousCloseException
+		ch.close();
+	}
+
+	private void readAhead() {
+		while( slotQueue.size() < depth && nextPosition < size ) {
+			Slot slot = new Slot();
+			slot.buf = freeQueue.isEmpty() ? acquireBuffer() : freeQueue.poll();
+			slot.buf.clear();
+			slot.buf.limit((int)Math.min(bufferSize, size - nextPosition));
+			slot.position = nextPosition;
+			slot.done = false;
+			nextPosition += slot.buf.limit();
+			slotQueue.add(slot);
+			ch.read(slot.buf, slot.position, slot, handler);
+		}
+	}
+
+	private ByteBuffer acquireBuffer() {
+		if( null != bufferPool && bufferSize == bufferPool.getBufferSize() ) {
+			return bufferPool.acquire(account);
+		}
+		if( null != account ) {
+			account.reserve(MemoryBudget.Category.FILE_BUFFER, bufferSize);
+		}
+		return ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	private void releaseBuffer(ByteBuffer buf) {
+		if( null != bufferPool && bufferSize == bufferPool.getBufferSize() ) {
+			bufferPool.release(buf, account);
+		} else if( null != account ) {
+			account.release(MemoryBudget.Category.FILE_BUFFER, bufferSize);
+		}
+	}
+
+	private void onRead(Slot slot, int readLen) {
+		Runnable listener;
+		synchronized( this ) {
+			if( !open ) {
+				// closed while the read was in flight
+				releaseBuffer(slot.buf);
+				return;
+			}
+			if( 0 <= readLen && slot.buf.hasRemaining() ) {
+				// short read. the rest of the slot comes from where it stopped
+				ch.read(slot.buf, slot.position + slot.buf.position(), slot, handler);
+				return;
+			}
+			// a file that shrank since it was opened ends early
+			slot.buf.flip();
+			slot.done = true;
+			listener = takeListener();
+		}
+		if( null != listener ) {
+			listener.run();
+		}
+	}
+
+	private void onError(Slot slot, Throwable ex) {
+		Runnable listener;
+		synchronized( this ) {
+			if( !open ) {
+				releaseBuffer(slot.buf);
+				return;
+			}
+			// nothing is read into the slot any more, close gives its buffer back
+			slot.done = true;
+			error = ex instanceof IOException ? (IOException)ex : new IOException(ex);
+			armed = true;
+			listener = takeListener();
+		}
+		if( null != listener ) {
+			listener.run();
+		}
+	}
+
+	private Runnable takeListener() {
+		Slot head = slotQueue.peek();
+		if( armed && null != readyListener && (null != error || (null != head && head.done)) ) {
+			armed = false;
+			return readyListener;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,253 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.log4j.Logger;
+
+// collects whole request bodies for handlers that want them at once. a body stays in one pooled buffer of
+// memoryThreshold bytes (direct if asked) while it fits and the memory budget has room. past that it goes to a temp file,
+// mapped read only once the body is complete. the handler reads it with HttpRequest.getBody() or getBodyChannel().
+// the buffer goes back to the pool and the file is deleted when the response has been sent. when the client goes away
+// while the handler may still be reading the body, a buffer it has seen is left to the gc instead. use it from getBodyProcessor :
+//   return aggregator.getBodyProcessor(req);
+// a body over the limit of its route fails the request with 413. with a Content-Length that happens before anything is kept
+public class BodyAggregator {
+	private static final int MAX_POOLED_BUFFERS = 16;
+
+	private Path tempDir;
+	private int memoryThreshold;
+	private ByteBufferPool bufferPool;
+	private MemoryBudget budget;
+	private long maxBodyBytes;
+	private RouteTable<Long> routeLimits;
+
+	// memoryThreshold 0 : every body goes to a file
+	public BodyAggregator(Path tempDir, int memoryThreshold, boolean direct) {
+		this.tempDir = tempDir;
+		this.memoryThreshold = Math.max(0, memoryThreshold);
+		this.bufferPool = 0 < memoryThreshold ? new ByteBufferPool(memoryThreshold, MAX_POOLED_BUFFERS, direct) : null;
+		this.budget = null;
+		this.maxBodyBytes = Long.MAX_VALUE;
+		this.routeLimits = new RouteTable<>();
+	}
+
+	// in-memory bodies are charged as BODY. a body that doesn't fit in the budget goes to a file
+	public void setMemoryBudget(MemoryBudget budget) {
+		this.budget = budget;
+	}
+	// for paths without a route limit
+	public void setMaxBodyBytes(long maxBodyBytes) {
+		this.maxBodyBytes = maxBodyBytes;
+	}
+	// the longest matching prefix wins
+	public void addRouteLimit(String pathPrefix, long maxBytes) {
+		routeLimits.add(pathPrefix, maxBytes);
+	}
+
+	public long getMaxBodyBytes(HttpRequest req) {
+		Long maxBytes = routeLimits.match(req);
+		return null == maxBytes ? maxBodyBytes : maxBytes;
+	}
+
+	// the limit check from the headers alone. call it from checkBeforeBody
+	public void checkBeforeBody(HttpRequest req) throws HttpException {
+		long maxBytes = getMaxBodyBytes(req);
+		if( req.getContentLength() > maxBytes ) {
+			throw new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "request body is larger than " + maxBytes + " bytes");
+		}
+	}
+
+	public WritableByteChannel getBodyProcessor(HttpRequest req) {
+		Body body = new Body(getMaxBodyBytes(req), req.getContentLength());
+		req.setBody(body);
+		req.addCompletionListener(() -> body.release(req.isAbandoned()));
+		return body;
+	}
+
+	class Body implements WritableByteChannel {
+		private long maxBytes;
+		private long expectedBytes;
+		private long size;
+		private ByteBuffer memory;
+		private Path path;
+		private FileChannel fileCh;
+		private ByteBuffer mapped;
+		private boolean open;
+		private boolean released;
+		private boolean shared;
+
+		Body(long maxBytes, long expectedBytes) {
+			this.maxBytes = maxBytes;
+			this.expectedBytes = expectedBytes;
+			this.size = 0;
+			this.memory = null;
+			this.path = null;
+			this.fileCh = null;
+			this.mapped = null;
+			this.open = true;
+			this.released = false;
+			this.shared = false;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if( !open ) {
+				throw new ClosedChannelException();
+			}
+			int len = src.remaining();
+			if( expectedBytes > maxBytes || size + len > maxBytes ) {
+				throw new IOException(new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "request body is larger than " + maxBytes + " bytes"));
+			}
+			if( null == memory && null == fileCh ) {
+				if( expectedBytes <= memoryThreshold && size + len <= memoryThreshold && reserveMemory() ) {
+					memory = bufferPool.acquire();
+					memory.clear();
+				} else {
+					openFile();
+				}
+			}
+			if( null != memory ) {
+				if( len <= memory.remaining() ) {
+					memory.put(src);
+					size += len;
+					return len;
+				}
+				spill();
+			}
+			while( src.hasRemaining() ) {
+				fileCh.write(src);
+			}
+			size += len;
+			return len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if( !open ) {
+				return;
+			}
+			open = false;
+			if( null != memory ) {
+				memory.flip();
+			} else if( null != fileCh ) {
+				mapped = fileCh.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				fileCh.close();
+				fileCh = null;
+			}
+		}
+
+		private boolean reserveMemory() {
+			return null != bufferPool && (null == budget || budget.tryReserve(MemoryBudget.Category.BODY, memoryThreshold));
+		}
+
+		private void openFile() throws IOException {
+			path = Files.createTempFile(tempDir, "body", ".tmp");
+			fileCh = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		private void spill() throws IOException {
+			openFile();
+			memory.flip();
+			while( memory.hasRemaining() ) {
+				fileCh.write(memory);
+			}
+			releaseMemory();
+		}
+
+		private void releaseMemory() {
+			if( !shared ) {
+				bufferPool.release(memory);
+			}
+			memory = null;
+			if( null != budget ) {
+				budget.release(MemoryBudget.Category.BODY, memoryThreshold);
+			}
+		}
+
+		ByteBuffer asByteBuffer() {
+			if( open || released ) {
+				return null;
+			}
+			if( null != memory ) {
+				shared = true;
+				return memory.asReadOnlyBuffer();
+			}
+			if( null != mapped ) {
+				return mapped.asReadOnlyBuffer();
+			}
+			return ByteBuffer.allocate(0);
+		}
+
+		ReadableByteChannel asChannel() {
+			final ByteBuffer buf = asByteBuffer();
+			if( null == buf ) {
+				return null;
+			}
+			return new ReadableByteChannel() {
+				private boolean channelOpen = true;
+				@Override
+				public boolean isOpen() {
+					return channelOpen;
+				}
+				@Override
+				public void close() throws IOException {
+					channelOpen = false;
+				}
+				@Override
+				public int read(ByteBuffer dst) throws IOException {
+					if( !buf.hasRemaining() ) {
+						return -1;
+					}
+					int len = Math.min(dst.remaining(), buf.remaining());
+					ByteBuffer piece = buf.duplicate();
+					piece.limit(piece.position() + len);
+					dst.put(piece);
+					buf.position(buf.position() + len);
+					return len;
+				}
+			};
+		}
+
+		// the mapping itself goes away with the gc. unix lets the file be deleted while it is still mapped.
+		// abandoned : the processing stage may still read views of the buffer, so it isn't pooled again
+		void release(boolean abandoned) {
+			if( released ) {
+				return;
+			}
+			released = true;
+			open = false;
+			if( null != memory ) {
+				shared &= abandoned;
+				releaseMemory();
+			}
+			mapped = null;
+			if( null != fileCh ) {
+				try {
+					fileCh.close();
+				} catch( IOException ignore ) {}
+				fileCh = null;
+			}
+			if( null != path ) {
+				try {
+					Files.deleteIfExists(path);
+				} catch( IOException ex ) {
+					Logger.getLogger("http").warn("can't delete " + path + " : " + ex);
+				}
+				path = null;
+			}
+		}
+	}
+}
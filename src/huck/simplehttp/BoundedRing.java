@@ -0,0 +1,45 @@
+package huck.simplehttp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// the last capacity entries added. once full, each add drops the oldest one
+class BoundedRing<T> {
+	private Object[] ring;
+	private int next;
+	private int size;
+
+	BoundedRing(int capacity) {
+		if( 0 >= capacity ) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.ring = new Object[capacity];
+		this.next = 0;
+		this.size = 0;
+	}
+
+	synchronized void add(T entry) {
+		ring[next] = entry;
+		next = (next + 1) % ring.length;
+		size = Math.min(size + 1, ring.length);
+	}
+
+	// oldest first
+	@SuppressWarnings("unchecked")
+	synchronized List<T> snapshot() {
+		ArrayList<T> entryList = new ArrayList<>(size);
+		for( int i = 0; i < size; i++ ) {
+			entryList.add((T)ring[(next - size + i + ring.length) % ring.length]);
+		}
+		return Collections.unmodifiableList(entryList);
+	}
+
+	synchronized void clear() {
+		for( int i = 0; i < ring.length; i++ ) {
+			ring[i] = null;
+		}
+		next = 0;
+		size = 0;
+	}
+}
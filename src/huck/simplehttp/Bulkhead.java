@@ -0,0 +1,273 @@
+package huck.simplehttp;
+
+import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+// a bounded executor for one route or processor, so a slow endpoint can only use up its own threads. at most
+// maxConcurrent requests run and maxQueued wait; past that a request gets a precomputed 503 at once. requests with a
+// body are already turned away in checkBeforeBody when the bulkhead is full, before the upload is read.
+// virtualThreads runs each request on a new virtual thread when the jdk has them (21+) and on a fixed pool of platform
+// threads otherwise. the concurrency limit holds either way.
+// give the LoadShedder the processor the bulkhead runs, bulkhead.wrap(shedder.wrap(processor)), so the queue wait
+// counts as delay
+public class Bulkhead {
+	private static class Task {
+		HttpRequest req;
+		HttpProcessor processor;
+		CompletableFuture<HttpResponse> result;
+		long queuedNanos;
+	}
+
+	private String name;
+	private int maxConcurrent;
+	private int maxQueued;
+	private boolean virtual;
+	private ExecutorService executor;
+	private int retryAfterSeconds;
+	private byte[] rejectResponse;
+
+	// guarded by this
+	private ArrayDeque<Task> taskQueue;
+	private int running;
+	private int peakRunning;
+
+	private LongAdder submittedCnt;
+	private LongAdder rejectedCnt;
+	private LongAdder completedCnt;
+	private LongAdder busyNanos;
+	private LongAdder queueNanos;
+	private long utilizationSampleNanos;
+	private long utilizationSampleBusy;
+
+	public Bulkhead(String name, int maxConcurrent, int maxQueued, boolean virtualThreads) {
+		if( 0 >= maxConcurrent || 0 > maxQueued ) {
+			throw new IllegalArgumentException("maxConcurrent must be positive and maxQueued not negative");
+		}
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.executor = virtualThreads ? newVirtualExecutor(name) : null;
+		this.virtual = null != executor;
+		if( null == executor ) {
+			final AtomicInteger threadCnt = new AtomicInteger(0);
+			this.executor = Executors.newFixedThreadPool(maxConcurrent, r -> {
+				Thread th = new Thread(r, "bulkhead-" + name + "-" + threadCnt.incrementAndGet());
+				th.setDaemon(true);
+				return th;
+			});
+		}
+		this.taskQueue = new ArrayDeque<>();
+		this.running = 0;
+		this.peakRunning = 0;
+		this.submittedCnt = new LongAdder();
+		this.rejectedCnt = new LongAdder();
+		this.completedCnt = new LongAdder();
+		this.busyNanos = new LongAdder();
+		this.queueNanos = new LongAdder();
+		this.utilizationSampleNanos = System.nanoTime();
+		this.utilizationSampleBusy = 0;
+		setRetryAfterSeconds(1);
+	}
+
+	// Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(...).factory()) through reflection, the build targets 17.
+	// null when the jdk has no virtual threads
+	private static ExecutorService newVirtualExecutor(String name) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "bulkhead-" + name + "-", 1L);
+			ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService)newExecutor.invoke(null, factory);
+		} catch( ReflectiveOperationException | RuntimeException ex ) {
+			Logger.getLogger("http").warn("bulkhead " + name + " : no virtual threads in this jdk, using platform threads");
+			return null;
+		}
+	}
+
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+		this.rejectResponse = RejectedRequestException.precomputed(HttpResponse.Status.SERVICE_UNAVAILABLE, retryAfterSeconds);
+	}
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	public String getName() {
+		return name;
+	}
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+	// false also when virtual threads were asked for but the jdk has none
+	public boolean isVirtual() {
+		return virtual;
+	}
+	public synchronized int getRunningCount() {
+		return running;
+	}
+	public synchronized int getPeakRunningCount() {
+		return peakRunning;
+	}
+	public synchronized int getQueuedCount() {
+		return taskQueue.size();
+	}
+	public long getSubmittedCount() {
+		return submittedCnt.sum();
+	}
+	public long getRejectedCount() {
+		return rejectedCnt.sum();
+	}
+	public long getCompletedCount() {
+		return completedCnt.sum();
+	}
+	// of the completed requests
+	public long getBusyMillis() {
+		return busyNanos.sum() / 1000000L;
+	}
+	public long getQueueWaitMillis() {
+		return queueNanos.sum() / 1000000L;
+	}
+	// share of maxConcurrent slots busy since the previous call, 0 to 1. counts requests when they complete
+	public synchronized double getUtilization() {
+		long now = System.nanoTime();
+		long busy = busyNanos.sum();
+		double utilization = now == utilizationSampleNanos ? 0 : (double)(busy - utilizationSampleBusy) / ((now - utilizationSampleNanos) * (double)maxConcurrent);
+		utilizationSampleNanos = now;
+		utilizationSampleBusy = busy;
+		return Math.min(1, utilization);
+	}
+
+	// processor runs in the bulkhead. body processors and checkBeforeBody stay on the server loop
+	public HttpProcessor wrap(final HttpProcessor processor) {
+		return new HttpProcessor() {
+			@Override
+			public HttpResponse process(HttpRequest req) throws HttpException, Exception {
+				return processor.process(req);
+			}
+			@Override
+			public CompletionStage<HttpResponse> processAsync(HttpRequest req) {
+				return submit(processor, req);
+			}
+			@Override
+			public void checkBeforeBody(HttpRequest req) throws HttpException {
+				checkCapacity();
+				processor.checkBeforeBody(req);
+			}
+			@Override
+			public WritableByteChannel getBodyProcessor(HttpRequest req) {
+				return processor.getBodyProcessor(req);
+			}
+		};
+	}
+
+	// fails with the precomputed 503 when the bulkhead is full
+	public void checkCapacity() throws HttpException {
+		boolean full;
+		synchronized( this ) {
+			full = running >= maxConcurrent && taskQueue.size() >= maxQueued;
+		}
+		if( full ) {
+			rejectedCnt.increment();
+			throw newRejection();
+		}
+	}
+
+	// processor.processAsync runs on a bulkhead thread. the stage completes with the 503 when the bulkhead is full
+	public CompletionStage<HttpResponse> submit(HttpProcessor processor, HttpRequest req) {
+		submittedCnt.increment();
+		Task task = new Task();
+		task.req = req;
+		task.processor = processor;
+		task.result = new CompletableFuture<>();
+		task.queuedNanos = System.nanoTime();
+		boolean start;
+		synchronized( this ) {
+			if( running < maxConcurrent ) {
+				running += 1;
+				peakRunning = Math.max(peakRunning, running);
+				start = true;
+			} else if( taskQueue.size() < maxQueued ) {
+				taskQueue.add(task);
+				start = false;
+			} else {
+				rejectedCnt.increment();
+				task.result.completeExceptionally(newRejection());
+				return task.result;
+			}
+		}
+		if( start ) {
+			final Task first = task;
+			try {
+				executor.execute(() -> drain(first));
+			} catch( RuntimeException ex ) {
+				// shut down
+				synchronized( this ) {
+					running -= 1;
+				}
+				task.result.completeExceptionally(ex);
+			}
+		}
+		return task.result;
+	}
+
+	// runs the task, then whatever queued up meanwhile, on the same thread
+	private void drain(Task task) {
+		while( null != task ) {
+			if( !task.result.isDone() ) {
+				run(task);
+			}
+			synchronized( this ) {
+				task = taskQueue.poll();
+				if( null == task ) {
+					running -= 1;
+				}
+			}
+		}
+	}
+
+	private void run(Task task) {
+		long start = System.nanoTime();
+		queueNanos.add(start - task.queuedNanos);
+		try {
+			// the slot is held until an async processor's stage completes too, so it counts against maxConcurrent
+			task.result.complete(task.processor.processAsync(task.req).toCompletableFuture().join());
+		} catch( CompletionException ex ) {
+			task.result.completeExceptionally(null == ex.getCause() ? ex : ex.getCause());
+		} catch( Throwable ex ) {
+			task.result.completeExceptionally(ex);
+		} finally {
+			busyNanos.add(System.nanoTime() - start);
+			completedCnt.increment();
+		}
+	}
+
+	// queued requests still run. call after the server has stopped
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private RejectedRequestException newRejection() {
+		return new RejectedRequestException(HttpResponse.Status.SERVICE_UNAVAILABLE, rejectResponse, retryAfterSeconds);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "bulkhead " + name + (virtual ? " virtual" : " platform") + " running=" + running + "/" + maxConcurrent + " queued=" + taskQueue.size() + "/" + maxQueued
+			+ " peak=" + peakRunning + " submitted=" + getSubmittedCount() + " rejected=" + getRejectedCount() + " completed=" + getCompletedCount();
+	}
+}
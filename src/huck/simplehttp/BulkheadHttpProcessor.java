@@ -0,0 +1,75 @@
+package huck.simplehttp;
+
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+// runs the delegate in the bulkhead of the request's route, the longest matching prefix. paths without a route use the
+// default bulkhead, or run on the server loop as before when there is none :
+//   BulkheadHttpProcessor processor = new BulkheadHttpProcessor(app, new Bulkhead("default", 32, 256, true));
+//   processor.addRoute("/report/", new Bulkhead("report", 2, 4, false));
+public class BulkheadHttpProcessor implements HttpProcessor {
+	private HttpProcessor delegate;
+	private Bulkhead defaultBulkhead;
+	private RouteTable<Bulkhead> routes;
+
+	public BulkheadHttpProcessor(HttpProcessor delegate, Bulkhead defaultBulkhead) {
+		if( null == delegate ) {
+			throw new NullPointerException();
+		}
+		this.delegate = delegate;
+		this.defaultBulkhead = defaultBulkhead;
+		this.routes = new RouteTable<>();
+	}
+
+	public void addRoute(String pathPrefix, Bulkhead bulkhead) {
+		routes.add(pathPrefix, bulkhead);
+	}
+
+	// the default one first, if any. for metrics
+	public List<Bulkhead> getBulkheads() {
+		ArrayList<Bulkhead> bulkheadList = new ArrayList<>();
+		if( null != defaultBulkhead ) {
+			bulkheadList.add(defaultBulkhead);
+		}
+		for( Bulkhead bulkhead : routes.values() ) {
+			if( !bulkheadList.contains(bulkhead) ) {
+				bulkheadList.add(bulkhead);
+			}
+		}
+		return bulkheadList;
+	}
+
+	// null : the server loop
+	public Bulkhead getBulkhead(HttpRequest req) {
+		Bulkhead bulkhead = routes.match(req);
+		return null == bulkhead ? defaultBulkhead : bulkhead;
+	}
+
+	@Override
+	public HttpResponse process(HttpRequest req) throws HttpException, Exception {
+		return delegate.process(req);
+	}
+
+	@Override
+	public CompletionStage<HttpResponse> processAsync(HttpRequest req) {
+		Bulkhead bulkhead = getBulkhead(req);
+		return null == bulkhead ? delegate.processAsync(req) : bulkhead.submit(delegate, req);
+	}
+
+	// a full bulkhead turns the request away before its body is read
+	@Override
+	public void checkBeforeBody(HttpRequest req) throws HttpException {
+		Bulkhead bulkhead = getBulkhead(req);
+		if( null != bulkhead ) {
+			bulkhead.checkCapacity();
+		}
+		delegate.checkBeforeBody(req);
+	}
+
+	@Override
+	public WritableByteChannel getBodyProcessor(HttpRequest req) {
+		return delegate.getBodyProcessor(req);
+	}
+}
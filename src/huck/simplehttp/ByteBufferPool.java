@@ -0,0 +1,75 @@
+package huck.simplehttp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// fixed size buffers kept for reuse. buffers beyond maxPooled are left to the gc.
+// with a budget, buffers are charged from acquire until release, to the connection's account when one is given
+class ByteBufferPool {
+	private int bufferSize;
+	private int maxPooled;
+	private boolean direct;
+	private ConcurrentLinkedQueue<ByteBuffer> freeQueue;
+	private AtomicInteger freeCnt;
+	private MemoryBudget budget;
+	private MemoryBudget.Category category;
+
+	public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+		this(bufferSize, maxPooled, direct, null, null);
+	}
+	public ByteBufferPool(int bufferSize, int maxPooled, boolean direct, MemoryBudget budget, MemoryBudget.Category category) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+		this.freeQueue = new ConcurrentLinkedQueue<>();
+		this.freeCnt = new AtomicInteger(0);
+		this.budget = budget;
+		this.category = category;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	public int getPooledCount() {
+		return freeCnt.get();
+	}
+
+	public ByteBuffer acquire() {
+		return acquire(null);
+	}
+	public ByteBuffer acquire(MemoryBudget.Account account) {
+		if( null != account && null != budget ) {
+			account.reserve(category, bufferSize);
+		} else if( null != budget ) {
+			budget.reserve(category, bufferSize);
+		}
+		ByteBuffer buf = freeQueue.poll();
+		if( null == buf ) {
+			return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+		}
+		freeCnt.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	public void release(ByteBuffer buf) {
+		release(buf, null);
+	}
+	// with the account the buffer was acquired with
+	public void release(ByteBuffer buf, MemoryBudget.Account account) {
+		if( null == buf || buf.capacity() != bufferSize || buf.isDirect() != direct ) {
+			return;
+		}
+		if( null != account && null != budget ) {
+			account.release(category, bufferSize);
+		} else if( null != budget ) {
+			budget.release(category, bufferSize);
+		}
+		if( freeCnt.incrementAndGet() > maxPooled ) {
+			freeCnt.decrementAndGet();
+			return;
+		}
+		freeQueue.add(buf);
+	}
+}
@@ -0,0 +1,392 @@
+package huck.simplehttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+// single-flight wrapper : identical in-flight requests share one call of the delegate. through processAsync the
+// waiters attach to the leader's flight and hold no thread while it runs.
+// only responses meant for any client are shared. the default key leaves out requests with Cookie or Authorization,
+// and a response with Set-Cookie or Cache-Control private / no-store goes to the leader alone while the waiters run
+// the delegate themselves. a custom key function has to keep one user's requests apart from another's
+public class CoalescingHttpProcessor implements HttpProcessor {
+	public static interface Fallback {
+		public HttpResponse fallback(HttpRequest req, HttpException ex) throws HttpException, Exception;
+	}
+
+	private HttpProcessor delegate;
+	private Function<HttpRequest, String> keyFunction;
+	private Fallback fallback;
+	private long defaultTimeoutMillis;
+	private ConcurrentHashMap<String, Long> timeoutMillisMap;
+	private int maxSharedBodySize;
+
+	private ConcurrentHashMap<String, CompletableFuture<SharedResponse>> inFlightMap;
+
+	public CoalescingHttpProcessor(HttpProcessor delegate) {
+		this(delegate, CoalescingHttpProcessor::defaultKey);
+	}
+	public CoalescingHttpProcessor(HttpProcessor delegate, Function<HttpRequest, String> keyFunction) {
+		if( null == delegate || null == keyFunction ) {
+			throw new NullPointerException();
+		}
+		this.delegate = delegate;
+		this.keyFunction = keyFunction;
+		this.fallback = null;
+		this.defaultTimeoutMillis = 5000;
+		this.timeoutMillisMap = new ConcurrentHashMap<>();
+		this.maxSharedBodySize = 1024*1024;
+		this.inFlightMap = new ConcurrentHashMap<>();
+	}
+
+	// only GET without body or credentials is coalesced by default
+	public static String defaultKey(HttpRequest req) {
+		if( !"GET".equals(req.getMethod()) || 0 < req.getContentLength() ) {
+			return null;
+		}
+		if( null != req.getHeaderIgnoreCase("Cookie") || null != req.getHeaderIgnoreCase("Authorization") ) {
+			return null;
+		}
+		return req.getHost() + " " + req.getRequestURI();
+	}
+
+	public void setFallback(Fallback fallback) {
+		this.fallback = fallback;
+	}
+	public void setDefaultTimeoutMillis(long timeoutMillis) {
+		this.defaultTimeoutMillis = timeoutMillis;
+	}
+	public void setTimeoutMillis(String key, long timeoutMillis) {
+		timeoutMillisMap.put(key, timeoutMillis);
+	}
+	public void setMaxSharedBodySize(int maxSharedBodySize) {
+		this.maxSharedBodySize = maxSharedBodySize;
+	}
+	public int getInFlightCount() {
+		return inFlightMap.size();
+	}
+
+	@Override
+	public void checkBeforeBody(HttpRequest req) throws HttpException {
+		delegate.checkBeforeBody(req);
+	}
+	@Override
+	public WritableByteChannel getBodyProcessor(HttpRequest req) {
+		return delegate.getBodyProcessor(req);
+	}
+
+	@Override
+	public HttpResponse process(HttpRequest req) throws HttpException, Exception {
+		String key = keyFunction.apply(req);
+		if( null == key ) {
+			return processDirect(req);
+		}
+
+		CompletableFuture<SharedResponse> flight = new CompletableFuture<>();
+		CompletableFuture<SharedResponse> leaderFlight = inFlightMap.putIfAbsent(key, flight);
+		if( null == leaderFlight ) {
+			return lead(key, flight, req);
+		}
+
+		SharedResponse shared;
+		try {
+			shared = leaderFlight.get(getTimeoutMillis(key), TimeUnit.MILLISECONDS);
+		} catch( TimeoutException ex ) {
+			Logger.getLogger("http").info("COALESCE: timeout " + key);
+			return processDirect(req);
+		} catch( ExecutionException ex ) {
+			Throwable cause = ex.getCause();
+			if( cause instanceof HttpException ) {
+				return fallback(req, (HttpException)cause);
+			} else if( cause instanceof Exception ) {
+				throw (Exception)cause;
+			} else {
+				throw ex;
+			}
+		}
+		if( null == shared ) {
+			return null;
+		} else if( null == shared.data ) {
+			// leader's response was not shareable
+			return processDirect(req);
+		} else {
+			return shared.newResponse();
+		}
+	}
+
+	@Override
+	public CompletionStage<HttpResponse> processAsync(HttpRequest req) {
+		String key = keyFunction.apply(req);
+		if( null == key ) {
+			return processDirectAsync(req);
+		}
+
+		CompletableFuture<SharedResponse> flight = new CompletableFuture<>();
+		CompletableFuture<SharedResponse> leaderFlight = inFlightMap.putIfAbsent(key, flight);
+		if( null == leaderFlight ) {
+			return leadAsync(key, flight, req);
+		}
+
+		// the timeout goes on a copy, the leader's flight is shared with the other waiters
+		return leaderFlight.copy().orTimeout(getTimeoutMillis(key), TimeUnit.MILLISECONDS).handle((shared, err) -> {
+			Throwable cause = unwrap(err);
+			if( null == cause ) {
+				if( null == shared ) {
+					return CompletableFuture.<HttpResponse>completedFuture(null);
+				} else if( null == shared.data ) {
+					// leader's response was not shareable
+					return processDirectAsync(req);
+				} else {
+					return CompletableFuture.completedFuture(shared.newResponse());
+				}
+			} else if( cause instanceof TimeoutException ) {
+				Logger.getLogger("http").info("COALESCE: timeout " + key);
+				return processDirectAsync(req);
+			} else if( cause instanceof HttpException ) {
+				return fallbackAsync(req, (HttpException)cause);
+			} else {
+				return CompletableFuture.<HttpResponse>failedFuture(cause);
+			}
+		}).thenCompose(result -> result);
+	}
+
+	private CompletionStage<HttpResponse> leadAsync(String key, CompletableFuture<SharedResponse> flight, HttpRequest req) {
+		CompletionStage<HttpResponse> stage;
+		try {
+			stage = delegate.processAsync(req);
+		} catch( Throwable ex ) {
+			stage = CompletableFuture.failedFuture(ex);
+		}
+		return stage.handle((res, err) -> {
+			try {
+				Throwable cause = unwrap(err);
+				if( null != cause ) {
+					flight.completeExceptionally(cause);
+					return cause instanceof HttpException ? fallbackAsync(req, (HttpException)cause) : CompletableFuture.<HttpResponse>failedFuture(cause);
+				}
+				if( null == res ) {
+					flight.complete(null);
+					return CompletableFuture.<HttpResponse>completedFuture(null);
+				}
+				SharedResponse shared = share(res.getResponseData());
+				flight.complete(shared);
+				return CompletableFuture.completedFuture(null == shared.data ? new HttpResponse(shared.leaderData) : shared.newResponse());
+			} catch( Throwable ex ) {
+				flight.completeExceptionally(ex);
+				return CompletableFuture.<HttpResponse>failedFuture(ex);
+			} finally {
+				inFlightMap.remove(key, flight);
+			}
+		}).thenCompose(result -> result);
+	}
+
+	private CompletionStage<HttpResponse> processDirectAsync(HttpRequest req) {
+		CompletionStage<HttpResponse> stage;
+		try {
+			stage = delegate.processAsync(req);
+		} catch( Throwable ex ) {
+			stage = CompletableFuture.failedFuture(ex);
+		}
+		return stage.handle((res, err) -> {
+			Throwable cause = unwrap(err);
+			if( null == cause ) {
+				return CompletableFuture.completedFuture(res);
+			}
+			return cause instanceof HttpException ? fallbackAsync(req, (HttpException)cause) : CompletableFuture.<HttpResponse>failedFuture(cause);
+		}).thenCompose(result -> result);
+	}
+
+	private CompletionStage<HttpResponse> fallbackAsync(HttpRequest req, HttpException ex) {
+		try {
+			return CompletableFuture.completedFuture(fallback(req, ex));
+		} catch( Throwable fallbackEx ) {
+			return CompletableFuture.failedFuture(fallbackEx);
+		}
+	}
+
+	private static Throwable unwrap(Throwable ex) {
+		return ex instanceof CompletionException && null != ex.getCause() ? ex.getCause() : ex;
+	}
+
+	private HttpResponse lead(String key, CompletableFuture<SharedResponse> flight, HttpRequest req) throws HttpException, Exception {
+		try {
+			HttpResponse res;
+			try {
+				res = delegate.process(req);
+			} catch( HttpException ex ) {
+				flight.completeExceptionally(ex);
+				return fallback(req, ex);
+			}
+			if( null == res ) {
+				flight.complete(null);
+				return null;
+			}
+			SharedResponse shared = share(res.getResponseData());
+			flight.complete(shared);
+			if( null == shared.data ) {
+				return new HttpResponse(shared.leaderData);
+			} else {
+				return shared.newResponse();
+			}
+		} catch( Throwable ex ) {
+			flight.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			inFlightMap.remove(key, flight);
+		}
+	}
+
+	private HttpResponse processDirect(HttpRequest req) throws HttpException, Exception {
+		try {
+			return delegate.process(req);
+		} catch( HttpException ex ) {
+			return fallback(req, ex);
+		}
+	}
+
+	private HttpResponse fallback(HttpRequest req, HttpException ex) throws HttpException, Exception {
+		if( null == fallback ) {
+			throw new HttpException(ex.getStatus(), ex.getMessage());
+		}
+		return fallback.fallback(req, ex);
+	}
+
+	private long getTimeoutMillis(String key) {
+		Long timeoutMillis = timeoutMillisMap.get(key);
+		return null == timeoutMillis ? defaultTimeoutMillis : timeoutMillis;
+	}
+
+	private SharedResponse share(HttpResponseData data) throws Exception {
+		SharedResponse shared = new SharedResponse();
+		if( maxSharedBodySize < data.contentLength || isPersonal(data.header) ) {
+			shared.leaderData = data;
+			return shared;
+		}
+
+		ReadableByteChannel bodyChannel = data.bodySupplier.get();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(0 <= data.contentLength ? (int)data.contentLength : 1024);
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		boolean eof = false;
+		while( out.size() <= maxSharedBodySize ) {
+			buf.clear();
+			int readLen = bodyChannel.read(buf);
+			if( 0 > readLen ) {
+				eof = true;
+				break;
+			} else if( 0 == readLen ) {
+				// pull channel with no data ready : don't wait for it
+				break;
+			}
+			out.write(buf.array(), 0, readLen);
+		}
+
+		final byte[] prefix = out.toByteArray();
+		if( eof ) {
+			bodyChannel.close();
+			shared.data = data;
+			shared.body = prefix;
+			return shared;
+		}
+
+		// too large or not finished. leader continues alone with the bytes already read
+		shared.leaderData = data;
+		data.contentLength = -1;
+		if( bodyChannel instanceof NotifyingChannel ) {
+			data.bodySupplier = () -> new PrefixedNotifyingChannel(prefix, (NotifyingChannel)bodyChannel);
+		} else {
+			data.bodySupplier = () -> new PrefixedReadableByteChannel(prefix, bodyChannel);
+		}
+		return shared;
+	}
+
+	// a response for one client only
+	private static boolean isPersonal(HeaderList header) {
+		if( null != header.getIgnoreCase("Set-Cookie") ) {
+			return true;
+		}
+		List<String> cacheControlList = header.getAllIgnoreCase("Cache-Control");
+		if( null != cacheControlList ) {
+			for( String cacheControl : cacheControlList ) {
+				String value = cacheControl.toLowerCase(Locale.ROOT);
+				if( value.contains("private") || value.contains("no-store") ) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static class SharedResponse {
+		HttpResponseData data;
+		byte[] body;
+		HttpResponseData leaderData;
+
+		HttpResponse newResponse() {
+			final byte[] bodyBytes = body;
+			HttpResponseData copy = new HttpResponseData();
+			copy.statusCode = data.statusCode;
+			copy.statusString = data.statusString;
+			copy.keepAlive = data.keepAlive;
+			copy.header = data.header.copy();
+			copy.contentLength = bodyBytes.length;
+			copy.bodySupplier = () -> new HttpResponse.ReadableByteArrayChannel(bodyBytes);
+			return new HttpResponse(copy);
+		}
+	}
+
+	private static class PrefixedReadableByteChannel implements ReadableByteChannel {
+		private ReadableByteChannel prefix;
+		private ReadableByteChannel rest;
+		public PrefixedReadableByteChannel(byte[] prefix, ReadableByteChannel rest) {
+			this.prefix = new HttpResponse.ReadableByteArrayChannel(prefix);
+			this.rest = rest;
+		}
+		@Override
+		public boolean isOpen() {
+			return rest.isOpen();
+		}
+		@Override
+		public void close() throws IOException {
+			prefix.close();
+			rest.close();
+		}
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if( prefix.isOpen() ) {
+				int readLen = prefix.read(dst);
+				if( 0 <= readLen ) {
+					return readLen;
+				}
+				prefix.close();
+			}
+			return rest.read(dst);
+		}
+	}
+
+	// keeps the writer waiting on the ready listener instead of spinning on OP_WRITE
+	private static class PrefixedNotifyingChannel extends PrefixedReadableByteChannel implements NotifyingChannel {
+		private NotifyingChannel rest;
+		public PrefixedNotifyingChannel(byte[] prefix, NotifyingChannel rest) {
+			super(prefix, rest);
+			this.rest = rest;
+		}
+		@Override
+		public void setReadyListener(Runnable listener) {
+			rest.setReadyListener(listener);
+		}
+	}
+}
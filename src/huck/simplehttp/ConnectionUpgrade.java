@@ -0,0 +1,8 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+
+interface ConnectionUpgrade {
+	// writeRequester may be called from any thread to arm OP_WRITE on the connection
+	public ProtocolHandler upgrade(Runnable writeRequester) throws IOException;
+}
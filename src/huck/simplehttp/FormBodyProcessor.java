@@ -0,0 +1,568 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// parses multipart/form-data and application/x-www-form-urlencoded bodies as they arrive. nothing holds the whole body:
+// file parts go to a temp file or a PartSink, fields are decoded piece by piece. the result is the request attribute
+// FORM_ATTRIBUTE, complete once the body has been read, before process() runs. use it from getBodyProcessor :
+//   return FormBodyProcessor.create(req, tempDir);
+// a body that breaks the limits or the syntax fails the request with 413 or 400 (an IOException caused by the HttpException).
+// temp files belong to the processor afterwards (Form.deleteTempFiles). they are deleted when the body fails or the request
+// ends before the body is complete
+public class FormBodyProcessor implements WritableByteChannel {
+	public static final String FORM_ATTRIBUTE = FormBodyProcessor.class.getName() + ".form";
+
+	// opens the destination of a file part. the channel must take every byte it is given
+	public static interface PartSink {
+		public WritableByteChannel open(FilePart part) throws IOException;
+	}
+
+	public static class FilePart {
+		private String name;
+		private String fileName;
+		private String contentType;
+		private Path path;
+		private long size;
+
+		public String getName() {
+			return name;
+		}
+		public String getFileName() {
+			return fileName;
+		}
+		public String getContentType() {
+			return contentType;
+		}
+		// null when the part went to a PartSink
+		public Path getPath() {
+			return path;
+		}
+		public long getSize() {
+			return size;
+		}
+	}
+
+	public static class Form {
+		private LinkedHashMap<String, List<String>> fieldMap = new LinkedHashMap<>();
+		private ArrayList<FilePart> fileList = new ArrayList<>();
+		private boolean complete = false;
+
+		public String getField(String name) {
+			List<String> valueList = fieldMap.get(name);
+			return null == valueList ? null : valueList.get(0);
+		}
+		public List<String> getFieldValues(String name) {
+			List<String> valueList = fieldMap.get(name);
+			return null == valueList ? Collections.<String>emptyList() : Collections.unmodifiableList(valueList);
+		}
+		public Map<String, List<String>> getFieldMap() {
+			return Collections.unmodifiableMap(fieldMap);
+		}
+		public FilePart getFile(String name) {
+			for( FilePart part : fileList ) {
+				if( name.equals(part.name) ) {
+					return part;
+				}
+			}
+			return null;
+		}
+		public List<FilePart> getFiles() {
+			return Collections.unmodifiableList(fileList);
+		}
+		public boolean isComplete() {
+			return complete;
+		}
+		public void deleteTempFiles() {
+			for( FilePart part : fileList ) {
+				if( null != part.path ) {
+					try {
+						Files.deleteIfExists(part.path);
+					} catch( IOException ignore ) {}
+				}
+			}
+		}
+	}
+
+	public static Form getForm(HttpRequest req) {
+		return (Form)req.getAttribute(FORM_ATTRIBUTE);
+	}
+
+	// null when the body is not a form
+	public static FormBodyProcessor create(HttpRequest req, Path tempDir) {
+		String contentType = req.getHeaderIgnoreCase("Content-Type");
+		if( null == contentType ) {
+			return null;
+		}
+		String mediaType = contentType.split(";", 2)[0].trim().toLowerCase();
+		if( "application/x-www-form-urlencoded".equals(mediaType) ) {
+			return new FormBodyProcessor(req, tempDir, null);
+		}
+		if( "multipart/form-data".equals(mediaType) ) {
+			String boundary = getHeaderParameter(contentType, "boundary");
+			if( null != boundary && !boundary.isEmpty() && 70 >= boundary.length() ) {
+				return new FormBodyProcessor(req, tempDir, boundary);
+			}
+		}
+		return null;
+	}
+
+	private enum State {
+		PREAMBLE, AFTER_DELIMITER, PART_HEADER, PART_DATA, EPILOGUE
+	}
+
+	private Form form;
+	private Path tempDir;
+	private PartSink partSink;
+	private int maxFieldBytes;
+	private long maxFileBytes;
+	private int maxFieldCount;
+	private int maxPartHeaderBytes;
+	private boolean open;
+
+	// multipart. the delimiter is CRLF "--" boundary; the body is parsed as if it started with CRLF
+	private byte[] delimiter;
+	private int[] skipTable;
+	private byte[] scratch;
+	private int scratchLen;
+	private State state;
+	private boolean dashSeen;
+	private boolean crSeen;
+	private ByteArray partHeader;
+	private String partName;
+	private FilePart filePart;
+	private WritableByteChannel fileCh;
+
+	// urlencoded
+	private ByteArray nameBytes;
+	private ByteArray valueBytes;
+	private boolean inValue;
+	private int pctDigits;
+	private int pctValue;
+	private byte pctFirst;
+
+	// shared by fields of both kinds
+	private ByteArray fieldBytes;
+	private int fieldCnt;
+
+	private FormBodyProcessor(HttpRequest req, Path tempDir, String boundary) {
+		this.form = new Form();
+		this.tempDir = tempDir;
+		this.partSink = null;
+		this.maxFieldBytes = 64 * 1024;
+		this.maxFileBytes = Long.MAX_VALUE;
+		this.maxFieldCount = 1000;
+		this.maxPartHeaderBytes = 8 * 1024;
+		this.open = true;
+		this.fieldBytes = new ByteArray();
+		this.fieldCnt = 0;
+		if( null == boundary ) {
+			this.nameBytes = new ByteArray();
+			this.valueBytes = new ByteArray();
+			this.inValue = false;
+			this.pctDigits = -1;
+		} else {
+			this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+			this.skipTable = new int[256];
+			Arrays.fill(skipTable, delimiter.length);
+			for( int i = 0; i < delimiter.length - 1; i++ ) {
+				skipTable[delimiter[i] & 0xff] = delimiter.length - 1 - i;
+			}
+			this.scratch = new byte[16 * 1024];
+			this.scratch[0] = '\r';
+			this.scratch[1] = '\n';
+			this.scratchLen = 2;
+			this.state = State.PREAMBLE;
+			this.partHeader = new ByteArray();
+		}
+		req.setAttribute(FORM_ATTRIBUTE, form);
+		// process() never runs for a body cut off midway, so nobody else would delete its files
+		req.addCompletionListener(() -> {
+			if( !form.complete ) {
+				discard();
+			}
+		});
+	}
+
+	// where file parts go instead of temp files
+	public void setPartSink(PartSink partSink) {
+		this.partSink = partSink;
+	}
+	public void setMaxFieldBytes(int maxFieldBytes) {
+		this.maxFieldBytes = maxFieldBytes;
+	}
+	public void setMaxFileBytes(long maxFileBytes) {
+		this.maxFileBytes = maxFileBytes;
+	}
+	public void setMaxFieldCount(int maxFieldCount) {
+		this.maxFieldCount = maxFieldCount;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int len = src.remaining();
+		try {
+			if( null == delimiter ) {
+				while( src.hasRemaining() ) {
+					addUrlEncoded(src.get());
+				}
+				return len;
+			}
+			while( src.hasRemaining() ) {
+				int pieceLen = Math.min(src.remaining(), scratch.length - scratchLen);
+				src.get(scratch, scratchLen, pieceLen);
+				scratchLen += pieceLen;
+				int consumed = parseMultipart(scratch, scratchLen);
+				System.arraycopy(scratch, consumed, scratch, 0, scratchLen - consumed);
+				scratchLen -= consumed;
+			}
+		} catch( IOException ex ) {
+			discard();
+			throw ex;
+		}
+		return len;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if( !open ) {
+			return;
+		}
+		open = false;
+		if( null == delimiter ) {
+			if( 0 <= pctDigits ) {
+				addUrlEncoded((byte)'&');
+			}
+			if( inValue || 0 < nameBytes.length ) {
+				addField(nameBytes.toString(), valueBytes.toString());
+			}
+		} else if( State.EPILOGUE != state ) {
+			discard();
+			throw malformed("multipart body ends before the closing boundary");
+		}
+		form.complete = true;
+	}
+
+	// the body failed. closes the open part and deletes the temp files written so far
+	private void discard() {
+		open = false;
+		try {
+			closeFilePart();
+		} catch( IOException ignore ) {}
+		form.deleteTempFiles();
+	}
+
+	// returns how many bytes of buf were used. the rest could be the start of a delimiter
+	private int parseMultipart(byte[] buf, int len) throws IOException {
+		int pos = 0;
+		while( pos < len ) {
+			switch( state ) {
+			case PREAMBLE:
+			case PART_DATA: {
+				int idx = indexOfDelimiter(buf, pos, len);
+				if( 0 > idx ) {
+					int keep = Math.min(len - pos, delimiter.length - 1);
+					addPartData(buf, pos, len - keep - pos);
+					return len - keep;
+				}
+				addPartData(buf, pos, idx - pos);
+				if( State.PART_DATA == state ) {
+					endPart();
+				}
+				pos = idx + delimiter.length;
+				state = State.AFTER_DELIMITER;
+				dashSeen = false;
+				crSeen = false;
+				break;
+			}
+			case AFTER_DELIMITER: {
+				byte b = buf[pos++];
+				if( '-' == b && !crSeen ) {
+					if( dashSeen ) {
+						state = State.EPILOGUE;
+					}
+					dashSeen = true;
+				} else if( dashSeen ) {
+					throw malformed("bad boundary");
+				} else if( '\r' == b && !crSeen ) {
+					crSeen = true;
+				} else if( '\n' == b && crSeen ) {
+					state = State.PART_HEADER;
+					partHeader.length = 0;
+				} else if( (' ' != b && '\t' != b) || crSeen ) {
+					// only transport padding may follow a boundary
+					throw malformed("bad boundary");
+				}
+				break;
+			}
+			case PART_HEADER: {
+				byte b = buf[pos++];
+				if( partHeader.length >= maxPartHeaderBytes ) {
+					throw malformed("part header too large");
+				}
+				partHeader.add(b);
+				if( '\n' == b && partHeader.endsWithBlankLine() ) {
+					startPart();
+					state = State.PART_DATA;
+				}
+				break;
+			}
+			case EPILOGUE:
+			default:
+				return len;
+			}
+		}
+		return len;
+	}
+
+	// boyer-moore-horspool
+	private int indexOfDelimiter(byte[] buf, int from, int to) {
+		int last = delimiter.length - 1;
+		int i = from;
+		while( i + last < to ) {
+			int j = last;
+			while( buf[i + j] == delimiter[j] ) {
+				if( 0 == j ) {
+					return i;
+				}
+				j--;
+			}
+			i += skipTable[buf[i + last] & 0xff];
+		}
+		return -1;
+	}
+
+	private void startPart() throws IOException {
+		String disposition = null;
+		String contentType = null;
+		String header = new String(partHeader.bytes, 0, partHeader.length, StandardCharsets.UTF_8);
+		for( String line : header.split("\r\n") ) {
+			int colonIdx = line.indexOf(':');
+			if( 0 >= colonIdx ) {
+				continue;
+			}
+			String name = line.substring(0, colonIdx).trim();
+			if( "Content-Disposition".equalsIgnoreCase(name) ) {
+				disposition = line.substring(colonIdx + 1).trim();
+			} else if( "Content-Type".equalsIgnoreCase(name) ) {
+				contentType = line.substring(colonIdx + 1).trim();
+			}
+		}
+		if( null == disposition || !disposition.toLowerCase().startsWith("form-data") ) {
+			throw malformed("part without Content-Disposition: form-data");
+		}
+		partName = getHeaderParameter(disposition, "name");
+		if( null == partName ) {
+			throw malformed("part without a name");
+		}
+		String fileName = getHeaderParameter(disposition, "filename");
+		if( ++fieldCnt > maxFieldCount ) {
+			throw new IOException(new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "too many form fields"));
+		}
+		if( null == fileName ) {
+			fieldBytes.length = 0;
+			return;
+		}
+		filePart = new FilePart();
+		filePart.name = partName;
+		filePart.fileName = fileName;
+		filePart.contentType = null == contentType ? "application/octet-stream" : contentType;
+		filePart.size = 0;
+		form.fileList.add(filePart);
+		if( null != partSink ) {
+			fileCh = partSink.open(filePart);
+		} else {
+			filePart.path = null == tempDir ? Files.createTempFile("upload", ".part") : Files.createTempFile(tempDir, "upload", ".part");
+			fileCh = FileChannel.open(filePart.path, StandardOpenOption.WRITE);
+		}
+	}
+
+	private void addPartData(byte[] buf, int offset, int len) throws IOException {
+		if( State.PART_DATA != state || 0 >= len ) {
+			return;
+		}
+		if( null == filePart ) {
+			if( fieldBytes.length + len > maxFieldBytes ) {
+				throw new IOException(new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "form field too large: " + partName));
+			}
+			fieldBytes.add(buf, offset, len);
+			return;
+		}
+		if( filePart.size + len > maxFileBytes ) {
+			closeFilePart();
+			throw new IOException(new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "file too large: " + filePart.fileName));
+		}
+		ByteBuffer data = ByteBuffer.wrap(buf, offset, len);
+		while( data.hasRemaining() ) {
+			fileCh.write(data);
+		}
+		filePart.size += len;
+	}
+
+	private void endPart() throws IOException {
+		if( null == filePart ) {
+			appendField(partName, fieldBytes.toString());
+		} else {
+			closeFilePart();
+			filePart = null;
+		}
+	}
+
+	private void closeFilePart() throws IOException {
+		if( null != fileCh ) {
+			fileCh.close();
+			fileCh = null;
+		}
+	}
+
+	private void addUrlEncoded(byte b) throws IOException {
+		ByteArray target = inValue ? valueBytes : nameBytes;
+		if( 0 <= pctDigits ) {
+			int digit = Character.digit(b, 16);
+			if( 0 > digit ) {
+				// not an escape after all. keep the bytes as they came, counted against maxFieldBytes
+				addUrlDecoded(target, (byte)'%');
+				if( 1 == pctDigits ) {
+					addUrlDecoded(target, pctFirst);
+				}
+				pctDigits = -1;
+			} else {
+				if( 0 == pctDigits ) {
+					pctFirst = b;
+				}
+				pctValue = pctValue * 16 + digit;
+				if( 2 == ++pctDigits ) {
+					addUrlDecoded(target, (byte)pctValue);
+					pctDigits = -1;
+				}
+				return;
+			}
+		}
+		if( '&' == b ) {
+			if( inValue || 0 < nameBytes.length ) {
+				addField(nameBytes.toString(), valueBytes.toString());
+			}
+			nameBytes.length = 0;
+			valueBytes.length = 0;
+			inValue = false;
+		} else if( '=' == b && !inValue ) {
+			inValue = true;
+		} else if( '%' == b ) {
+			pctDigits = 0;
+			pctValue = 0;
+		} else {
+			addUrlDecoded(target, '+' == b ? (byte)' ' : b);
+		}
+	}
+
+	private void addUrlDecoded(ByteArray target, byte b) throws IOException {
+		if( target.length >= maxFieldBytes ) {
+			throw new IOException(new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "form field too large"));
+		}
+		target.add(b);
+	}
+
+	private void addField(String name, String value) throws IOException {
+		if( ++fieldCnt > maxFieldCount ) {
+			throw new IOException(new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "too many form fields"));
+		}
+		appendField(name, value);
+	}
+
+	private void appendField(String name, String value) {
+		List<String> valueList = form.fieldMap.get(name);
+		if( null == valueList ) {
+			valueList = new ArrayList<>(1);
+			form.fieldMap.put(name, valueList);
+		}
+		valueList.add(value);
+	}
+
+	private static IOException malformed(String message) {
+		return new IOException(new HttpException(HttpResponse.Status.BAD_REQUEST, message));
+	}
+
+	// value of a ; separated parameter such as boundary=... or name="..."
+	static String getHeaderParameter(String headerValue, String name) {
+		int pos = headerValue.indexOf(';');
+		while( 0 <= pos && pos < headerValue.length() ) {
+			int eqIdx = headerValue.indexOf('=', pos + 1);
+			if( 0 > eqIdx ) {
+				return null;
+			}
+			String paramName = headerValue.substring(pos + 1, eqIdx).trim();
+			StringBuilder value = new StringBuilder();
+			int idx = eqIdx + 1;
+			while( idx < headerValue.length() && ' ' == headerValue.charAt(idx) ) {
+				idx++;
+			}
+			if( idx < headerValue.length() && '"' == headerValue.charAt(idx) ) {
+				// quoted string. a ; inside belongs to the value
+				for( idx++; idx < headerValue.length() && '"' != headerValue.charAt(idx); idx++ ) {
+					char ch = headerValue.charAt(idx);
+					if( '\\' == ch && idx + 1 < headerValue.length() ) {
+						ch = headerValue.charAt(++idx);
+					}
+					value.append(ch);
+				}
+				idx = headerValue.indexOf(';', idx);
+			} else {
+				int endIdx = headerValue.indexOf(';', idx);
+				value.append(headerValue, idx, 0 > endIdx ? headerValue.length() : endIdx);
+				idx = endIdx;
+			}
+			if( name.equalsIgnoreCase(paramName) ) {
+				return value.toString().trim();
+			}
+			pos = idx;
+		}
+		return null;
+	}
+
+	// growable byte array, reused between fields
+	private static class ByteArray {
+		byte[] bytes = new byte[64];
+		int length = 0;
+
+		void add(byte b) {
+			if( length == bytes.length ) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+			bytes[length++] = b;
+		}
+		void add(byte[] src, int offset, int len) {
+			if( length + len > bytes.length ) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + len));
+			}
+			System.arraycopy(src, offset, bytes, length, len);
+			length += len;
+		}
+		boolean endsWithBlankLine() {
+			if( 2 == length ) {
+				return '\r' == bytes[0];
+			}
+			return 4 <= length && '\r' == bytes[length - 4] && '\n' == bytes[length - 3] && '\r' == bytes[length - 2];
+		}
+		@Override
+		public String toString() {
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+	}
+}
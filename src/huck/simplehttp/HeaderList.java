@@ -0,0 +1,137 @@
+package huck.simplehttp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// headers as two flat arrays in arrival order. clear() keeps the arrays, so a recycled list allocates nothing
+class HeaderList {
+	private String[] names;
+	private String[] values;
+	private int size;
+
+	public HeaderList() {
+		this(8);
+	}
+	public HeaderList(int capacity) {
+		this.names = new String[Math.max(1, capacity)];
+		this.values = new String[Math.max(1, capacity)];
+		this.size = 0;
+	}
+
+	public static HeaderList fromMap(Map<String, List<String>> headerMap) {
+		HeaderList list = new HeaderList(headerMap.size());
+		for( Map.Entry<String, List<String>> entry : headerMap.entrySet() ) {
+			for( String value : entry.getValue() ) {
+				list.add(entry.getKey(), value);
+			}
+		}
+		return list;
+	}
+
+	public int size() {
+		return size;
+	}
+	public String getName(int idx) {
+		return names[idx];
+	}
+	public String getValue(int idx) {
+		return values[idx];
+	}
+
+	public void add(String name, String value) {
+		if( size == names.length ) {
+			names = Arrays.copyOf(names, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		names[size] = name;
+		values[size] = value;
+		size++;
+	}
+	public void set(String name, String value) {
+		remove(name);
+		add(name, value);
+	}
+	public void remove(String name) {
+		int dst = 0;
+		for( int src = 0; src < size; src++ ) {
+			if( !name.equalsIgnoreCase(names[src]) ) {
+				names[dst] = names[src];
+				values[dst] = values[src];
+				dst++;
+			}
+		}
+		Arrays.fill(names, dst, size, null);
+		Arrays.fill(values, dst, size, null);
+		size = dst;
+	}
+	public void clear() {
+		Arrays.fill(names, 0, size, null);
+		Arrays.fill(values, 0, size, null);
+		size = 0;
+	}
+
+	public String get(String name) {
+		for( int i = 0; i < size; i++ ) {
+			if( name.equals(names[i]) ) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+	public String getIgnoreCase(String name) {
+		for( int i = 0; i < size; i++ ) {
+			if( name.equalsIgnoreCase(names[i]) ) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+	// null when there is none
+	public List<String> getAll(String name) {
+		return getAll(name, false);
+	}
+	public List<String> getAllIgnoreCase(String name) {
+		return getAll(name, true);
+	}
+	private List<String> getAll(String name, boolean ignoreCase) {
+		List<String> valueList = null;
+		for( int i = 0; i < size; i++ ) {
+			if( ignoreCase ? name.equalsIgnoreCase(names[i]) : name.equals(names[i]) ) {
+				if( null == valueList ) {
+					valueList = new ArrayList<>(1);
+				}
+				valueList.add(values[i]);
+			}
+		}
+		return null == valueList ? null : Collections.unmodifiableList(valueList);
+	}
+
+	public HeaderList copy() {
+		HeaderList list = new HeaderList(size);
+		System.arraycopy(names, 0, list.names, 0, size);
+		System.arraycopy(values, 0, list.values, 0, size);
+		list.size = size;
+		return list;
+	}
+
+	// an unmodifiable snapshot grouped by exact name
+	public Map<String, List<String>> toMap() {
+		LinkedHashMap<String, List<String>> map = new LinkedHashMap<>();
+		for( int i = 0; i < size; i++ ) {
+			List<String> valueList = map.get(names[i]);
+			if( null == valueList ) {
+				valueList = new ArrayList<>(1);
+				map.put(names[i], valueList);
+			}
+			valueList.add(values[i]);
+		}
+		for( Map.Entry<String, List<String>> entry : map.entrySet() ) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		return Collections.unmodifiableMap(map);
+	}
+}
@@ -0,0 +1,291 @@
+package huck.simplehttp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+// RFC 7541 header compression
+final class Hpack {
+	private Hpack() {}
+
+	static final String[][] STATIC_TABLE = {
+		{":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+		{":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+		{":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+		{"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+		{"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+		{"content-encoding", ""}, {"content-language", ""}, {"content-length", ""}, {"content-location", ""}, {"content-range", ""},
+		{"content-type", ""}, {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""},
+		{"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+		{"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""},
+		{"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+		{"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""}, {"set-cookie", ""},
+		{"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+		{"www-authenticate", ""},
+	};
+	private static final HashMap<String, Integer> STATIC_NAME_INDEX = new HashMap<>();
+	private static final HashMap<String, Integer> STATIC_ENTRY_INDEX = new HashMap<>();
+	static {
+		for( int i = STATIC_TABLE.length-1; i >= 0; i-- ) {
+			STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], i+1);
+			if( !STATIC_TABLE[i][1].isEmpty() ) {
+				STATIC_ENTRY_INDEX.put(STATIC_TABLE[i][0] + ":" + STATIC_TABLE[i][1], i+1);
+			}
+		}
+	}
+
+	// code lengths of the canonical huffman code in Appendix B, symbol 256 is EOS
+	private static final byte[] HUFFMAN_CODE_LENGTHS = {
+		13,23,28,28,28,28,28,28,28,24,30,28,28,30,28,28,28,28,28,28,28,28,30,28,28,28,28,28,28,28,28,28,
+		6,10,10,12,13,6,8,11,10,10,8,11,8,6,6,6,5,5,5,6,6,6,6,6,6,6,7,8,15,6,12,10,
+		13,6,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,7,8,7,8,13,19,13,14,6,
+		15,5,6,5,6,5,6,6,6,5,7,7,6,6,6,5,6,7,6,5,5,6,7,7,7,7,7,15,11,14,13,28,
+		20,22,20,20,22,22,22,23,22,23,23,23,23,23,24,23,24,24,22,23,24,23,23,23,23,21,22,23,22,23,23,24,
+		22,21,20,22,22,23,23,21,23,22,22,24,21,22,23,23,21,21,22,21,23,22,23,23,20,22,22,22,23,22,22,23,
+		26,26,20,19,22,23,22,25,26,26,26,27,27,26,24,25,19,21,26,27,27,26,27,24,21,21,26,26,28,27,27,27,
+		20,24,20,21,22,21,21,23,22,22,25,25,24,24,26,23,26,27,26,26,27,27,27,27,27,28,27,27,27,27,27,26,
+		30,
+	};
+	private static final int EOS = 256;
+	// decoding tree as int pairs : child >= 0 is a node index, child < 0 is -(symbol+1)
+	private static final int[] HUFFMAN_TREE;
+	static {
+		Integer[] symbols = new Integer[HUFFMAN_CODE_LENGTHS.length];
+		for( int i = 0; i < symbols.length; i++ ) {
+			symbols[i] = i;
+		}
+		Arrays.sort(symbols, (a, b) -> HUFFMAN_CODE_LENGTHS[a] != HUFFMAN_CODE_LENGTHS[b] ? HUFFMAN_CODE_LENGTHS[a] - HUFFMAN_CODE_LENGTHS[b] : a - b);
+		int[] tree = new int[2 * 2 * symbols.length];
+		int nodeCnt = 1;
+		long code = 0;
+		int prevLen = HUFFMAN_CODE_LENGTHS[symbols[0]];
+		for( int i = 0; i < symbols.length; i++ ) {
+			int sym = symbols[i];
+			int len = HUFFMAN_CODE_LENGTHS[sym];
+			if( 0 < i ) {
+				code = (code + 1) << (len - prevLen);
+			}
+			prevLen = len;
+			int node = 0;
+			for( int bit = len-1; bit > 0; bit-- ) {
+				int slot = 2*node + (int)((code >>> bit) & 1);
+				if( 0 == tree[slot] ) {
+					tree[slot] = nodeCnt++;
+				}
+				node = tree[slot];
+			}
+			tree[2*node + (int)(code & 1)] = -(sym+1);
+		}
+		HUFFMAN_TREE = tree;
+	}
+
+	static String huffmanDecode(ByteBuffer src, int len) throws Http2Exception {
+		StringBuilder out = new StringBuilder(len * 8 / 5);
+		int node = 0;
+		int depth = 0;
+		boolean allOnes = true;
+		for( int i = 0; i < len; i++ ) {
+			int b = src.get() & 0xFF;
+			for( int bit = 7; bit >= 0; bit-- ) {
+				int one = (b >>> bit) & 1;
+				int next = HUFFMAN_TREE[2*node + one];
+				depth++;
+				allOnes &= 1 == one;
+				if( 0 > next ) {
+					int sym = -next - 1;
+					if( EOS == sym ) {
+						throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "huffman EOS");
+					}
+					out.append((char)sym);
+					node = 0;
+					depth = 0;
+					allOnes = true;
+				} else {
+					node = next;
+				}
+			}
+		}
+		// padding must be the most significant bits of EOS and shorter than 8 bits
+		if( 7 < depth || !allOnes ) {
+			throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "huffman padding");
+		}
+		return out.toString();
+	}
+
+	static int decodeInt(ByteBuffer src, int first, int prefixBits) throws Http2Exception {
+		int max = (1 << prefixBits) - 1;
+		int value = first & max;
+		if( value < max ) {
+			return value;
+		}
+		int shift = 0;
+		while( true ) {
+			if( !src.hasRemaining() || 28 < shift ) {
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "integer");
+			}
+			int b = src.get() & 0xFF;
+			value += (b & 0x7F) << shift;
+			if( 0 > value ) {
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "integer overflow");
+			}
+			if( 0 == (b & 0x80) ) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	static void encodeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+		int max = (1 << prefixBits) - 1;
+		if( value < max ) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while( 0x80 <= value ) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	static class Decoder {
+		private ArrayDeque<String[]> dynamicTable;
+		private int tableSize;
+		private int maxTableSize;
+		private int settingsMaxTableSize;
+
+		Decoder(int settingsMaxTableSize) {
+			this.dynamicTable = new ArrayDeque<>();
+			this.tableSize = 0;
+			this.maxTableSize = settingsMaxTableSize;
+			this.settingsMaxTableSize = settingsMaxTableSize;
+		}
+
+		// returns name/value pairs in order
+		List<String[]> decode(ByteBuffer block) throws Http2Exception {
+			ArrayList<String[]> headers = new ArrayList<>();
+			boolean headerSeen = false;
+			while( block.hasRemaining() ) {
+				int b = block.get() & 0xFF;
+				if( 0 != (b & 0x80) ) {
+					// indexed
+					int idx = decodeInt(block, b, 7);
+					String[] entry = getEntry(idx);
+					headers.add(entry);
+					headerSeen = true;
+				} else if( 0x40 == (b & 0xC0) ) {
+					// literal with incremental indexing
+					String[] entry = readLiteral(block, b, 6);
+					add(entry);
+					headers.add(entry);
+					headerSeen = true;
+				} else if( 0x20 == (b & 0xE0) ) {
+					// dynamic table size update, only at the beginning of a block
+					int size = decodeInt(block, b, 5);
+					if( headerSeen || size > settingsMaxTableSize ) {
+						throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "table size update");
+					}
+					maxTableSize = size;
+					evict(0);
+				} else {
+					// literal without indexing / never indexed
+					headers.add(readLiteral(block, b, 4));
+					headerSeen = true;
+				}
+			}
+			return headers;
+		}
+
+		private String[] readLiteral(ByteBuffer block, int first, int prefixBits) throws Http2Exception {
+			int nameIdx = decodeInt(block, first, prefixBits);
+			String name = 0 == nameIdx ? readString(block) : getEntry(nameIdx)[0];
+			String value = readString(block);
+			return new String[] {name, value};
+		}
+
+		private String readString(ByteBuffer block) throws Http2Exception {
+			if( !block.hasRemaining() ) {
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "string");
+			}
+			int b = block.get() & 0xFF;
+			int len = decodeInt(block, b, 7);
+			if( len > block.remaining() ) {
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "string length");
+			}
+			if( 0 != (b & 0x80) ) {
+				return huffmanDecode(block, len);
+			}
+			String str = new String(block.array(), block.arrayOffset() + block.position(), len, StandardCharsets.ISO_8859_1);
+			block.position(block.position() + len);
+			return str;
+		}
+
+		private String[] getEntry(int idx) throws Http2Exception {
+			if( 0 < idx && idx <= STATIC_TABLE.length ) {
+				return STATIC_TABLE[idx-1];
+			}
+			int dynamicIdx = idx - STATIC_TABLE.length - 1;
+			if( 0 > dynamicIdx || dynamicIdx >= dynamicTable.size() ) {
+				throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "index " + idx);
+			}
+			Iterator<String[]> it = dynamicTable.iterator();
+			String[] entry = it.next();
+			for( int i = 0; i < dynamicIdx; i++ ) {
+				entry = it.next();
+			}
+			return entry;
+		}
+
+		private void add(String[] entry) {
+			int size = entrySize(entry);
+			evict(size);
+			if( size <= maxTableSize ) {
+				dynamicTable.addFirst(entry);
+				tableSize += size;
+			}
+		}
+
+		private void evict(int room) {
+			while( !dynamicTable.isEmpty() && tableSize + room > maxTableSize ) {
+				tableSize -= entrySize(dynamicTable.removeLast());
+			}
+		}
+
+		private static int entrySize(String[] entry) {
+			return entry[0].length() + entry[1].length() + 32;
+		}
+	}
+
+	// never adds to the dynamic table, so the peer's table size setting doesn't matter
+	static class Encoder {
+		void encodeHeader(ByteArrayOutputStream out, String name, String value) {
+			Integer idx = STATIC_ENTRY_INDEX.get(name + ":" + value);
+			if( null != idx ) {
+				encodeInt(out, 0x80, 7, idx);
+				return;
+			}
+			idx = STATIC_NAME_INDEX.get(name);
+			if( null != idx ) {
+				encodeInt(out, 0x00, 4, idx);
+			} else {
+				out.write(0x00);
+				encodeString(out, name);
+			}
+			encodeString(out, value);
+		}
+
+		private void encodeString(ByteArrayOutputStream out, String str) {
+			byte[] bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+			encodeInt(out, 0x00, 7, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		}
+	}
+}
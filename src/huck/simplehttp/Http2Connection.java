@@ -0,0 +1,1150 @@
+package huck.simplehttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+
+// HTTP/2 over cleartext (RFC 7540). streams are served by the same HttpProcessor, all on the selector thread
+class Http2Connection implements ProtocolHandler {
+	static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	private static final int TYPE_DATA = 0x0;
+	private static final int TYPE_HEADERS = 0x1;
+	private static final int TYPE_PRIORITY = 0x2;
+	private static final int TYPE_RST_STREAM = 0x3;
+	private static final int TYPE_SETTINGS = 0x4;
+	private static final int TYPE_PUSH_PROMISE = 0x5;
+	private static final int TYPE_PING = 0x6;
+	private static final int TYPE_GOAWAY = 0x7;
+	private static final int TYPE_WINDOW_UPDATE = 0x8;
+	private static final int TYPE_CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	private static final int DEFAULT_WINDOW_SIZE = 65535;
+	private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+	private static final int LOCAL_MAX_FRAME_SIZE = 16384;
+	private static final int LOCAL_MAX_CONCURRENT_STREAMS = 100;
+	private static final int LOCAL_HEADER_TABLE_SIZE = 4096;
+	private static final int MAX_HEADER_BLOCK_SIZE = 64*1024;
+	private static final int FRAME_HEADER_SIZE = 9;
+
+	private HttpProcessor processor;
+	private int port;
+	private Executor loopExecutor;
+	private Runnable writeRequester;
+	private SlowRequestLog slowRequestLog;
+
+	private ByteBuffer readBuf;
+	private boolean prefaceReceived;
+	private Hpack.Decoder decoder;
+	private Hpack.Encoder encoder;
+
+	private HashMap<Integer, Stream> streamMap;
+	private ArrayDeque<Stream> sendQueue;
+	private int lastStreamId;
+	private int headerBlockStreamId;
+	private boolean headerBlockEndStream;
+	private ByteArrayOutputStream headerBlock;
+	private long headerBlockStartNanos;
+
+	private int peerInitialWindowSize;
+	private int peerMaxFrameSize;
+	private long connSendWindow;
+	private long connRecvWindow;
+
+	private ArrayDeque<ByteBuffer> frameQueue;
+	private long queuedFrameBytes;
+	private ByteBuffer writeBuf;
+	private boolean goAwaySent;
+	private boolean goAwayReceived;
+	private boolean closing;
+	private MemoryBudget.Account account;
+	private ByteBufferPool fileBufferPool;
+	private HttpRequestParser.RequestFilter requestFilter;
+
+	private Http2Connection(HttpProcessor processor, int port, Executor loopExecutor, Runnable writeRequester, SlowRequestLog slowRequestLog) {
+		this.processor = processor;
+		this.port = port;
+		this.loopExecutor = loopExecutor;
+		this.writeRequester = writeRequester;
+		this.slowRequestLog = slowRequestLog;
+
+		this.readBuf = ByteBuffer.allocate(LOCAL_MAX_FRAME_SIZE + FRAME_HEADER_SIZE);
+		this.prefaceReceived = false;
+		this.decoder = new Hpack.Decoder(LOCAL_HEADER_TABLE_SIZE);
+		this.encoder = new Hpack.Encoder();
+
+		this.streamMap = new HashMap<>();
+		this.sendQueue = new ArrayDeque<>();
+		this.lastStreamId = 0;
+		this.headerBlockStreamId = 0;
+		this.headerBlockEndStream = false;
+		this.headerBlock = new ByteArrayOutputStream();
+		this.headerBlockStartNanos = 0;
+
+		this.peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+		this.peerMaxFrameSize = 16384;
+		this.connSendWindow = DEFAULT_WINDOW_SIZE;
+		this.connRecvWindow = DEFAULT_WINDOW_SIZE;
+
+		this.frameQueue = new ArrayDeque<>();
+		this.queuedFrameBytes = 0;
+		this.writeBuf = ByteBuffer.allocate(4 * (LOCAL_MAX_FRAME_SIZE + FRAME_HEADER_SIZE));
+		this.writeBuf.limit(0);
+		this.goAwaySent = false;
+		this.goAwayReceived = false;
+		this.closing = false;
+		this.account = null;
+		this.fileBufferPool = null;
+		this.requestFilter = null;
+
+		// server connection preface
+		ByteBuffer settings = ByteBuffer.allocate(6);
+		settings.putShort((short)SETTINGS_MAX_CONCURRENT_STREAMS).putInt(LOCAL_MAX_CONCURRENT_STREAMS);
+		queueFrame(TYPE_SETTINGS, 0, 0, settings.array(), 0, 6);
+	}
+
+	// prior knowledge : initialBytes start with the client preface
+	static Http2Connection startPriorKnowledge(HttpProcessor processor, int port, Executor loopExecutor, Runnable writeRequester, SlowRequestLog slowRequestLog) {
+		return new Http2Connection(processor, port, loopExecutor, writeRequester, slowRequestLog);
+	}
+
+	// Upgrade: h2c. the upgrade request becomes stream 1, already half-closed by the client
+	static Http2Connection startUpgrade(HttpProcessor processor, int port, Executor loopExecutor, Runnable writeRequester, SlowRequestLog slowRequestLog, HttpRequest req, String http2Settings) throws Http2Exception {
+		Http2Connection conn = new Http2Connection(processor, port, loopExecutor, writeRequester, slowRequestLog);
+		byte[] settings;
+		try {
+			settings = Base64.getUrlDecoder().decode(http2Settings.trim());
+		} catch( IllegalArgumentException ex ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HTTP2-Settings");
+		}
+		conn.applySettings(ByteBuffer.wrap(settings));
+		Stream stream = conn.new Stream(1);
+		stream.request = req;
+		stream.remoteClosed = true;
+		conn.streamMap.put(1, stream);
+		conn.lastStreamId = 1;
+		conn.dispatch(stream);
+		return conn;
+	}
+
+	static boolean isPrefaceStart(ByteBuffer buf) {
+		int len = Math.min(buf.remaining(), PREFACE.length);
+		if( 4 > len ) {
+			return false;
+		}
+		for( int i = 0; i < len; i++ ) {
+			if( buf.get(buf.position() + i) != PREFACE[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// feeds the bytes that were already read from the socket
+	int start(ByteBuffer initialBytes) {
+		readBuf.put(initialBytes);
+		return processInput();
+	}
+
+	@Override
+	public int processRead(ByteChannel sockCh) throws IOException {
+		if( 0 > sockCh.read(readBuf) ) {
+			return -1;
+		}
+		return processInput();
+	}
+
+	@Override
+	public int processWrite(ByteChannel sockCh) throws IOException {
+		while( true ) {
+			if( writeBuf.hasRemaining() ) {
+				sockCh.write(writeBuf);
+				if( writeBuf.hasRemaining() ) {
+					return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+				}
+			}
+			if( !fillWriteBuf() ) {
+				break;
+			}
+		}
+		return getInterestOps();
+	}
+
+	// checks each new stream's request once its headers are decoded, as the http/1.1 parser does
+	void setRequestFilter(HttpRequestParser.RequestFilter requestFilter) {
+		this.requestFilter = requestFilter;
+	}
+
+	// AsyncFileBody responses read ahead into its buffers. set before setMemoryAccount
+	void setFileBufferPool(ByteBufferPool fileBufferPool) {
+		this.fileBufferPool = fileBufferPool;
+	}
+
+	// the frame buffers, the header table and the queued frames are charged to the connection. streaming response bodies
+	// charge their queues as well, file bodies their buffers
+	@Override
+	public void setMemoryAccount(MemoryBudget.Account account) {
+		this.account = account;
+		if( null == account ) {
+			return;
+		}
+		account.reserve(MemoryBudget.Category.HTTP2, readBuf.capacity() + writeBuf.capacity() + LOCAL_HEADER_TABLE_SIZE);
+		if( 0 < queuedFrameBytes ) {
+			account.reserve(MemoryBudget.Category.SEND_QUEUE, queuedFrameBytes);
+		}
+		for( Stream stream : streamMap.values() ) {
+			if( null != stream.streamingBody ) {
+				stream.streamingBody.setMemoryAccount(account);
+			}
+			if( stream.bodyChannel instanceof AsyncFileBody ) {
+				((AsyncFileBody)stream.bodyChannel).setMemoryAccount(account, fileBufferPool);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		for( Stream stream : new ArrayList<>(streamMap.values()) ) {
+			stream.close();
+		}
+		streamMap.clear();
+		sendQueue.clear();
+	}
+
+	private int getInterestOps() {
+		if( writeBuf.hasRemaining() || !frameQueue.isEmpty() || (!sendQueue.isEmpty() && 0 < connSendWindow) ) {
+			return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		}
+		if( closing || ((goAwaySent || goAwayReceived) && streamMap.isEmpty()) ) {
+			return -1;
+		}
+		return SelectionKey.OP_READ;
+	}
+
+	private int processInput() {
+		readBuf.flip();
+		try {
+			if( !prefaceReceived ) {
+				if( PREFACE.length > readBuf.remaining() ) {
+					readBuf.compact();
+					return getInterestOps();
+				}
+				for( int i = 0; i < PREFACE.length; i++ ) {
+					if( readBuf.get() != PREFACE[i] ) {
+						throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "invalid preface");
+					}
+				}
+				prefaceReceived = true;
+			}
+			while( !closing && FRAME_HEADER_SIZE <= readBuf.remaining() ) {
+				int start = readBuf.position();
+				int length = ((readBuf.get(start) & 0xFF) << 16) | ((readBuf.get(start+1) & 0xFF) << 8) | (readBuf.get(start+2) & 0xFF);
+				if( LOCAL_MAX_FRAME_SIZE < length ) {
+					throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "frame too large");
+				}
+				if( FRAME_HEADER_SIZE + length > readBuf.remaining() ) {
+					break;
+				}
+				int type = readBuf.get(start+3) & 0xFF;
+				int flags = readBuf.get(start+4) & 0xFF;
+				int streamId = readBuf.getInt(start+5) & 0x7FFFFFFF;
+				readBuf.position(start + FRAME_HEADER_SIZE);
+				ByteBuffer payload = readBuf.slice();
+				payload.limit(length);
+				readBuf.position(start + FRAME_HEADER_SIZE + length);
+				try {
+					handleFrame(type, flags, streamId, payload);
+				} catch( Http2Exception ex ) {
+					if( 0 == ex.getStreamId() ) {
+						throw ex;
+					}
+					resetStream(ex.getStreamId(), ex.getErrorCode());
+				}
+			}
+		} catch( Http2Exception ex ) {
+			Logger.getLogger("http").info("HTTP2: connection error " + ex.getErrorCode() + "\t" + ex.getMessage());
+			goAway(ex.getErrorCode(), ex.getMessage());
+			closing = true;
+		}
+		if( closing ) {
+			readBuf.clear();
+		} else {
+			readBuf.compact();
+		}
+		return getInterestOps();
+	}
+
+	private void handleFrame(int type, int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+		if( 0 != headerBlockStreamId && (TYPE_CONTINUATION != type || headerBlockStreamId != streamId) ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "CONTINUATION expected");
+		}
+		switch( type ) {
+		case TYPE_DATA : handleData(flags, streamId, payload); break;
+		case TYPE_HEADERS : handleHeaders(flags, streamId, payload); break;
+		case TYPE_CONTINUATION : handleContinuation(flags, streamId, payload); break;
+		case TYPE_PRIORITY :
+			if( 0 == streamId ) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+			}
+			if( 5 != payload.remaining() ) {
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "PRIORITY size");
+			}
+			break;
+		case TYPE_RST_STREAM : {
+			if( 0 == streamId || streamId > lastStreamId ) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream");
+			}
+			if( 4 != payload.remaining() ) {
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM size");
+			}
+			Stream stream = streamMap.remove(streamId);
+			if( null != stream ) {
+				stream.close();
+			}
+			break;
+		}
+		case TYPE_SETTINGS :
+			if( 0 != streamId ) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+			}
+			if( 0 != (flags & FLAG_ACK) ) {
+				if( 0 != payload.remaining() ) {
+					throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ack size");
+				}
+			} else {
+				applySettings(payload);
+				queueFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+			}
+			break;
+		case TYPE_PUSH_PROMISE :
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from client");
+		case TYPE_PING :
+			if( 0 != streamId ) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on stream " + streamId);
+			}
+			if( 8 != payload.remaining() ) {
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "PING size");
+			}
+			if( 0 == (flags & FLAG_ACK) ) {
+				byte[] opaque = new byte[8];
+				payload.get(opaque);
+				queueFrame(TYPE_PING, FLAG_ACK, 0, opaque, 0, 8);
+			}
+			break;
+		case TYPE_GOAWAY :
+			if( 0 != streamId ) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+			}
+			goAwayReceived = true;
+			break;
+		case TYPE_WINDOW_UPDATE : handleWindowUpdate(streamId, payload); break;
+		default :
+			// unknown frame types are ignored
+		}
+	}
+
+	private void handleData(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+		if( 0 == streamId ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+		}
+		// the whole frame counts against both windows, padding included
+		int frameLength = payload.remaining();
+		if( frameLength > connRecvWindow ) {
+			throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "connection window exceeded");
+		}
+		connRecvWindow -= frameLength;
+		stripPadding(flags, payload);
+		// the connection window is given back right away so that one slow body processor doesn't stall the other streams.
+		// the stream window bounds what each stream holds
+		if( 0 < frameLength ) {
+			queueWindowUpdate(0, frameLength);
+		}
+		Stream stream = streamMap.get(streamId);
+		if( null == stream || stream.remoteClosed ) {
+			if( streamId > lastStreamId ) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream");
+			}
+			throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA on closed stream");
+		}
+		if( frameLength > stream.recvWindow ) {
+			throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "stream window exceeded");
+		}
+		stream.recvWindow -= frameLength;
+		boolean endStream = 0 != (flags & FLAG_END_STREAM);
+		if( !endStream ) {
+			stream.releaseWindow(frameLength - payload.remaining());
+		}
+		stream.receiveBody(payload, endStream);
+	}
+
+	private void handleHeaders(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+		if( 0 == streamId || 0 == (streamId & 1) ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+		}
+		stripPadding(flags, payload);
+		if( 0 != (flags & FLAG_PRIORITY) ) {
+			if( 5 > payload.remaining() ) {
+				throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "HEADERS priority");
+			}
+			payload.position(payload.position() + 5);
+		}
+		Stream stream = streamMap.get(streamId);
+		if( null == stream ) {
+			if( streamId <= lastStreamId ) {
+				throw new Http2Exception(Http2Exception.STREAM_CLOSED, "HEADERS on closed stream");
+			}
+			lastStreamId = streamId;
+		} else if( stream.remoteClosed ) {
+			throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "HEADERS on half-closed stream");
+		} else if( 0 == (flags & FLAG_END_STREAM) ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "trailers without END_STREAM");
+		}
+		headerBlock.reset();
+		headerBlockStreamId = streamId;
+		headerBlockStartNanos = System.nanoTime();
+		headerBlockEndStream = 0 != (flags & FLAG_END_STREAM);
+		appendHeaderBlock(payload);
+		if( 0 != (flags & FLAG_END_HEADERS) ) {
+			endHeaderBlock();
+		}
+	}
+
+	private void handleContinuation(int flags, int streamId, ByteBuffer payload) throws Http2Exception {
+		if( 0 == headerBlockStreamId ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "unexpected CONTINUATION");
+		}
+		appendHeaderBlock(payload);
+		if( 0 != (flags & FLAG_END_HEADERS) ) {
+			endHeaderBlock();
+		}
+	}
+
+	private void appendHeaderBlock(ByteBuffer payload) throws Http2Exception {
+		if( MAX_HEADER_BLOCK_SIZE < headerBlock.size() + payload.remaining() ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "header block too large");
+		}
+		headerBlock.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+	}
+
+	private void endHeaderBlock() throws Http2Exception {
+		int streamId = headerBlockStreamId;
+		headerBlockStreamId = 0;
+		// always decoded to keep the HPACK state in sync
+		List<String[]> headers = decoder.decode(ByteBuffer.wrap(headerBlock.toByteArray()));
+		Stream stream = streamMap.get(streamId);
+		if( null != stream ) {
+			// trailers are dropped
+			stream.receiveBody(ByteBuffer.allocate(0), true);
+			return;
+		}
+		if( goAwaySent ) {
+			return;
+		}
+		if( LOCAL_MAX_CONCURRENT_STREAMS <= streamMap.size() ) {
+			throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "too many streams");
+		}
+		stream = new Stream(streamId);
+		streamMap.put(streamId, stream);
+		try {
+			HttpRequestData data = toRequestData(streamId, headers);
+			data.parseStartNanos = headerBlockStartNanos;
+			data.headerEndNanos = System.nanoTime();
+			data.headerBytes = headerBlock.size();
+			stream.request = new HttpRequest(data);
+		} catch( HttpException ex ) {
+			stream.remoteClosed = headerBlockEndStream;
+			stream.bodyRejected = true;
+			stream.startResponse(null, ex);
+			return;
+		}
+		Logger.getLogger("http").info("ACCESS: " + stream.request.getMethod() + " " + stream.request.getRequestURI() + "\t" + stream.request.getContentLength() + " bytes\tHTTP/2 stream " + streamId);
+		HttpEvents.requestParsed(stream.request, "HTTP/2");
+		if( null != requestFilter ) {
+			try {
+				requestFilter.check(stream.request);
+			} catch( HttpException ex ) {
+				stream.remoteClosed = headerBlockEndStream;
+				stream.bodyRejected = true;
+				stream.startResponse(null, ex);
+				return;
+			}
+		}
+		if( !headerBlockEndStream ) {
+			// a body follows. the processor may turn it down from the headers alone
+			try {
+				boolean expects = HttpRequestParser.checkExpect(stream.request);
+				processor.checkBeforeBody(stream.request);
+				if( expects ) {
+					queueInterimHeaders(streamId, HttpResponse.Status.CONTINUE);
+				}
+			} catch( HttpException ex ) {
+				stream.bodyRejected = true;
+				stream.startResponse(null, ex);
+				return;
+			}
+		}
+		stream.receiveBody(ByteBuffer.allocate(0), headerBlockEndStream);
+	}
+
+	private HttpRequestData toRequestData(int streamId, List<String[]> headers) throws Http2Exception, HttpException {
+		HttpRequestData data = new HttpRequestData();
+		data.port = port;
+		data.version = "HTTP/2.0";
+		String method = null;
+		String scheme = null;
+		String path = null;
+		String authority = null;
+		boolean regularHeaderSeen = false;
+		for( String[] header : headers ) {
+			String name = header[0];
+			String value = header[1];
+			if( name.startsWith(":") ) {
+				if( regularHeaderSeen ) {
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "pseudo header after regular header");
+				}
+				String prev;
+				switch( name ) {
+				case ":method" : prev = method; method = value; break;
+				case ":scheme" : prev = scheme; scheme = value; break;
+				case ":path" : prev = path; path = value; break;
+				case ":authority" : prev = authority; authority = value; break;
+				default : throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "unknown pseudo header " + name);
+				}
+				if( null != prev ) {
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "duplicated " + name);
+				}
+				continue;
+			}
+			regularHeaderSeen = true;
+			if( !name.equals(name.toLowerCase(Locale.ROOT)) ) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "uppercase header name");
+			}
+			switch( name ) {
+			case "connection" :
+			case "keep-alive" :
+			case "proxy-connection" :
+			case "transfer-encoding" :
+			case "upgrade" :
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "connection specific header " + name);
+			case "te" :
+				if( !"trailers".equals(value) ) {
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "te: " + value);
+				}
+				break;
+			default :
+			}
+			HttpRequestParser.addHeader(data, name, value);
+		}
+		if( null == method || null == scheme || null == path || path.isEmpty() ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "missing pseudo header");
+		}
+		HttpRequestParser.checkMethod(method);
+		data.method = method;
+		HttpRequestParser.parseTarget(data, path);
+		if( null != authority && !authority.isEmpty() ) {
+			data.host = authority;
+		}
+		return data;
+	}
+
+	private void applySettings(ByteBuffer payload) throws Http2Exception {
+		if( 0 != payload.remaining() % 6 ) {
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS size");
+		}
+		while( payload.hasRemaining() ) {
+			int id = payload.getShort() & 0xFFFF;
+			int value = payload.getInt();
+			switch( id ) {
+			case SETTINGS_HEADER_TABLE_SIZE :
+				// the encoder never uses the dynamic table
+				break;
+			case SETTINGS_ENABLE_PUSH :
+				if( 0 != value && 1 != value ) {
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "ENABLE_PUSH");
+				}
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE :
+				if( 0 > value ) {
+					throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE");
+				}
+				int delta = value - peerInitialWindowSize;
+				peerInitialWindowSize = value;
+				for( Stream stream : streamMap.values() ) {
+					stream.sendWindow += delta;
+					if( MAX_WINDOW_SIZE < stream.sendWindow ) {
+						throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "window overflow");
+					}
+					stream.scheduleIfUnblocked();
+				}
+				break;
+			case SETTINGS_MAX_FRAME_SIZE :
+				if( 16384 > value || 16777215 < value ) {
+					throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "MAX_FRAME_SIZE");
+				}
+				peerMaxFrameSize = value;
+				break;
+			default :
+			}
+		}
+	}
+
+	private void handleWindowUpdate(int streamId, ByteBuffer payload) throws Http2Exception {
+		if( 4 != payload.remaining() ) {
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE size");
+		}
+		int increment = payload.getInt() & 0x7FFFFFFF;
+		if( 0 == streamId ) {
+			if( 0 == increment ) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE 0");
+			}
+			connSendWindow += increment;
+			if( MAX_WINDOW_SIZE < connSendWindow ) {
+				throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "window overflow");
+			}
+			return;
+		}
+		if( 0 == increment ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "WINDOW_UPDATE 0");
+		}
+		Stream stream = streamMap.get(streamId);
+		if( null == stream ) {
+			if( streamId > lastStreamId ) {
+				throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+			}
+			return;
+		}
+		stream.sendWindow += increment;
+		if( MAX_WINDOW_SIZE < stream.sendWindow ) {
+			throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "window overflow");
+		}
+		stream.scheduleIfUnblocked();
+	}
+
+	private static void stripPadding(int flags, ByteBuffer payload) throws Http2Exception {
+		if( 0 == (flags & FLAG_PADDED) ) {
+			return;
+		}
+		if( !payload.hasRemaining() ) {
+			throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "padding");
+		}
+		int padLength = payload.get() & 0xFF;
+		if( padLength > payload.remaining() ) {
+			throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "padding");
+		}
+		payload.limit(payload.limit() - padLength);
+	}
+
+	private void queueFrame(int type, int flags, int streamId, byte[] payload, int offset, int len) {
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + len);
+		putFrameHeader(frame, len, type, flags, streamId);
+		frame.put(payload, offset, len);
+		frame.flip();
+		frameQueue.add(frame);
+		queuedFrameBytes += frame.remaining();
+		if( null != account ) {
+			account.reserve(MemoryBudget.Category.SEND_QUEUE, frame.remaining());
+		}
+	}
+
+	private static void putFrameHeader(ByteBuffer buf, int len, int type, int flags, int streamId) {
+		buf.put((byte)(len >>> 16));
+		buf.put((byte)(len >>> 8));
+		buf.put((byte)len);
+		buf.put((byte)type);
+		buf.put((byte)flags);
+		buf.putInt(streamId & 0x7FFFFFFF);
+	}
+
+	private void queueInterimHeaders(int streamId, HttpResponse.Status status) {
+		ByteArrayOutputStream block = new ByteArrayOutputStream();
+		encoder.encodeHeader(block, ":status", status.code());
+		byte[] headerBytes = block.toByteArray();
+		queueFrame(TYPE_HEADERS, FLAG_END_HEADERS, streamId, headerBytes, 0, headerBytes.length);
+	}
+
+	private void queueWindowUpdate(int streamId, int increment) {
+		if( 0 == streamId ) {
+			connRecvWindow += increment;
+		}
+		byte[] payload = new byte[4];
+		ByteBuffer.wrap(payload).putInt(increment);
+		queueFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+	}
+
+	private void resetStream(int streamId, int errorCode) {
+		byte[] payload = new byte[4];
+		ByteBuffer.wrap(payload).putInt(errorCode);
+		queueFrame(TYPE_RST_STREAM, 0, streamId, payload, 0, 4);
+		Stream stream = streamMap.remove(streamId);
+		if( null != stream ) {
+			stream.close();
+		}
+	}
+
+	private void goAway(int errorCode, String debug) {
+		if( goAwaySent ) {
+			return;
+		}
+		goAwaySent = true;
+		byte[] debugBytes = null == debug ? new byte[0] : debug.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = ByteBuffer.allocate(8 + debugBytes.length);
+		payload.putInt(lastStreamId).putInt(errorCode).put(debugBytes);
+		queueFrame(TYPE_GOAWAY, 0, 0, payload.array(), 0, payload.capacity());
+	}
+
+	// fills writeBuf with queued frames first, then one DATA frame per ready stream in turn
+	private boolean fillWriteBuf() throws IOException {
+		writeBuf.clear();
+		while( !frameQueue.isEmpty() && frameQueue.peek().remaining() <= writeBuf.remaining() ) {
+			ByteBuffer frame = frameQueue.poll();
+			queuedFrameBytes -= frame.remaining();
+			if( null != account ) {
+				account.release(MemoryBudget.Category.SEND_QUEUE, frame.remaining());
+			}
+			writeBuf.put(frame);
+		}
+		int rounds = frameQueue.isEmpty() ? sendQueue.size() : 0;
+		while( 0 < rounds-- && FRAME_HEADER_SIZE < writeBuf.remaining() && 0 < connSendWindow ) {
+			Stream stream = sendQueue.poll();
+			stream.queued = false;
+			if( null == stream.bodyChannel ) {
+				continue;
+			}
+			if( 0 >= stream.sendWindow ) {
+				// resumed by WINDOW_UPDATE
+				continue;
+			}
+			long max = Math.min(Math.min(writeBuf.remaining() - FRAME_HEADER_SIZE, peerMaxFrameSize), Math.min(stream.sendWindow, connSendWindow));
+			if( 0 <= stream.remainingLength ) {
+				max = Math.min(max, stream.remainingLength);
+			}
+			int headerPos = writeBuf.position();
+			int orgLimit = writeBuf.limit();
+			writeBuf.position(headerPos + FRAME_HEADER_SIZE);
+			writeBuf.limit(headerPos + FRAME_HEADER_SIZE + (int)max);
+			int readLen = 0 < max ? stream.bodyChannel.read(writeBuf) : -1;
+			writeBuf.limit(orgLimit);
+			if( 0 < readLen ) {
+				stream.sentBytes += readLen;
+				stream.sendWindow -= readLen;
+				connSendWindow -= readLen;
+				boolean endStream = false;
+				if( 0 <= stream.remainingLength ) {
+					stream.remainingLength -= readLen;
+					endStream = 0 == stream.remainingLength;
+				}
+				int endPos = writeBuf.position();
+				writeBuf.position(headerPos);
+				putFrameHeader(writeBuf, readLen, TYPE_DATA, endStream ? FLAG_END_STREAM : 0, stream.id);
+				writeBuf.position(endPos);
+				if( endStream ) {
+					stream.finishResponse();
+				} else {
+					stream.schedule();
+				}
+			} else if( 0 == readLen ) {
+				writeBuf.position(headerPos);
+				if( stream.notifying ) {
+					stream.waitingForData = true;
+				} else {
+					stream.schedule();
+				}
+			} else {
+				writeBuf.position(headerPos);
+				putFrameHeader(writeBuf, 0, TYPE_DATA, FLAG_END_STREAM, stream.id);
+				stream.finishResponse();
+			}
+		}
+		writeBuf.flip();
+		return writeBuf.hasRemaining();
+	}
+
+	private void dispatch(final Stream stream) {
+		final HttpRequest req = stream.request;
+		req.setArrivalNanos(System.nanoTime());
+		req.setHandlerStartNanos(System.nanoTime());
+		HttpEvents.HandlerInvocation handlerEvent = HttpEvents.beginHandler();
+		CompletionStage<HttpResponse> stage = processor.processAsync(req);
+		final CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+		stage.whenComplete((res, err) -> {
+			req.setHandlerEndNanos(System.nanoTime());
+			if( null != err ) result.completeExceptionally(err);
+			else result.complete(res);
+		});
+		HttpEvents.endHandler(handlerEvent, req, !result.isDone());
+		if( result.isDone() ) {
+			stream.completeResponse(result);
+		} else {
+			stream.pendingResponse = stage;
+			result.whenComplete((res, err) -> loopExecutor.execute(() -> {
+				if( stream.closed ) {
+					return;
+				}
+				stream.pendingResponse = null;
+				stream.completeResponse(result);
+				writeRequester.run();
+			}));
+		}
+	}
+
+	private class Stream {
+		int id;
+		HttpRequest request;
+		WritableByteChannel bodyProcessor;
+		long recvWindow;
+		ArrayDeque<ByteBuffer> pendingBody;
+		long pendingBodyBytes;
+		boolean remoteClosed;
+		boolean bodyRejected;
+		boolean responseStarted;
+		CompletionStage<HttpResponse> pendingResponse;
+
+		ReadableByteChannel bodyChannel;
+		StreamingBody streamingBody;
+		boolean notifying;
+		boolean waitingForData;
+		long remainingLength;
+		long sendWindow;
+		boolean queued;
+		boolean closed;
+		String statusCode;
+		long writeStartNanos;
+		long sentBytes;
+
+		Stream(int id) {
+			this.id = id;
+			this.request = null;
+			this.bodyProcessor = null;
+			this.recvWindow = DEFAULT_WINDOW_SIZE;
+			this.pendingBody = new ArrayDeque<>();
+			this.pendingBodyBytes = 0;
+			this.remoteClosed = false;
+			this.bodyRejected = false;
+			this.responseStarted = false;
+			this.pendingResponse = null;
+			this.bodyChannel = null;
+			this.streamingBody = null;
+			this.notifying = false;
+			this.waitingForData = false;
+			this.remainingLength = -1;
+			this.sendWindow = peerInitialWindowSize;
+			this.queued = false;
+			this.closed = false;
+			this.statusCode = null;
+			this.writeStartNanos = 0;
+			this.sentBytes = 0;
+		}
+
+		// a body processor that is full keeps the rest of the frame here. the stream window for those bytes is held
+		// until its ready listener fires and they are written, so the client can't send more than one window ahead
+		void receiveBody(ByteBuffer data, boolean endStream) throws Http2Exception {
+			if( endStream ) {
+				remoteClosed = true;
+			}
+			try {
+				if( 0 < data.remaining() && bodyRejected ) {
+					releaseWindow(data.remaining());
+				} else if( 0 < data.remaining() ) {
+					if( null == bodyProcessor ) {
+						bodyProcessor = processor.getBodyProcessor(request);
+						if( bodyProcessor instanceof NotifyingWritableChannel ) {
+							((NotifyingWritableChannel)bodyProcessor).setReadyListener(() -> loopExecutor.execute(this::drainBody));
+						}
+					}
+					if( null == bodyProcessor ) {
+						throw new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "body messege is not allowed");
+					}
+					if( !pendingBody.isEmpty() || !writeBody(data) ) {
+						holdBody(data);
+					}
+				}
+				if( remoteClosed && pendingBody.isEmpty() ) {
+					endBody();
+				}
+			} catch( Exception ex ) {
+				rejectBody(ex);
+			}
+		}
+
+		// ready listener of the body processor, on the loop thread
+		void drainBody() {
+			if( closed || null == bodyProcessor ) {
+				return;
+			}
+			try {
+				while( !pendingBody.isEmpty() ) {
+					ByteBuffer head = pendingBody.peek();
+					int len = head.remaining();
+					boolean written = writeBody(head);
+					dropPendingBytes(len - head.remaining());
+					if( !written ) {
+						break;
+					}
+					pendingBody.poll();
+				}
+				if( remoteClosed && pendingBody.isEmpty() ) {
+					endBody();
+				}
+			} catch( Exception ex ) {
+				rejectBody(ex);
+			}
+			writeRequester.run();
+		}
+
+		// gives consumed body bytes back to the client. nothing more is expected after END_STREAM
+		void releaseWindow(int len) {
+			if( 0 < len && !remoteClosed && !closed ) {
+				recvWindow += len;
+				queueWindowUpdate(id, len);
+			}
+		}
+
+		// false when the body processor is full and data still has bytes left
+		private boolean writeBody(ByteBuffer data) throws IOException {
+			int len = data.remaining();
+			while( 0 < data.remaining() ) {
+				if( 0 == bodyProcessor.write(data) && bodyProcessor instanceof NotifyingWritableChannel ) {
+					break;
+				}
+			}
+			releaseWindow(len - data.remaining());
+			return !data.hasRemaining();
+		}
+
+		// data is a slice of the read buffer, so the rest is copied
+		private void holdBody(ByteBuffer data) {
+			ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+			copy.put(data);
+			copy.flip();
+			pendingBody.add(copy);
+			pendingBodyBytes += copy.remaining();
+			if( null != account ) {
+				account.reserve(MemoryBudget.Category.HTTP2, copy.remaining());
+			}
+		}
+
+		private void dropPendingBytes(long len) {
+			pendingBodyBytes -= len;
+			if( null != account && 0 < len ) {
+				account.release(MemoryBudget.Category.HTTP2, len);
+			}
+		}
+
+		private void endBody() throws IOException {
+			if( null != bodyProcessor ) {
+				bodyProcessor.close();
+				bodyProcessor = null;
+			}
+			if( !bodyRejected ) {
+				dispatch(this);
+			} else if( closed ) {
+				streamMap.remove(id);
+			}
+		}
+
+		// the held bytes are dropped and given back, so the client can finish sending while it reads the error
+		private void rejectBody(Exception ex) {
+			bodyRejected = true;
+			closeBodyProcessor();
+			releaseWindow((int)pendingBodyBytes);
+			clearPendingBody();
+			startResponse(null, ex);
+		}
+
+		private void clearPendingBody() {
+			dropPendingBytes(pendingBodyBytes);
+			pendingBody.clear();
+		}
+
+		void completeResponse(CompletableFuture<HttpResponse> result) {
+			try {
+				HttpResponse res = result.join();
+				if( null == res ) {
+					throw new HttpException(HttpResponse.Status.NOT_FOUND, "Not Found: " + request.getRequestPath());
+				}
+				startResponse(res, null);
+			} catch( CompletionException ex ) {
+				Throwable cause = ex.getCause();
+				startResponse(null, cause instanceof Exception ? (Exception)cause : ex);
+			} catch( Exception ex ) {
+				startResponse(null, ex);
+			}
+		}
+
+		void startResponse(HttpResponse res, Exception error) {
+			if( responseStarted || closed ) {
+				return;
+			}
+			responseStarted = true;
+			HttpResponseData data;
+			ReadableByteChannel body;
+			try {
+				if( null != error ) {
+					res = HttpServer.createErrorResponse(error);
+				}
+				data = res.getResponseData();
+				if( data.bodySupplier instanceof StreamingBody ) {
+					streamingBody = (StreamingBody)data.bodySupplier;
+					if( null != account ) {
+						streamingBody.setMemoryAccount(account);
+					}
+				}
+				body = 0 == data.contentLength ? null : data.bodySupplier.get();
+			} catch( Exception ex ) {
+				Logger.getLogger("http").fatal(ex, ex);
+				resetStream(id, Http2Exception.INTERNAL_ERROR);
+				return;
+			}
+
+			ByteArrayOutputStream block = new ByteArrayOutputStream();
+			encoder.encodeHeader(block, ":status", data.statusCode);
+			if( 0 <= data.contentLength ) {
+				encoder.encodeHeader(block, "content-length", Long.toString(data.contentLength));
+			}
+			for( int i = 0; i < data.header.size(); i++ ) {
+				String name = data.header.getName(i).toLowerCase(Locale.ROOT);
+				if( "upgrade".equals(name) || "keep-alive".equals(name) ) {
+					continue;
+				}
+				encoder.encodeHeader(block, name, data.header.getValue(i));
+			}
+			byte[] headerBytes = block.toByteArray();
+			statusCode = data.statusCode;
+			writeStartNanos = System.nanoTime();
+			sentBytes = headerBytes.length;
+			boolean endStream = null == body;
+			int maxFrame = Math.min(peerMaxFrameSize, LOCAL_MAX_FRAME_SIZE);
+			int offset = 0;
+			boolean first = true;
+			do {
+				int len = Math.min(maxFrame, headerBytes.length - offset);
+				boolean last = offset + len >= headerBytes.length;
+				int flags = (last ? FLAG_END_HEADERS : 0) | (first && endStream ? FLAG_END_STREAM : 0);
+				queueFrame(first ? TYPE_HEADERS : TYPE_CONTINUATION, flags, id, headerBytes, offset, len);
+				offset += len;
+				first = false;
+			} while( offset < headerBytes.length );
+
+			if( endStream ) {
+				finishResponse();
+				return;
+			}
+			bodyChannel = body;
+			if( body instanceof AsyncFileBody ) {
+				((AsyncFileBody)body).setMemoryAccount(account, fileBufferPool);
+			}
+			remainingLength = data.contentLength;
+			if( body instanceof NotifyingChannel ) {
+				notifying = true;
+				((NotifyingChannel)body).setReadyListener(() -> loopExecutor.execute(() -> {
+					if( !closed && waitingForData ) {
+						waitingForData = false;
+						schedule();
+						writeRequester.run();
+					}
+				}));
+			}
+			schedule();
+		}
+
+		void schedule() {
+			if( !queued && !closed ) {
+				queued = true;
+				sendQueue.add(this);
+			}
+		}
+
+		void scheduleIfUnblocked() {
+			if( null != bodyChannel && 0 < sendWindow && !waitingForData ) {
+				schedule();
+			}
+		}
+
+		// the last frame is queued. header block and DATA payload bytes count, frame headers don't
+		void finishResponse() {
+			closeBodyChannel();
+			closed = true;
+			HttpEvents.responseWritten(request, "HTTP/2", statusCode, sentBytes, writeStartNanos);
+			if( null != request ) {
+				if( null != slowRequestLog ) {
+					slowRequestLog.record(request, "HTTP/2", statusCode, sentBytes, writeStartNanos);
+				}
+				request.complete();
+			}
+			if( remoteClosed ) {
+				streamMap.remove(id);
+			} else {
+				// response is complete before the request body
+				resetStream(id, Http2Exception.NO_ERROR);
+			}
+		}
+
+		void close() {
+			closed = true;
+			boolean abandoned = null != pendingResponse;
+			if( null != pendingResponse ) {
+				try {
+					pendingResponse.toCompletableFuture().cancel(true);
+				} catch( UnsupportedOperationException ignore ) {}
+				pendingResponse = null;
+			}
+			closeBodyProcessor();
+			clearPendingBody();
+			closeBodyChannel();
+			if( null != request ) {
+				if( abandoned ) {
+					request.abandon();
+				} else {
+					request.complete();
+				}
+			}
+		}
+
+		private void closeBodyProcessor() {
+			if( null != bodyProcessor ) {
+				try {
+					bodyProcessor.close();
+				} catch( IOException ignore ) {}
+				bodyProcessor = null;
+			}
+		}
+
+		private void closeBodyChannel() {
+			if( null != bodyChannel ) {
+				try {
+					bodyChannel.close();
+				} catch( IOException ignore ) {}
+				bodyChannel = null;
+			}
+		}
+	}
+}
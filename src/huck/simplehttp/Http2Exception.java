@@ -0,0 +1,38 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+
+class Http2Exception extends IOException {
+	private static final long serialVersionUID = -2453179381957470542L;
+
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int STREAM_CLOSED = 0x5;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+
+	private int errorCode;
+	private int streamId;
+
+	// connection error
+	public Http2Exception(int errorCode, String msg) {
+		this(errorCode, 0, msg);
+	}
+	// stream error when streamId > 0
+	public Http2Exception(int errorCode, int streamId, String msg) {
+		super(msg);
+		this.errorCode = errorCode;
+		this.streamId = streamId;
+	}
+
+	public int getErrorCode() {
+		return errorCode;
+	}
+	public int getStreamId() {
+		return streamId;
+	}
+}
@@ -0,0 +1,207 @@
+package huck.simplehttp;
+
+import java.net.InetAddress;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// flight recorder events of the server, category SimpleHttp. any running recording takes them unless its settings turn
+// them off, e.g. java -XX:StartFlightRecording or jcmd <pid> JFR.start. the helpers check isEnabled() first, so
+// without a recording the server pays for little more than the check
+final class HttpEvents {
+	private HttpEvents() {
+	}
+
+	@Name("huck.simplehttp.ConnectionAccept")
+	@Label("Connection Accept")
+	@Category({"SimpleHttp", "Connection"})
+	@StackTrace(false)
+	static final class ConnectionAccept extends Event {
+		@Label("Remote Address")
+		String remoteAddress;
+		@Label("Local Port")
+		int port;
+		@Label("TLS")
+		boolean tls;
+		@Label("Refused")
+		boolean refused;
+	}
+
+	@Name("huck.simplehttp.ConnectionClose")
+	@Label("Connection Close")
+	@Category({"SimpleHttp", "Connection"})
+	@StackTrace(false)
+	static final class ConnectionClose extends Event {
+		@Label("Remote Address")
+		String remoteAddress;
+		@Label("Local Port")
+		int port;
+		@Label("Lifetime")
+		@Timespan
+		long lifetime;
+	}
+
+	@Name("huck.simplehttp.RequestParsed")
+	@Label("Request Parsed")
+	@Category({"SimpleHttp", "Request"})
+	@StackTrace(false)
+	static final class RequestParsed extends Event {
+		@Label("Protocol")
+		String protocol;
+		@Label("Method")
+		String method;
+		@Label("Path")
+		String path;
+		@Label("Header Bytes")
+		@DataAmount
+		int headerBytes;
+		@Label("Parse Time")
+		@Timespan
+		long parseTime;
+	}
+
+	// the time the loop thread spent in processAsync. async is true when the response came later
+	@Name("huck.simplehttp.HandlerInvocation")
+	@Label("Handler Invocation")
+	@Category({"SimpleHttp", "Request"})
+	@StackTrace(false)
+	static final class HandlerInvocation extends Event {
+		@Label("Method")
+		String method;
+		@Label("Path")
+		String path;
+		@Label("Async")
+		boolean async;
+	}
+
+	@Name("huck.simplehttp.ResponseWritten")
+	@Label("Response Written")
+	@Category({"SimpleHttp", "Request"})
+	@StackTrace(false)
+	static final class ResponseWritten extends Event {
+		@Label("Protocol")
+		String protocol;
+		@Label("Method")
+		String method;
+		@Label("Path")
+		String path;
+		@Label("Status")
+		String status;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		@Label("Write Time")
+		@Timespan
+		long writeTime;
+	}
+
+	@Name("huck.simplehttp.RequestError")
+	@Label("Request Error")
+	@Category({"SimpleHttp", "Request"})
+	@StackTrace(false)
+	static final class RequestError extends Event {
+		@Label("Status")
+		String status;
+		@Label("Rejected")
+		boolean rejected;
+		@Label("Exception")
+		String exception;
+		@Label("Message")
+		String message;
+	}
+
+	// the first use of an event class registers it with the recorder, which takes a while. done when the server starts
+	// so that the first connection doesn't pay for it
+	static void register() {
+		new ConnectionAccept();
+		new ConnectionClose();
+		new RequestParsed();
+		new HandlerInvocation();
+		new ResponseWritten();
+		new RequestError();
+	}
+
+	static void connectionAccept(InetAddress remoteAddress, int port, boolean tls, boolean refused) {
+		ConnectionAccept event = new ConnectionAccept();
+		if( event.isEnabled() ) {
+			event.remoteAddress = remoteAddress.getHostAddress();
+			event.port = port;
+			event.tls = tls;
+			event.refused = refused;
+			event.commit();
+		}
+	}
+
+	static void connectionClose(InetAddress remoteAddress, int port, long acceptNanos) {
+		ConnectionClose event = new ConnectionClose();
+		if( event.isEnabled() ) {
+			event.remoteAddress = remoteAddress.getHostAddress();
+			event.port = port;
+			event.lifetime = System.nanoTime() - acceptNanos;
+			event.commit();
+		}
+	}
+
+	static void requestParsed(HttpRequest req, String protocol) {
+		RequestParsed event = new RequestParsed();
+		if( event.isEnabled() ) {
+			event.protocol = protocol;
+			event.method = req.getMethod();
+			event.path = req.getRequestPath();
+			event.headerBytes = req.getHeaderBytes();
+			event.parseTime = req.getHeaderEndNanos() - req.getParseStartNanos();
+			event.commit();
+		}
+	}
+
+	// null when the event is off
+	static HandlerInvocation beginHandler() {
+		HandlerInvocation event = new HandlerInvocation();
+		if( !event.isEnabled() ) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+	static void endHandler(HandlerInvocation event, HttpRequest req, boolean async) {
+		if( null == event ) {
+			return;
+		}
+		event.end();
+		if( event.shouldCommit() ) {
+			event.method = req.getMethod();
+			event.path = req.getRequestPath();
+			event.async = async;
+			event.commit();
+		}
+	}
+
+	static void responseWritten(HttpRequest req, String protocol, String status, long bytes, long writeStartNanos) {
+		ResponseWritten event = new ResponseWritten();
+		if( event.isEnabled() ) {
+			event.protocol = protocol;
+			event.method = null == req ? null : req.getMethod();
+			event.path = null == req ? null : req.getRequestPath();
+			event.status = status;
+			event.bytes = bytes;
+			event.writeTime = System.nanoTime() - writeStartNanos;
+			event.commit();
+		}
+	}
+
+	static void requestError(HttpResponse.Status status, Throwable ex) {
+		RequestError event = new RequestError();
+		if( event.isEnabled() ) {
+			event.status = status.code();
+			event.rejected = ex instanceof RejectedRequestException;
+			event.exception = ex.getClass().getName();
+			event.message = ex.getMessage();
+			event.commit();
+		}
+	}
+}
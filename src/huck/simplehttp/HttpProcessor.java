@@ -1,8 +1,27 @@
 package huck.simplehttp;
 
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public interface HttpProcessor {
 	public HttpResponse process(HttpRequest req) throws HttpException, Exception;
 	public WritableByteChannel getBodyProcessor(HttpRequest req);
+	
+	// called when the headers of a request with a body are in, before any of the body is read. throw an HttpException to
+	// answer with it and leave the body unread. a client that sent Expect: 100-continue gets 100 Continue after this returns
+	public default void checkBeforeBody(HttpRequest req) throws HttpException {
+	}
+	
+	// the server parks the connection until the stage completes. it may complete on any thread.
+	// the default runs process() on the calling thread.
+	public default CompletionStage<HttpResponse> processAsync(HttpRequest req) {
+		CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+		try {
+			result.complete(process(req));
+		} catch(Throwable ex) {
+			result.completeExceptionally(ex);
+		}
+		return result;
+	}
 }
@@ -1,10 +1,14 @@
 package huck.simplehttp;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
 
 
 public final class HttpRequest {
@@ -34,11 +38,15 @@ public final class HttpRequest {
 	public String getQueryString() {
 		return queryString;
 	}	
+	// decoded as utf-8. the first value when the name repeats
 	public String getParameter(String name) {
-		if( null == paramMap ) {
-			parseQueryString();
-		}
-		return paramMap.get(name);
+		return getQueryIndex().getFirst(name);
+	}
+	public List<String> getParameterValues(String name) {
+		return getQueryIndex().getAll(name);
+	}
+	public Set<String> getParameterNames() {
+		return getQueryIndex().getNames();
 	}
 
 	// from header
@@ -46,43 +54,140 @@ public final class HttpRequest {
 		return contentLength;
 	}	
 	public List<String> getHeaderList(String name) {
-		return header.get(name);	
+		return header.getAll(name);	
 	}
 	public String getHeader(String name) {
-		List<String> valueList = header.get(name);
-		if( null != valueList && !valueList.isEmpty() ) {
-			return valueList.get(0);
-		} else {
-			return null;
-		}
+		return header.get(name);
 	}
+	// built on first use. getHeader doesn't need it
 	public Map<String, List<String>> getHeaderMap() {
-		return header;
+		if( null == headerMap ) {
+			headerMap = header.toMap();
+		}
+		return headerMap;
 	}	
+	String getHeaderIgnoreCase(String name) {
+		return header.getIgnoreCase(name);
+	}
+	// protocol name of a valid upgrade request, otherwise null
+	public String getUpgrade() {
+		return upgrade;
+	}
+	public boolean isWebSocketUpgrade() {
+		return "websocket".equals(upgrade);
+	}
 	
 	// cookies
 	public List<String> getCookieList(String name) {
-		return cookie.get(name);	
+		return cookie.getAll(name);	
 	}
 	public String getCookie(String name) {
-		List<String> valueList = cookie.get(name);
-		if( null != valueList && !valueList.isEmpty() ) {
-			return valueList.get(0);
-		} else {
-			return null;
-		}
+		return cookie.get(name);
 	}
 	public Map<String, List<String>> getCookieMap() {
-		return cookie;
+		if( null == cookieMap ) {
+			cookieMap = cookie.toMap();
+		}
+		return cookieMap;
 	}
 	
 	// attributes
 	public Object getAttribute(String name) {
-		return attribute.get(name);
+		return null == attribute ? null : attribute.get(name);
 	}	
 	public Object setAttribute(String name, Object value) {
+		if( null == attribute ) {
+			attribute = new HashMap<>();
+		}
 		return attribute.put(name, value);
 	}
+	
+	// a response for this request. when the server recycles requests it is the connection's own response object, reset,
+	// and it is valid only until it has been written, like the request itself. otherwise a new HttpResponse
+	public HttpResponse newResponse(HttpResponse.Status status) {
+		if( !recycled ) {
+			return new HttpResponse(status);
+		}
+		if( null == response ) {
+			response = new HttpResponse(status);
+			response.setRecycled();
+		} else {
+			response.reset(status);
+		}
+		return response;
+	}
+	
+	// System.nanoTime() of the selector wakeup that completed the request
+	public long getArrivalNanos() {
+		return arrivalNanos;
+	}
+	void setArrivalNanos(long arrivalNanos) {
+		this.arrivalNanos = arrivalNanos;
+	}
+	
+	// phase timestamps for HttpEvents and SlowRequestLog, System.nanoTime(). 0 when the phase didn't happen
+	long getParseStartNanos() {
+		return parseStartNanos;
+	}
+	long getHeaderEndNanos() {
+		return headerEndNanos;
+	}
+	int getHeaderBytes() {
+		return headerBytes;
+	}
+	long getHandlerStartNanos() {
+		return handlerStartNanos;
+	}
+	void setHandlerStartNanos(long handlerStartNanos) {
+		this.handlerStartNanos = handlerStartNanos;
+	}
+	long getHandlerEndNanos() {
+		return handlerEndNanos;
+	}
+	void setHandlerEndNanos(long handlerEndNanos) {
+		this.handlerEndNanos = handlerEndNanos;
+	}
+	
+	// the body collected by a BodyAggregator, read only. null when there was none or another body processor took it
+	public ByteBuffer getBody() {
+		return null == body ? null : body.asByteBuffer();
+	}
+	public ReadableByteChannel getBodyChannel() {
+		return null == body ? null : body.asChannel();
+	}
+	void setBody(BodyAggregator.Body body) {
+		this.body = body;
+	}
+	
+	// runs on the server thread once the response has been sent or the exchange is abandoned
+	public void addCompletionListener(Runnable listener) {
+		if( null == completionList ) {
+			completionList = new ArrayList<>(2);
+		}
+		completionList.add(listener);
+	}
+	// the client went away before the response was sent. the processing stage may still be running
+	public boolean isAbandoned() {
+		return abandoned;
+	}
+	void abandon() {
+		abandoned = true;
+		complete();
+	}
+	void complete() {
+		if( null == completionList ) {
+			return;
+		}
+		ArrayList<Runnable> listenerList = completionList;
+		completionList = null;
+		for( Runnable listener : listenerList ) {
+			try {
+				listener.run();
+			} catch( RuntimeException ex ) {
+				Logger.getLogger("http").error(ex, ex);
+			}
+		}
+	}
 
 	private int port;
 	private String method;
@@ -92,15 +197,49 @@ public final class HttpRequest {
 	private String host;
 	private String requestPath;
 	private String queryString;
-	private Map<String, String> paramMap;
+	private QueryIndex queryIndex;
 	
 	private int contentLength;
-	private Map<String, List<String>> header;
-	private Map<String, List<String>> cookie;
+	private String upgrade;
+	private HeaderList header;
+	private HeaderList cookie;
+	private Map<String, List<String>> headerMap;
+	private Map<String, List<String>> cookieMap;
 	
 	private HashMap<String, Object> attribute;
+	private long arrivalNanos;
+	private long parseStartNanos;
+	private long headerEndNanos;
+	private int headerBytes;
+	private long handlerStartNanos;
+	private long handlerEndNanos;
+	private BodyAggregator.Body body;
+	private ArrayList<Runnable> completionList;
+	private boolean abandoned;
+	
+	private boolean recycled;
+	private HttpResponse response;
 	
+	// takes the header lists of parseData without copying them
 	public HttpRequest(HttpRequestData parseData) {
+		this.attribute = null;
+		this.recycled = false;
+		this.response = null;
+		init(parseData);
+	}
+	
+	// reuse for the next request of a recycling parser
+	void reset(HttpRequestData parseData) {
+		if( null != attribute ) {
+			attribute.clear();
+		}
+		init(parseData);
+	}
+	void setRecycled() {
+		this.recycled = true;
+	}
+	
+	private void init(HttpRequestData parseData) {
 		this.port = parseData.port;
 		this.method = parseData.method;
 		this.requestURI = parseData.uri;
@@ -109,46 +248,34 @@ public final class HttpRequest {
 		this.host = parseData.host;
 		this.requestPath = parseData.path;
 		this.queryString = parseData.queryString;
-		this.paramMap = null;
+		this.queryIndex = null;
 		
 		this.contentLength = parseData.contentLength;
+		this.upgrade = parseData.upgrade;
 		
-		this.header = null;
-		this.cookie = null;
-		this.attribute = new HashMap<>();
-		
-		this.header = new HashMap<String, List<String>>();
-		for( Map.Entry<String, ArrayList<String>> entry : parseData.header.entrySet() ) {
-			this.header.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
-		}
-		this.header = Collections.unmodifiableMap(this.header);
-		
-		this.cookie = new HashMap<String, List<String>>();
-		for( Map.Entry<String, ArrayList<String>> entry : parseData.cookie.entrySet() ) {
-			this.cookie.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
-		}
-		this.cookie = Collections.unmodifiableMap(this.cookie);
+		this.header = parseData.header;
+		this.cookie = parseData.cookie;
+		this.headerMap = null;
+		this.cookieMap = null;
+		this.arrivalNanos = System.nanoTime();
+		this.parseStartNanos = parseData.parseStartNanos;
+		this.headerEndNanos = parseData.headerEndNanos;
+		this.headerBytes = parseData.headerBytes;
+		this.handlerStartNanos = 0;
+		this.handlerEndNanos = 0;
+		this.body = null;
+		this.completionList = null;
+		this.abandoned = false;
 	}
 	
-	private void parseQueryString() {
-		paramMap = new HashMap<>();
-		if( null == queryString || queryString.isEmpty() ) {
-			return;
-		}		
-		String[] params = queryString.split("&");		
-		for( String param : params ) {
-			if( null == param || param.isEmpty() ) {
-				continue;
-			}
-			int delimIdx = param.indexOf("=");
-			if( 0 > delimIdx ) {
-				paramMap.put(param, "");
-			} else if (delimIdx > 0) {
-				paramMap.put(param.substring(0, delimIdx), param.substring(delimIdx + 1));
-			} else { // == 0
-				continue;
-			}
+	// pairs past this are ignored
+	static final int MAX_PARAMETER_COUNT = 1000;
+	
+	private QueryIndex getQueryIndex() {
+		if( null == queryIndex ) {
+			queryIndex = new QueryIndex(queryString, MAX_PARAMETER_COUNT);
 		}
+		return queryIndex;
 	}
 	
 }
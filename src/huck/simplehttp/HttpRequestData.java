@@ -1,8 +1,5 @@
 package huck.simplehttp;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-
 class HttpRequestData {
 	public int port = -1;
 	public String method = null;
@@ -12,7 +9,30 @@ class HttpRequestData {
 	public String path = null;
 	public String queryString = null;
 	public int contentLength = 0;
+	public String upgrade = null;
+	// System.nanoTime() of the first bytes and of the end of the header, and the header size with line ends
+	public long parseStartNanos = 0;
+	public long headerEndNanos = 0;
+	public int headerBytes = 0;
+	
+	public HeaderList header = new HeaderList(16);
+	public HeaderList cookie = new HeaderList(4);
 	
-	public HashMap<String, ArrayList<String>> header = new HashMap<>();
-	public HashMap<String, ArrayList<String>> cookie = new HashMap<>();
-}
\ No newline at end of file
+	// for the next request on a recycled parser
+	void reset() {
+		port = -1;
+		method = null;
+		uri = null;
+		version = null;
+		host = null;
+		path = null;
+		queryString = null;
+		contentLength = 0;
+		upgrade = null;
+		parseStartNanos = 0;
+		headerEndNanos = 0;
+		headerBytes = 0;
+		header.clear();
+		cookie.clear();
+	}
+}
\ No newline at end of file
@@ -3,10 +3,15 @@ package huck.simplehttp;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
-import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 class HttpRequestParser {
+	// called once the header is parsed, before the body is read
+	static interface RequestFilter {
+		public void check(HttpRequest req) throws HttpException;
+	}
+	
 	private enum ParsingPhase {
 		REQUEST_LINE, HEADER, MESSAGE_BODY
 	}
@@ -20,17 +25,119 @@ class HttpRequestParser {
 	
 	private int bodyProcessedBytes;
 	private WritableByteChannel bodyProcessor;
+	private Runnable bodyReadyListener;
+	private boolean bodyBlocked;
+	private boolean expectContinue;
+	private RequestFilter requestFilter;
+	
+	// set in recycling mode. every request of this parser reuses them
+	private HttpRequestData recycledData;
+	private HttpRequest recycledRequest;
 	
 	public HttpRequestParser(HttpProcessor bodyProcessorSupplier, int port, int maxDataBufferSize) {
+		this(bodyProcessorSupplier, port, new LineByteBuffer(maxDataBufferSize));
+	}
+	// the line buffer comes from the pool while bytes are pending. see releaseBuffer
+	public HttpRequestParser(HttpProcessor bodyProcessorSupplier, int port, ByteBufferPool bufferPool) {
+		this(bodyProcessorSupplier, port, new LineByteBuffer(bufferPool));
+	}
+	private HttpRequestParser(HttpProcessor bodyProcessorSupplier, int port, LineByteBuffer lineByteBuffer) {
 		this.bodyProcessorSupplier = bodyProcessorSupplier;
 		this.port = port;
-		this.lineByteBuffer = new LineByteBuffer(maxDataBufferSize);		
+		this.lineByteBuffer = lineByteBuffer;
 		this.phase = ParsingPhase.REQUEST_LINE;
 		this.reqParseData = null;
 		this.request = null;
 		
 		this.bodyProcessedBytes = 0;
 		this.bodyProcessor = null;
+		this.bodyReadyListener = null;
+		this.bodyBlocked = false;
+		this.expectContinue = false;
+		this.requestFilter = null;
+		this.recycledData = null;
+		this.recycledRequest = null;
+	}
+	
+	// the parser keeps one HttpRequestData and HttpRequest and resets them for each request.
+	// a request returned by addBytes is valid until the next addBytes that starts a new request or until release
+	public void setRecycling() {
+		if( null == recycledData ) {
+			recycledData = new HttpRequestData();
+			recycledRequest = new HttpRequest(recycledData);
+			recycledRequest.setRecycled();
+		}
+	}
+	
+	// the pooled line buffer is charged to the connection's account. release() drops it
+	public void setMemoryAccount(MemoryBudget.Account account) {
+		lineByteBuffer.account = account;
+	}
+	
+	// gives a pooled line buffer back while nothing is pending in it
+	public void releaseBuffer() {
+		lineByteBuffer.releaseIfEmpty();
+	}
+	public boolean hasBuffer() {
+		return lineByteBuffer.hasBuffer();
+	}
+	
+	// true once for a request whose client waits for 100 Continue before it sends the body
+	public boolean takeExpectContinue() {
+		boolean expects = expectContinue;
+		expectContinue = false;
+		return expects;
+	}
+	
+	// true for Expect: 100-continue. any other expectation fails with 417
+	static boolean checkExpect(HttpRequest req) throws HttpException {
+		String expect = req.getHeaderIgnoreCase("Expect");
+		if( null == expect ) {
+			return false;
+		}
+		if( !"100-continue".equalsIgnoreCase(expect.trim()) ) {
+			throw new HttpException(HttpResponse.Status.EXPECTATION_FAILED, "unsupported expectation: " + expect);
+		}
+		return true;
+	}
+	
+	// the request whose body is being read, or the one returned last. null while its headers are incomplete
+	public HttpRequest getRequest() {
+		return request;
+	}
+	
+	// ready for another connection. drops everything tied to the previous one
+	public void release(int port) {
+		this.port = port;
+		this.lineByteBuffer.clear();
+		this.lineByteBuffer.account = null;
+		this.phase = ParsingPhase.REQUEST_LINE;
+		this.reqParseData = null;
+		this.request = null;
+		this.bodyProcessedBytes = 0;
+		this.bodyProcessor = null;
+		this.bodyReadyListener = null;
+		this.bodyBlocked = false;
+		this.expectContinue = false;
+		this.requestFilter = null;
+		if( null != recycledData ) {
+			recycledData.reset();
+			recycledRequest.reset(recycledData);
+		}
+	}
+	
+	public void setRequestFilter(RequestFilter requestFilter) {
+		this.requestFilter = requestFilter;
+	}
+	
+	// given to body processors that can pause the upload. see isBodyBlocked
+	public void setBodyReadyListener(Runnable listener) {
+		this.bodyReadyListener = listener;
+	}
+	
+	// the body processor is full. the unwritten bytes are kept; call addBytes with no bytes after the ready listener fires
+	public boolean isBodyBlocked() {
+		return bodyBlocked;
 	}
 	
 	public HttpRequest addBytes(byte[] src, int offset, int srcLen) throws HttpException, IOException {
@@ -42,11 +149,19 @@ class HttpRequestParser {
 		if( null == reqParseData ) {
 			phase = ParsingPhase.REQUEST_LINE;
 			
-			reqParseData = new HttpRequestData();
+			if( null != recycledData ) {
+				reqParseData = recycledData;
+				reqParseData.reset();
+			} else {
+				reqParseData = new HttpRequestData();
+			}
 			reqParseData.port = port;
+			reqParseData.parseStartNanos = System.nanoTime();
 			request = null;
 			bodyProcessedBytes = 0;
 			bodyProcessor = null;
+			bodyBlocked = false;
+			expectContinue = false;
 		}
 		
 		while(true) {
@@ -55,6 +170,7 @@ class HttpRequestParser {
 				if( null == (line=lineByteBuffer.getLine()) ) {
 					return null;
 				} else {
+					reqParseData.headerBytes += line.length() + 2;
 					parseRequestLine(line);
 					phase = ParsingPhase.HEADER;
 				}
@@ -63,7 +179,10 @@ class HttpRequestParser {
 				if( null == (line=lineByteBuffer.getLine()) ) {
 					return null;
 				} else {
+					reqParseData.headerBytes += line.length() + 2;
 					if( line.isEmpty() ) {
+						reqParseData.headerEndNanos = System.nanoTime();
+						checkUpgrade();
 						phase = ParsingPhase.MESSAGE_BODY;
 					} else {
 						parseHeader(line);
@@ -72,7 +191,29 @@ class HttpRequestParser {
 				break;
 			case MESSAGE_BODY :
 				if( null == request ) {
-					request = new HttpRequest(reqParseData);
+					if( null != recycledRequest ) {
+						request = recycledRequest;
+						request.reset(reqParseData);
+					} else {
+						request = new HttpRequest(reqParseData);
+					}
+					try {
+						if( null != requestFilter ) {
+							requestFilter.check(request);
+						}
+						if( 0 < reqParseData.contentLength ) {
+							// nothing of the body has been taken from the line buffer yet
+							if( null == bodyProcessorSupplier ) {
+								throw new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "body messege is not allowed");
+							}
+							boolean expects = checkExpect(request);
+							bodyProcessorSupplier.checkBeforeBody(request);
+							expectContinue = expects && "HTTP/1.1".equals(request.getVersion());
+						}
+					} catch( HttpException ex ) {
+						reqParseData = null;
+						throw ex;
+					}
 				}				
 				boolean finished = true;
 				int contentLength = reqParseData.contentLength;
@@ -81,15 +222,24 @@ class HttpRequestParser {
 						throw new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "body messege is not allowed");
 					} else if( null == bodyProcessor ) {
 						bodyProcessor = bodyProcessorSupplier.getBodyProcessor(request);
+						if( null != bodyReadyListener && bodyProcessor instanceof NotifyingWritableChannel ) {
+							((NotifyingWritableChannel)bodyProcessor).setReadyListener(bodyReadyListener);
+						}
 					}
 					if( null == bodyProcessor ) {
 						throw new HttpException(HttpResponse.Status.REQUEST_ENTITY_TOO_LARGE, "body messege is not allowed");
 					}
 					ByteBuffer bodyPieceBuf = lineByteBuffer.asReadOnlyByteBuffer(contentLength-bodyProcessedBytes);
+					int pieceLen = bodyPieceBuf.remaining();
+					bodyBlocked = false;
 					while( 0 < bodyPieceBuf.remaining() ) {
-						bodyProcessor.write(bodyPieceBuf);
+						if( 0 == bodyProcessor.write(bodyPieceBuf) && null != bodyReadyListener && bodyProcessor instanceof NotifyingWritableChannel ) {
+							lineByteBuffer.unread(bodyPieceBuf.remaining());
+							bodyBlocked = true;
+							break;
+						}
 					}
-					bodyProcessedBytes += bodyPieceBuf.limit();
+					bodyProcessedBytes += pieceLen - bodyPieceBuf.remaining();
 					finished = bodyProcessedBytes >= contentLength;
 				}
 				if( finished ) {
@@ -126,13 +276,22 @@ class HttpRequestParser {
 		String uri = line.substring(firstSpaceIdx+1, lastSpaceIdx).trim();
 		String version = line.substring(lastSpaceIdx+1).trim();
 		
-		if( !supportMethodSet.contains(method) ) {
-			throw new HttpException(HttpResponse.Status.METHOD_NOT_ALLOWED, method + " is not supported");
-		}
+		checkMethod(method);
 		if( !supportVersionSet.contains(version) ) {
 			throw new HttpException(HttpResponse.Status.HTTP_VERSION_NOT_SUPPORTED,  version + " is not supported");
 		}
-		
+		reqParseData.method = method;
+		reqParseData.version = version;
+		parseTarget(reqParseData, uri);
+	}
+	
+	static void checkMethod(String method) throws HttpException {
+		if( !supportMethodSet.contains(method) ) {
+			throw new HttpException(HttpResponse.Status.METHOD_NOT_ALLOWED, method + " is not supported");
+		}
+	}
+	
+	static void parseTarget(HttpRequestData reqParseData, String uri) throws HttpException {
 		String path;
 		String host;
 		if( uri.startsWith("/") ) {
@@ -166,9 +325,7 @@ class HttpRequestParser {
 		} else {
 			queryString = null;
 		}
-		reqParseData.method = method;
 		reqParseData.uri = uri;
-		reqParseData.version = version;
 		reqParseData.host = host;
 		reqParseData.path = path;
 		reqParseData.queryString = queryString;
@@ -181,14 +338,12 @@ class HttpRequestParser {
 		}
 		String name = line.substring(0, idx).trim();
 		String value = line.substring(idx+1).trim();
-		
+		addHeader(reqParseData, name, value);
+	}
+	
+	static void addHeader(HttpRequestData reqParseData, String name, String value) throws HttpException {
 		if( null == value ) return;
-		ArrayList<String> valueList = reqParseData.header.get(name);
-		if( null == valueList ) {
-			valueList = new ArrayList<>();
-			reqParseData.header.put(name, valueList);
-		}
-		valueList.add(value);
+		reqParseData.header.add(name, value);
 		
 		// special cases
 		if( "Content-Length".equalsIgnoreCase(name) ) {
@@ -224,27 +379,93 @@ class HttpRequestParser {
 				String cookieName = cookie.substring(0, equalIdx).trim();
 				String cookieValue = cookie.substring(equalIdx+1).trim(); 
 				if( null == cookieValue ) continue;
-				ArrayList<String> cookieValueList = reqParseData.cookie.get(name);
-				if( null == cookieValueList ) {
-					cookieValueList = new ArrayList<>();
-					reqParseData.cookie.put(cookieName, cookieValueList);
+				reqParseData.cookie.add(cookieName, cookieValue);
+			}
+		}
+	}
+	
+	private static boolean containsToken(List<String> valueList, String token) {
+		if( null == valueList ) {
+			return false;
+		}
+		for( String value : valueList ) {
+			for( String item : value.split(",") ) {
+				if( token.equalsIgnoreCase(item.trim()) ) {
+					return true;
 				}
-				cookieValueList.add(cookieValue);
 			}
 		}
+		return false;
+	}
+	private List<String> getHeaderIgnoreCase(String name) {
+		return reqParseData.header.getAllIgnoreCase(name);
 	}
 	
-	private static class LineByteBuffer {
+	private void checkUpgrade() throws HttpException {
+		if( !containsToken(getHeaderIgnoreCase("Connection"), "upgrade") ) {
+			return;
+		}
+		List<String> upgradeList = getHeaderIgnoreCase("Upgrade");
+		if( containsToken(upgradeList, "websocket") ) {
+			if( !"GET".equals(reqParseData.method) || "HTTP/1.0".equals(reqParseData.version) ) {
+				throw new HttpException(HttpResponse.Status.BAD_REQUEST, "Bad Request : websocket upgrade");
+			}
+			List<String> keyList = getHeaderIgnoreCase("Sec-WebSocket-Key");
+			if( null == keyList || 1 != keyList.size() || keyList.get(0).isEmpty() ) {
+				throw new HttpException(HttpResponse.Status.BAD_REQUEST, "Bad Request : Sec-WebSocket-Key");
+			}
+			if( !containsToken(getHeaderIgnoreCase("Sec-WebSocket-Version"), "13") ) {
+				throw new HttpException(HttpResponse.Status.BAD_REQUEST, "Bad Request : Sec-WebSocket-Version");
+			}
+			reqParseData.upgrade = "websocket";
+		} else if( containsToken(upgradeList, "h2c") ) {
+			List<String> settingsList = getHeaderIgnoreCase("HTTP2-Settings");
+			if( null != settingsList && 1 == settingsList.size() && containsToken(getHeaderIgnoreCase("Connection"), "HTTP2-Settings") ) {
+				reqParseData.upgrade = "h2c";
+			}
+		}
+	}
+	
+	static class LineByteBuffer {
 		private byte[] buf;
 		private int beginPos;
 		private int endPos;
 		private int length;
+		// with a pool the array is a heap buffer's, taken when bytes arrive and given back by releaseIfEmpty
+		private ByteBufferPool pool;
+		private ByteBuffer pooled;
+		private MemoryBudget.Account account;
 		
 		public LineByteBuffer(int capacity) {
 			this.buf = new byte[capacity];
 			this.beginPos = this.endPos = this.length = 0;
+			this.pool = null;
+			this.pooled = null;
+			this.account = null;
+		}
+		public LineByteBuffer(ByteBufferPool pool) {
+			this.buf = null;
+			this.beginPos = this.endPos = this.length = 0;
+			this.pool = pool;
+			this.pooled = null;
+			this.account = null;
+		}
+		public boolean hasBuffer() {
+			return null != buf;
+		}
+		public void releaseIfEmpty() {
+			if( 0 == length && null != pooled ) {
+				pool.release(pooled, account);
+				pooled = null;
+				buf = null;
+				beginPos = endPos = 0;
+			}
 		}
 		public boolean addBytes(byte[] src, int offset, int srcLen) {
+			if( null == buf ) {
+				pooled = pool.acquire(account);
+				buf = pooled.array();
+			}
 			int available = buf.length - length;
 			if( srcLen > available ) {
 				return false;
@@ -295,5 +516,20 @@ class HttpRequestParser {
 			length -= bufLength;
 			return result;
 		}
+		// gives back the unconsumed tail of the last asReadOnlyByteBuffer
+		public void unread(int len) {
+			beginPos -= len;
+			length += len;
+		}
+		public int available() {
+			return (null == buf ? pool.getBufferSize() : buf.length) - length;
+		}
+		public int length() {
+			return length;
+		}
+		public void clear() {
+			this.beginPos = this.endPos = this.length = 0;
+			releaseIfEmpty();
+		}
 	}
 }
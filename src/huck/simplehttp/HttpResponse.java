@@ -2,7 +2,6 @@ package huck.simplehttp;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
@@ -12,17 +11,15 @@ import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 public final class HttpResponse {
 	public static interface BodySupplier {
 		public ReadableByteChannel get() throws Exception;
 	}
 	public static enum Status {
+		CONTINUE("100", "Continue"),
+		SWITCHING_PROTOCOLS("101", "Switching Protocols"),
+		
 		OK("200", "OK"),
 		PARTIAL_CONTENT("206", "Partial Content"),
 		
@@ -33,8 +30,13 @@ public final class HttpResponse {
 		METHOD_NOT_ALLOWED("405", "Method Not Allowd"),
 		REQUEST_ENTITY_TOO_LARGE("413", "Request Entity Too Large"),
 		REQUESTED_RANGE_NOT_SATISFIABLE("416", "Requested range not satisfiable"),
+		EXPECTATION_FAILED("417", "Expectation Failed"),
+		TOO_MANY_REQUESTS("429", "Too Many Requests"),
 		
 		INTERNAL_SERVER_ERROR("500", "Internal Server Error"),
+		BAD_GATEWAY("502", "Bad Gateway"),
+		SERVICE_UNAVAILABLE("503", "Service Unavailable"),
+		GATEWAY_TIMEOUT("504", "Gateway Timeout"),
 		HTTP_VERSION_NOT_SUPPORTED("505", "HTTP Version Not Supported"),
 		;		
 		private String code;
@@ -117,19 +119,21 @@ public final class HttpResponse {
 	private String statusCode;
 	private String statusString;
 	
-	private HashMap<String, ArrayList<String>> headerMap;
+	private HeaderList header;
 
 	private long contentLength;
 	private BodySupplier bodySupplier;
 	
 	private boolean keepAlive;
+	private ConnectionUpgrade upgrade;
+
+	// set on the connection's own response when requests are recycled. see HttpRequest.newResponse
+	private HttpResponseData recycledData;
 
 	public HttpResponse(Status status) {
-		this.headerMap = new HashMap<>();
-		this.contentLength = 0;
-		this.bodySupplier = null;
-		this.keepAlive = true;
-		setStatus(status);
+		this.header = new HeaderList();
+		this.recycledData = null;
+		reset(status);
 	}
 	public HttpResponse(Status status, byte[] bodyBytes) {
 		this(status);
@@ -143,6 +147,29 @@ public final class HttpResponse {
 		this(status);
 		setBodySupplier(bodySupplier);
 	}
+	HttpResponse(HttpResponseData data) {
+		this.header = data.header.copy();
+		this.recycledData = null;
+		this.statusCode = data.statusCode;
+		this.statusString = data.statusString;
+		this.contentLength = data.contentLength;
+		this.bodySupplier = data.bodySupplier;
+		this.keepAlive = data.keepAlive;
+		this.upgrade = data.upgrade;
+	}
+	
+	void setRecycled() {
+		this.recycledData = new HttpResponseData();
+	}
+	// back to a fresh response. the header arrays are kept
+	void reset(Status status) {
+		this.header.clear();
+		this.contentLength = 0;
+		this.bodySupplier = null;
+		this.keepAlive = true;
+		this.upgrade = null;
+		setStatus(status);
+	}
 	
 	public void setStatus(Status status) {
 		this.statusCode = status.code();
@@ -152,6 +179,11 @@ public final class HttpResponse {
 	public void disableKeepAlive() {
 		keepAlive = false;
 	}
+	
+	// the connection is handed to the upgrade after this response is written
+	void setUpgrade(ConnectionUpgrade upgrade) {
+		this.upgrade = upgrade;
+	}
 
 	private boolean checkHeader(String key, String value) {
 		switch(key.toLowerCase()) {
@@ -167,20 +199,13 @@ public final class HttpResponse {
 		if( !checkHeader(key, value) ) {
 			return;
 		}
-		ArrayList<String> valueList = new ArrayList<>();
-		valueList.add(value);
-		headerMap.put(key, valueList);
+		header.set(key, value);
 	}
 	public void addHeader(String key, String value) {
 		if( !checkHeader(key, value) ) {
 			return;
 		}
-		ArrayList<String> valueList = headerMap.get(key);
-		if( null == valueList ) {
-			setHeader(key, value);
-		} else {
-			valueList.add(value);
-		}
+		header.add(key, value);
 	}
 	public void addCookie(Cookie cookie) {
 		addHeader("Set-Cookie", cookie.getCookieString());
@@ -205,7 +230,7 @@ public final class HttpResponse {
 	
 	public void setBody(File bodyFile) {
 		removeBody();
-		this.bodySupplier = () -> new FileInputStream(bodyFile).getChannel();
+		this.bodySupplier = () -> AsyncFileBody.open(bodyFile.toPath());
 		this.contentLength = -1;
 	}
 	
@@ -215,16 +240,14 @@ public final class HttpResponse {
 		this.contentLength = -1;
 	}
 	
+	// a snapshot. a recycled response hands out its own data and header list instead, valid until it is reset
 	public HttpResponseData getResponseData() {
-		HttpResponseData data = new HttpResponseData();
+		HttpResponseData data = null == recycledData ? new HttpResponseData() : recycledData;
 		data.statusCode = statusCode;
 		data.statusString = statusString;
 		data.keepAlive = keepAlive;
-		HashMap<String, List<String>> tmp = new HashMap<>();
-		for( Map.Entry<String, ArrayList<String>> entry : headerMap.entrySet() ) {
-			tmp.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
-		}
-		data.headerMap = Collections.unmodifiableMap(tmp);
+		data.upgrade = upgrade;
+		data.header = null == recycledData ? header.copy() : header;
 
 		if( null == bodySupplier ) {
 			data.bodySupplier = () -> Channels.newChannel(new ByteArrayInputStream(new byte[0]));
@@ -1,6 +1,7 @@
 package huck.simplehttp;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferOverflowException;
@@ -8,23 +9,63 @@ import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.List;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
 
 public class HttpResponseWriter {
 	private HttpResponseData resData;
 	private ByteBuffer buffer;
 	private ReadableByteChannel srcChannel;
+	private NotifyingChannel notifyingChannel;
+	private boolean waitingForData;
+	private String statusCode;
+	private long writtenBytes;
 	
 	public HttpResponseWriter(HttpResponseData resData, ByteBuffer buffer) throws Exception {
 		this.resData = resData;
+		this.statusCode = resData.statusCode;
+		this.writtenBytes = 0;
 		this.buffer = buffer;
+		this.notifyingChannel = null;
+		this.waitingForData = false;
 		this.srcChannel = getResponseOutputChannel();
 		buffer.clear();
 		buffer.limit(0);
 	}
+	private HttpResponseWriter(byte[] responseBytes, ByteBuffer buffer) {
+		this.resData = null;
+		// "HTTP/1.1 nnn "
+		this.statusCode = new String(responseBytes, 9, 3, StandardCharsets.ISO_8859_1);
+		this.writtenBytes = 0;
+		this.buffer = buffer;
+		this.notifyingChannel = null;
+		this.waitingForData = false;
+		this.srcChannel = new HttpResponse.ReadableByteArrayChannel(responseBytes);
+		buffer.clear();
+		buffer.limit(0);
+	}
+	
+	// writes an already serialized response
+	static HttpResponseWriter forBytes(byte[] responseBytes, ByteBuffer buffer) {
+		return new HttpResponseWriter(responseBytes, buffer);
+	}
+	
+	// serializes a response with a fixed body once, for answers sent over and over
+	static byte[] toBytes(HttpResponse res) throws Exception {
+		HttpResponseData data = res.getResponseData();
+		if( 0 > data.contentLength ) {
+			throw new IllegalArgumentException("body length is unknown");
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WritableByteChannel output = Channels.newChannel(out);
+		HttpResponseWriter writer = new HttpResponseWriter(data, ByteBuffer.allocate(1024));
+		while( writer.process(output) ) {
+		}
+		writer.close();
+		return out.toByteArray();
+	}
 	
 	public boolean process(WritableByteChannel output) throws IOException {
+		waitingForData = false;
 		if( 0 >= buffer.remaining() ) {
 			buffer.clear();
 			int readLen = srcChannel.read(buffer);
@@ -33,11 +74,50 @@ public class HttpResponseWriter {
 			} else {
 				return false;
 			}
+			if( 0 == readLen && null != notifyingChannel ) {
+				// nothing queued by the producer. wait for the ready listener instead of spinning on OP_WRITE
+				waitingForData = true;
+				return true;
+			}
 		}
-		output.write(buffer);
+		writtenBytes += output.write(buffer);
 		return true;
 	}
 	
+	public ConnectionUpgrade getUpgrade() {
+		return null == resData ? null : resData.upgrade;
+	}
+	
+	public boolean isWaitingForData() {
+		return waitingForData;
+	}
+	
+	public String getStatusCode() {
+		return statusCode;
+	}
+	// header and body bytes taken by the output so far
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+	
+	// a StreamingBody charges the bytes queued for this response to the connection, an AsyncFileBody its buffers. call
+	// before the first write
+	void setMemoryAccount(MemoryBudget.Account account, ByteBufferPool fileBufferPool) {
+		if( null != resData && resData.bodySupplier instanceof StreamingBody ) {
+			((StreamingBody)resData.bodySupplier).setMemoryAccount(account);
+		}
+		if( notifyingChannel instanceof AsyncFileBody ) {
+			((AsyncFileBody)notifyingChannel).setMemoryAccount(account, fileBufferPool);
+		}
+	}
+	
+	// the listener may be called from any thread
+	public void setReadyListener(Runnable listener) {
+		if( null != notifyingChannel ) {
+			notifyingChannel.setReadyListener(listener);
+		}
+	}
+	
 	public void close() throws IOException {
 		if( null != srcChannel ) {
 			srcChannel.close();
@@ -49,6 +129,9 @@ public class HttpResponseWriter {
 	
 	private ReadableByteChannel getBodyOutput() throws Exception {
 		ReadableByteChannel srcChannel = resData.bodySupplier.get();
+		if( srcChannel instanceof NotifyingChannel ) {
+			notifyingChannel = (NotifyingChannel)srcChannel;
+		}
 		if( null != srcChannel ) {
 			if( 0 <= resData.contentLength ) {
 				return srcChannel;
@@ -63,19 +146,21 @@ public class HttpResponseWriter {
 	private byte[] getHeaderOutput() {
 		StringBuffer buf = new StringBuffer();
 		buf.append("HTTP/1.1 ").append(resData.statusCode).append(" ").append(resData.statusString).append("\r\n");
-		if( !resData.keepAlive ) {
+		if( null != resData.upgrade ) {
+			buf.append("Connection: Upgrade").append("\r\n");
+		} else if( !resData.keepAlive ) {
 			buf.append("Connection: close").append("\r\n");
 		}
 
-		if( 0 <= resData.contentLength ) {
+		if( null != resData.upgrade ) {
+			// no body after 101
+		} else if( 0 <= resData.contentLength ) {
 			buf.append("Content-Length: ").append(resData.contentLength).append("\r\n");;
 		} else {
 			buf.append("Transfer-Encoding: chunked").append("\r\n");;
 		}
-		for( Map.Entry<String, List<String>> entry : resData.headerMap.entrySet() ) {
-			for( String value : entry.getValue() ) {
-				buf.append(entry.getKey()).append(": ").append(value).append("\r\n");;
-			}
+		for( int i = 0; i < resData.header.size(); i++ ) {
+			buf.append(resData.header.getName(i)).append(": ").append(resData.header.getValue(i)).append("\r\n");
 		}
 		buf.append("\r\n");
 		try {
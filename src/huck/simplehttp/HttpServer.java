@@ -1,38 +1,265 @@
 package huck.simplehttp;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
 import org.apache.log4j.Logger;
 
 public class HttpServer {
 	private HttpProcessor processor;
 	private int maxConnection;
-	private InetSocketAddress serviceAddr;
+	private ArrayList<SocketAddress> listenAddrList;
+	private boolean reusePort;
+	private int backlog;
+	private ArrayList<SelectionKey> listenerKeyList;
+	private volatile List<ListenerStats> listenerStatsList;
+	private boolean acceptPaused;
+	
+	private Selector selector;
+	private ConcurrentLinkedQueue<Runnable> loopTaskQueue;
+	private int currentConnectionCnt;
+	private boolean http2Enabled;
+	
+	private SSLContext sslContext;
+	private Executor handshakeExecutor;
+	private int tlsSessionCacheSize;
+	private int tlsSessionTimeoutSeconds;
+	private ByteBufferPool tlsNetPool;
+	private ByteBufferPool tlsAppPool;
+	
+	private RateLimiter rateLimiter;
+	private LoadShedder loadShedder;
+	private long loopWakeNanos;
+	
+	private boolean recycling;
+	private ArrayDeque<HttpRequestParser> parserPool;
+	
+	private MemoryBudget memoryBudget;
+	private ByteBuffer readBuffer;
+	private ByteBufferPool parserBufferPool;
+	private ByteBufferPool responseBufferPool;
+	private ByteBufferPool fileBufferPool;
+	private ArrayDeque<SelectionKey> pausedKeyQueue;
+	private SlowRequestLog slowRequestLog;
+	private LoopWatchdog loopWatchdog;
+	private TrafficCapture trafficCapture;
 	
 	public HttpServer(HttpProcessor processor, int maxConnection, InetSocketAddress serviceAddr) throws IOException {
 		this.processor = processor;
 		this.maxConnection = maxConnection;
-		this.serviceAddr = serviceAddr;
+		this.listenAddrList = new ArrayList<>();
+		if( null != serviceAddr ) {
+			this.listenAddrList.add(serviceAddr);
+		}
+		this.reusePort = false;
+		this.backlog = 0;
+		this.listenerKeyList = new ArrayList<>();
+		this.listenerStatsList = Collections.emptyList();
+		this.acceptPaused = false;
+		this.selector = null;
+		this.loopTaskQueue = new ConcurrentLinkedQueue<>();
+		this.currentConnectionCnt = 0;
+		this.http2Enabled = false;
+		this.sslContext = null;
+		this.handshakeExecutor = null;
+		this.tlsSessionCacheSize = 10000;
+		this.tlsSessionTimeoutSeconds = 3600;
+		this.rateLimiter = null;
+		this.loadShedder = null;
+		this.loopWakeNanos = 0;
+		this.recycling = false;
+		this.parserPool = new ArrayDeque<>();
+		this.memoryBudget = null;
+		this.pausedKeyQueue = new ArrayDeque<>();
+		this.slowRequestLog = null;
+		this.loopWatchdog = null;
+		this.trafficCapture = null;
+	}
+	
+	// one more address served by the same loop. a UnixDomainSocketAddress serves same-host clients such as a sidecar proxy
+	// without the tcp stack; a stale socket file at its path is replaced, anything else there fails the bind, and the
+	// file is removed when the server stops.
+	// pass a null serviceAddr to the constructor to listen only on the added addresses
+	public void addListenAddress(SocketAddress addr) {
+		listenAddrList.add(addr);
+	}
+	
+	// SO_REUSEPORT on the tcp listeners. several servers can then bind the same address, each with its own loop thread,
+	// or in separate processes, and linux spreads new connections over their listeners with no shared acceptor.
+	// for a rolling restart, start the new process before stopping the old one. connections still in the old
+	// listener's backlog when it closes are reset
+	public void setReusePort(boolean reusePort) {
+		this.reusePort = reusePort;
+	}
+	// accept queue length of each listener. 0 : the jdk default
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+	// one per listener of the current or last run
+	public List<ListenerStats> getListenerStats() {
+		return listenerStatsList;
+	}
+	
+	// h2c by prior knowledge or by Upgrade: h2c
+	public void setHttp2Enabled(boolean http2Enabled) {
+		this.http2Enabled = http2Enabled;
+	}
+	
+	// serve https. handshake tasks run on the executor, or on a small internal pool when it is null
+	public void setTls(SSLContext sslContext, Executor handshakeExecutor) {
+		this.sslContext = sslContext;
+		this.handshakeExecutor = handshakeExecutor;
+	}
+	public void setTls(SSLContext sslContext) {
+		setTls(sslContext, null);
+	}
+	// session id resumption. stateless tickets (jdk.tls.server.enableSessionTicketExtension) are used instead when the jdk has them enabled
+	public void setTlsSessionCache(int cacheSize, int timeoutSeconds) {
+		this.tlsSessionCacheSize = cacheSize;
+		this.tlsSessionTimeoutSeconds = timeoutSeconds;
+	}
+	
+	// charged when a request header is parsed. connections from an address that is out of tokens are closed at accept
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+	// new requests are turned away with 503 while the shedder is shedding. the delay is measured by loadShedder.wrap(processor)
+	public void setLoadShedder(LoadShedder loadShedder) {
+		this.loadShedder = loadShedder;
+	}
+	
+	// http/1.1 requests come from parsers kept by the server. a closed connection's parser, with its buffer, request,
+	// header lists, attribute map and HttpRequest.newResponse response, is reset and given to the next connection.
+	// lifetime contract: a request, anything read from it and its newResponse response are valid until the response has
+	// been written or the connection closes. handlers must copy what they keep longer, and async work must not touch the
+	// request after its stage completes or is cancelled. connections closed with a response pending or after an upgrade
+	// are not recycled
+	public void setRecycling(boolean recycling) {
+		this.recycling = recycling;
+	}
+	
+	// buffers are charged to the budget while in use. one read buffer is shared by all connections; a connection holds
+	// a parser buffer only while request bytes are pending in it and a response buffer only while writing.
+	// when the budget is used up, connections that would need a new parser buffer stop being read until usage drops.
+	// without a budget the server still accounts, with no limit
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+	public MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	// requests slower than the log's threshold, first byte read to last byte written, are kept with their phase times.
+	// the same phases go to the flight recorder as huck.simplehttp.* events whenever a recording is running
+	public void setSlowRequestLog(SlowRequestLog slowRequestLog) {
+		this.slowRequestLog = slowRequestLog;
+	}
+	public SlowRequestLog getSlowRequestLog() {
+		return slowRequestLog;
+	}
+	
+	// loop iterations over the watchdog's budget are logged with the loop thread's stack and the connection in progress
+	public void setLoopWatchdog(LoopWatchdog loopWatchdog) {
+		this.loopWatchdog = loopWatchdog;
+	}
+	public LoopWatchdog getLoopWatchdog() {
+		return loopWatchdog;
+	}
+	
+	// records the bytes read from http/1.1 connections, as they were fragmented, for TrafficReplay. set it before
+	// runServer and close it after the server stops
+	public void setTrafficCapture(TrafficCapture trafficCapture) {
+		this.trafficCapture = trafficCapture;
 	}
 	
 	public void runServer(AtomicBoolean stopSignal) throws IOException {
-		Selector selector = Selector.open();
-		try( ServerSocketChannel serverSockCh = ServerSocketChannel.open() ) {
-			serverSockCh.configureBlocking(false);
-			serverSockCh.socket().bind(serviceAddr);
-			serverSockCh.register(selector, SelectionKey.OP_ACCEPT);
+		ExecutorService ownHandshakeExecutor = null;
+		if( null == memoryBudget ) {
+			memoryBudget = new MemoryBudget(0);
+		}
+		readBuffer = ByteBuffer.allocate(1024);
+		memoryBudget.reserve(MemoryBudget.Category.READ_BUFFER, readBuffer.capacity());
+		parserBufferPool = new ByteBufferPool(10240, maxConnection, false, memoryBudget, MemoryBudget.Category.PARSER_BUFFER);
+		responseBufferPool = new ByteBufferPool(1024, maxConnection, false, memoryBudget, MemoryBudget.Category.RESPONSE_BUFFER);
+		fileBufferPool = new ByteBufferPool(AsyncFileBody.DEFAULT_BUFFER_SIZE, maxConnection, true, memoryBudget, MemoryBudget.Category.FILE_BUFFER);
+		if( null != sslContext ) {
+			SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+			sessionContext.setSessionCacheSize(tlsSessionCacheSize);
+			sessionContext.setSessionTimeout(tlsSessionTimeoutSeconds);
+			SSLEngine probe = sslContext.createSSLEngine();
+			tlsNetPool = new ByteBufferPool(probe.getSession().getPacketBufferSize(), maxConnection, true, memoryBudget, MemoryBudget.Category.TLS_BUFFER);
+			tlsAppPool = new ByteBufferPool(probe.getSession().getApplicationBufferSize(), maxConnection, false, memoryBudget, MemoryBudget.Category.TLS_BUFFER);
+			if( null == handshakeExecutor ) {
+				ownHandshakeExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2), r -> {
+					Thread th = new Thread(r, "tls-handshake");
+					th.setDaemon(true);
+					return th;
+				});
+			}
+		}
+		HttpEvents.register();
+		selector = Selector.open();
+		ArrayList<ServerSocketChannel> serverSockChList = new ArrayList<>();
+		try {
+			listenerKeyList.clear();
+			acceptPaused = false;
+			ArrayList<ListenerStats> statsList = new ArrayList<>();
+			for( SocketAddress addr : listenAddrList ) {
+				serverSockChList.add(openListener(addr));
+				statsList.add((ListenerStats)listenerKeyList.get(listenerKeyList.size() - 1).attachment());
+			}
+			listenerStatsList = Collections.unmodifiableList(statsList);
 			
-			int currentConnectionCnt = 0;
+			currentConnectionCnt = 0;
+			if( null != loopWatchdog ) {
+				loopWatchdog.start(this::describeWork);
+			}
 			while( !stopSignal.get() ) {
+				if( null != loopWatchdog ) {
+					loopWatchdog.endIteration();
+				}
 				int selected = selector.select(1000);
+				loopWakeNanos = System.nanoTime();
+				if( null != loopWatchdog ) {
+					loopWatchdog.beginIteration(loopWakeNanos);
+				}
+				runLoopTasks();
 				if( 0 >= selected ) {
 					continue;
 				}
@@ -40,131 +267,718 @@ public class HttpServer {
 				while( keyIt.hasNext() ) {
 					SelectionKey key = keyIt.next();
 					keyIt.remove();
+					if( null != loopWatchdog ) {
+						loopWatchdog.setWork(key);
+					}
 					if( key.isAcceptable() ) {
 						if( currentConnectionCnt < maxConnection ) {
 							ServerSocketChannel ch = (ServerSocketChannel)key.channel();
 							SocketChannel connection = ch.accept();
 							if( null != connection ) {
-								connection.configureBlocking(false);
-								ConnectionData connectionData = new ConnectionData();
-								connectionData.parser = new HttpRequestParser(processor, connection.socket().getLocalPort(), 10240);
-								connectionData.buffer = ByteBuffer.allocate(1024);
-								connectionData.resWriter = null;
-								SelectionKey newKey = connection.register(selector, SelectionKey.OP_READ);
-								newKey.attach(connectionData);
-								currentConnectionCnt += 1;
-							}
-						}
-					} else {
-						try {
-							ConnectionData connData = (ConnectionData)key.attachment();
-							SocketChannel sockCh = (SocketChannel)key.channel();
-							
-							int nextOp;
-							if( key.isReadable() ) nextOp = processRead(sockCh, connData);
-							else if( key.isWritable() ) nextOp = processWrite(key);
-							else throw new Exception("unknown op");
-							switch( nextOp ) {
-							case SelectionKey.OP_READ:
-							case SelectionKey.OP_WRITE:
-								key.interestOps(nextOp);
-								break;
-							default:
-								key.cancel();
-								sockCh.close();
-								if( null != connData.resWriter ) {
-									connData.resWriter.close();
+								ListenerStats stats = (ListenerStats)key.attachment();
+								if( acceptConnection(connection, null == ownHandshakeExecutor ? handshakeExecutor : ownHandshakeExecutor) ) {
+									stats.accepted();
+								} else {
+									stats.refused();
+								}
+								if( currentConnectionCnt >= maxConnection ) {
+									stats.paused();
+									setAcceptInterest(false);
 								}
-								currentConnectionCnt -= 1;
-							}
-						} catch( Exception ex ) {
-							ex.printStackTrace();
-							key.cancel();
-							key.channel().close();
-							
-							ConnectionData connData = (ConnectionData)key.attachment();
-							if( null != connData.resWriter ) {
-								connData.resWriter.close();
 							}
-							currentConnectionCnt -= 1;
 						}
+					} else {
+						processKey(key, key.isReadable(), key.isWritable());
 					}
 					
 				}
+				resumePausedReads();
+			}
+		} finally {
+			if( null != loopWatchdog ) {
+				loopWatchdog.stop();
 			}
+			for( ServerSocketChannel serverSockCh : serverSockChList ) {
+				closeListener(serverSockCh);
+			}
+			memoryBudget.release(MemoryBudget.Category.READ_BUFFER, readBuffer.capacity());
+			selector.close();
+			if( null != ownHandshakeExecutor ) {
+				ownHandshakeExecutor.shutdown();
+			}
+		}
+	}
+	
+	private ServerSocketChannel openListener(SocketAddress addr) throws IOException {
+		ServerSocketChannel serverSockCh;
+		if( addr instanceof UnixDomainSocketAddress ) {
+			removeStaleSocket((UnixDomainSocketAddress)addr);
+			serverSockCh = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			serverSockCh = ServerSocketChannel.open();
+		}
+		try {
+			boolean reuse = false;
+			if( reusePort && !(addr instanceof UnixDomainSocketAddress) ) {
+				if( serverSockCh.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT) ) {
+					serverSockCh.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+					reuse = true;
+				} else {
+					Logger.getLogger("http").warn("SO_REUSEPORT is not supported here. " + addr + " is bound without it");
+				}
+			}
+			serverSockCh.configureBlocking(false);
+			serverSockCh.bind(addr, backlog);
+			ListenerStats stats = new ListenerStats(serverSockCh.getLocalAddress(), backlog, reuse);
+			listenerKeyList.add(serverSockCh.register(selector, SelectionKey.OP_ACCEPT, stats));
+		} catch( IOException ex ) {
+			serverSockCh.close();
+			throw ex;
 		}
+		return serverSockCh;
+	}
+	
+	// a socket file left behind by a server that is gone refuses connections and is removed. anything else at the path,
+	// a regular file or the socket of a running server, fails the bind
+	private static void removeStaleSocket(UnixDomainSocketAddress addr) throws IOException {
+		Path path = addr.getPath();
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch( NoSuchFileException ex ) {
+			return;
+		}
+		if( !attrs.isOther() ) {
+			throw new BindException(path + " exists and is not a socket");
+		}
+		try( SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX) ) {
+			probe.connect(addr);
+		} catch( IOException ex ) {
+			Files.deleteIfExists(path);
+			return;
+		}
+		throw new BindException(path + " is in use by another server");
+	}
+	
+	// at maxConnection the listeners stop being selected. new connections wait in the backlog
+	private void setAcceptInterest(boolean accepting) {
+		acceptPaused = !accepting;
+		for( SelectionKey key : listenerKeyList ) {
+			if( key.isValid() ) {
+				key.interestOps(accepting ? SelectionKey.OP_ACCEPT : 0);
+			}
+		}
+	}
+	
+	private static void closeListener(ServerSocketChannel serverSockCh) {
+		try {
+			SocketAddress addr = serverSockCh.getLocalAddress();
+			serverSockCh.close();
+			if( addr instanceof UnixDomainSocketAddress ) {
+				Files.deleteIfExists(((UnixDomainSocketAddress)addr).getPath());
+			}
+		} catch( IOException ex ) {
+			Logger.getLogger("http").warn("closing listener : " + ex);
+		}
+	}
+	
+	// false when the connection was turned away
+	private boolean acceptConnection(SocketChannel connection, Executor handshakeExecutor) throws IOException {
+		connection.configureBlocking(false);
+		SocketAddress remoteAddr = connection.getRemoteAddress();
+		SocketAddress localAddr = connection.getLocalAddress();
+		// unix domain socket clients are on this host. they count as loopback, and the port is 0
+		InetAddress remoteAddress = remoteAddr instanceof InetSocketAddress ? ((InetSocketAddress)remoteAddr).getAddress() : InetAddress.getLoopbackAddress();
+		int port = localAddr instanceof InetSocketAddress ? ((InetSocketAddress)localAddr).getPort() : 0;
+		if( null != rateLimiter && !rateLimiter.tryAcceptConnection(remoteAddress) ) {
+			// turned away before anything is parsed. one best effort write of the precomputed 429, none over tls
+			try {
+				if( null == sslContext ) {
+					connection.write(ByteBuffer.wrap(rateLimiter.getRejectResponse()));
+				}
+			} catch( IOException ignore ) {
+			} finally {
+				connection.close();
+			}
+			HttpEvents.connectionAccept(remoteAddress, port, null != sslContext, true);
+			return false;
+		}
+		ConnectionData connectionData = new ConnectionData();
+		connectionData.parser = newParser(port);
+		connectionData.buffer = null;
+		connectionData.resWriter = null;
+		connectionData.pendingResponse = null;
+		connectionData.protocolHandler = null;
+		connectionData.port = port;
+		connectionData.firstRead = true;
+		connectionData.remoteAddress = remoteAddress;
+		connectionData.appOps = SelectionKey.OP_READ;
+		connectionData.acceptNanos = System.nanoTime();
+		connectionData.captureId = null == trafficCapture ? -1 : trafficCapture.open();
+		connectionData.account = memoryBudget.newAccount(remoteAddress, port);
+		connectionData.parser.setMemoryAccount(connectionData.account);
+		SelectionKey newKey = connection.register(selector, SelectionKey.OP_READ);
+		newKey.attach(connectionData);
+		connectionData.parser.setBodyReadyListener(() -> runInLoop(() -> {
+			if( newKey.isValid() ) {
+				setInterest(newKey, SelectionKey.OP_READ);
+				processKey(newKey, true, false);
+			}
+		}));
+		final RateLimiter limiter = rateLimiter;
+		final LoadShedder shedder = loadShedder;
+		connectionData.requestFilter = null;
+		if( null != limiter || null != shedder ) {
+			connectionData.requestFilter = req -> {
+				if( null != limiter ) {
+					limiter.checkRequest(req, remoteAddress);
+				}
+				if( null != shedder ) {
+					shedder.checkAdmission(req);
+				}
+			};
+			connectionData.parser.setRequestFilter(connectionData.requestFilter);
+		}
+		if( null != sslContext ) {
+			connectionData.tls = new TlsChannel(connection, sslContext.createSSLEngine(), tlsNetPool, tlsAppPool, handshakeExecutor, () -> runInLoop(() -> processKey(newKey, false, false)));
+			connectionData.tls.setMemoryAccount(connectionData.account);
+			connectionData.channel = connectionData.tls;
+		} else {
+			connectionData.channel = connection;
+		}
+		currentConnectionCnt += 1;
+		HttpEvents.connectionAccept(remoteAddress, port, null != sslContext, false);
+		return true;
+	}
+	
+	private void processKey(SelectionKey key, boolean readable, boolean writable) {
+		ConnectionData connData = (ConnectionData)key.attachment();
+		try {
+			if( !key.isValid() ) {
+				return;
+			}
+			TlsChannel tls = connData.tls;
+			if( null != tls ) {
+				if( connData.closing ) {
+					if( tls.flush() ) {
+						closeConnection(key);
+					}
+					return;
+				}
+				// socket readiness says little about plaintext. let the application side try whatever it is waiting for
+				tls.flush();
+				readable = 0 != (connData.appOps & SelectionKey.OP_READ);
+				writable = 0 != (connData.appOps & SelectionKey.OP_WRITE);
+				if( !readable && !writable && null == connData.protocolHandler ) {
+					// reading is paused or the body processor is full. the event only moved the tls side along
+					setInterest(key, connData.appOps);
+					return;
+				}
+			}
+			int nextOp;
+			if( null != connData.protocolHandler ) nextOp = processProtocol(key, readable, writable);
+			else if( readable ) nextOp = processRead(key);
+			else if( writable ) nextOp = processWrite(key);
+			else throw new Exception("unknown op");
+			if( null == connData.protocolHandler ) {
+				connData.parser.releaseBuffer();
+			}
+			if( 0 <= nextOp ) {
+				setInterest(key, nextOp);
+			} else if( null != tls && key.isValid() && !tls.shutdownOutput() ) {
+				// send the rest of the response and close_notify before closing
+				connData.closing = true;
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else {
+				closeConnection(key);
+			}
+		} catch( Exception ex ) {
+			Logger.getLogger("http").error(ex, ex);
+			try {
+				closeConnection(key);
+			} catch( IOException ignore ) {}
+		}
+	}
+	
+	private void setInterest(final SelectionKey key, int appOps) {
+		ConnectionData connData = (ConnectionData)key.attachment();
+		if( !key.isValid() || connData.closing ) {
+			return;
+		}
+		connData.appOps = appOps;
+		TlsChannel tls = connData.tls;
+		if( null == tls ) {
+			key.interestOps(appOps);
+			return;
+		}
+		key.interestOps(tls.interestOps(appOps));
+		if( 0 != (appOps & SelectionKey.OP_READ) && tls.hasBufferedInput() ) {
+			runInLoop(() -> processKey(key, false, false));
+		}
+	}
+	
+	// runs the task on the selector thread
+	void runInLoop(Runnable task) {
+		loopTaskQueue.add(task);
+		Selector selector = this.selector;
+		if( null != selector ) {
+			selector.wakeup();
+		}
+	}
+	
+	private void runLoopTasks() {
+		Runnable task;
+		while( null != (task = loopTaskQueue.poll()) ) {
+			if( null != loopWatchdog ) {
+				loopWatchdog.setWork(task);
+			}
+			try {
+				task.run();
+			} catch( Exception ex ) {
+				Logger.getLogger("http").error(ex, ex);
+			}
+		}
+	}
+	
+	private void stopCapture(ConnectionData connData, boolean switched) {
+		if( 0 <= connData.captureId ) {
+			if( switched ) {
+				trafficCapture.switched(connData.captureId);
+			} else {
+				trafficCapture.close(connData.captureId);
+			}
+			connData.captureId = -1;
+		}
+	}
+	
+	// for LoopWatchdog, on its own thread. reads connection state the loop may be changing, so it is best effort
+	private String describeWork(Object work) {
+		if( work instanceof SelectionKey ) {
+			Object attachment = ((SelectionKey)work).attachment();
+			if( attachment instanceof ListenerStats ) {
+				return "accept on " + ((ListenerStats)attachment).getAddress();
+			}
+			if( attachment instanceof ConnectionData ) {
+				ConnectionData connData = (ConnectionData)attachment;
+				StringBuilder buf = new StringBuilder();
+				buf.append("connection ").append(connData.remoteAddress.getHostAddress()).append(" port ").append(connData.port);
+				if( null != connData.protocolHandler ) {
+					buf.append(" ").append(connData.protocolHandler.getClass().getSimpleName());
+				} else {
+					HttpRequest req = connData.parser.getRequest();
+					if( null != req ) {
+						buf.append(" ").append(req.getMethod()).append(" ").append(req.getRequestURI());
+					}
+				}
+				return buf.toString();
+			}
+		}
+		return "loop task " + work.getClass().getName();
+	}
+	
+	private void closeConnection(SelectionKey key) throws IOException {
+		if( !key.isValid() && !key.channel().isOpen() ) {
+			return;
+		}
+		key.cancel();
+		key.channel().close();
+		
+		ConnectionData connData = (ConnectionData)key.attachment();
+		boolean reusable = recycling && null == connData.pendingResponse && null == connData.protocolHandler;
+		boolean abandoned = null != connData.pendingResponse;
+		if( connData.paused ) {
+			pausedKeyQueue.remove(key);
+			connData.paused = false;
+			memoryBudget.paused(-1);
+		}
+		if( null != connData.pendingResponse ) {
+			// client disconnected while the response was still being prepared
+			try {
+				connData.pendingResponse.toCompletableFuture().cancel(true);
+			} catch( UnsupportedOperationException ignore ) {}
+			connData.pendingResponse = null;
+		}
+		if( null != connData.resWriter ) {
+			connData.resWriter.close();
+			connData.resWriter = null;
+		}
+		if( null != connData.protocolHandler ) {
+			connData.protocolHandler.close();
+			connData.protocolHandler = null;
+		}
+		if( null != connData.tls ) {
+			connData.tls.close();
+		}
+		releaseWriteBuffer(connData);
+		stopCapture(connData, false);
+		HttpRequest req = connData.parser.getRequest();
+		if( null != req ) {
+			if( abandoned ) {
+				req.abandon();
+			} else {
+				req.complete();
+			}
+		}
+		connData.parser.release(0);
+		// whatever queues went down with the connection
+		connData.account.close();
+		if( reusable && parserPool.size() < maxConnection ) {
+			parserPool.push(connData.parser);
+		}
+		currentConnectionCnt -= 1;
+		HttpEvents.connectionClose(connData.remoteAddress, connData.port, connData.acceptNanos);
+		if( acceptPaused && currentConnectionCnt < maxConnection ) {
+			setAcceptInterest(true);
+		}
+	}
+	
+	private HttpRequestParser newParser(int port) {
+		HttpRequestParser parser = recycling ? parserPool.poll() : null;
+		if( null == parser ) {
+			parser = new HttpRequestParser(processor, port, parserBufferPool);
+			if( recycling ) {
+				parser.setRecycling();
+			}
+		} else {
+			parser.release(port);
+		}
+		return parser;
 	}
 	
 	private static class ConnectionData {
 		HttpRequestParser parser;
 		ByteBuffer buffer;
 		HttpResponseWriter resWriter;
+		CompletionStage<HttpResponse> pendingResponse;
+		ProtocolHandler protocolHandler;
+		int port;
+		InetAddress remoteAddress;
+		boolean firstRead;
+		ByteChannel channel;
+		TlsChannel tls;
+		int appOps;
+		boolean closing;
+		boolean paused;
+		ByteBuffer interim;
+		long acceptNanos;
+		long writeStartNanos;
+		int captureId;
+		MemoryBudget.Account account;
+		HttpRequestParser.RequestFilter requestFilter;
+	}
+	
+	private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	
+	// writes what is left of an interim response. true when it has all gone out
+	private static boolean writeInterim(ConnectionData connData) throws IOException {
+		connData.channel.write(connData.interim);
+		if( connData.interim.hasRemaining() ) {
+			return false;
+		}
+		connData.interim = null;
+		return true;
+	}
+	
+	// the response buffer, taken when the first response is set up
+	private ByteBuffer writeBuffer(ConnectionData connData) {
+		if( null == connData.buffer ) {
+			connData.buffer = responseBufferPool.acquire(connData.account);
+		}
+		return connData.buffer;
+	}
+	private void releaseWriteBuffer(ConnectionData connData) {
+		if( null != connData.buffer ) {
+			responseBufferPool.release(connData.buffer, connData.account);
+			connData.buffer = null;
+		}
+	}
+	
+	// resumes paused connections for as many parser buffers as fit in the budget
+	private void resumePausedReads() {
+		long room = memoryBudget.getMaxBytes() - memoryBudget.getUsedBytes();
+		while( !pausedKeyQueue.isEmpty() && room >= parserBufferPool.getBufferSize() ) {
+			SelectionKey key = pausedKeyQueue.poll();
+			ConnectionData connData = (ConnectionData)key.attachment();
+			connData.paused = false;
+			memoryBudget.paused(-1);
+			room -= parserBufferPool.getBufferSize();
+			setInterest(key, SelectionKey.OP_READ);
+		}
 	}
 	
-	private int processRead(SocketChannel sockCh, ConnectionData connData) throws IOException {
+	private int processRead(SelectionKey key) throws IOException {
+		ConnectionData connData = (ConnectionData)key.attachment();
+		ByteChannel sockCh = connData.channel;
 		HttpRequestParser parser = connData.parser;
-		ByteBuffer buffer = connData.buffer;
+		ByteBuffer buffer = readBuffer;
+		
+		if( null != connData.pendingResponse || null != connData.resWriter ) {
+			// parked or streaming. keep reading only to notice a disconnect. keep-alive is not supported, so extra bytes are dropped
+			buffer.clear();
+			if( 0 > sockCh.read(buffer) ) {
+				return -1;
+			}
+			return SelectionKey.OP_READ;
+		}
 		
 		HttpResponseWriter resWriter = null;
 		try {
-			buffer.clear();
-			int readLen = sockCh.read(buffer);
-			if( 0 <= readLen ) {
+			int readLen;
+			if( !parser.hasBuffer() && memoryBudget.isExhausted() ) {
+				// no memory for another parser buffer. resumePausedReads picks the connection up again
+				connData.paused = true;
+				pausedKeyQueue.add(key);
+				memoryBudget.paused(1);
+				return 0;
+			}
+			if( parser.isBodyBlocked() ) {
+				// the body processor has room again. feed it the bytes it refused before reading more
+				readLen = 0;
+				buffer.clear();
 				buffer.flip();
+			} else {
+				buffer.clear();
+				readLen = sockCh.read(buffer);
+				if( 0 <= readLen ) {
+					buffer.flip();
+				}
+			}
+			if( 0 <= readLen ) {
+				if( 0 <= connData.captureId && 0 < readLen ) {
+					trafficCapture.data(connData.captureId, buffer.array(), 0, buffer.limit());
+				}
+				if( connData.firstRead && 0 < readLen ) {
+					connData.firstRead = false;
+					if( http2Enabled && Http2Connection.isPrefaceStart(buffer) ) {
+						stopCapture(connData, true);
+						Http2Connection h2 = Http2Connection.startPriorKnowledge(processor, connData.port, this::runInLoop, newWriteRequester(key), slowRequestLog);
+						connData.protocolHandler = h2;
+						setUpHttp2(connData, h2);
+						h2.setMemoryAccount(connData.account);
+						return h2.start(buffer);
+					}
+				}
 				HttpRequest req = parser.addBytes(buffer.array(), 0, buffer.limit());
-				if( null != req ) {
+				if( parser.isBodyBlocked() ) {
+					// stop reading until the body processor's ready listener fires
+					return 0;
+				}
+				if( null == req && parser.takeExpectContinue() ) {
+					// the processor accepted the headers. the client sends the body once it sees this
+					connData.interim = ByteBuffer.wrap(CONTINUE_RESPONSE);
+					return writeInterim(connData) ? SelectionKey.OP_READ : SelectionKey.OP_WRITE;
+				}
+				if( null != req && http2Enabled && "h2c".equals(req.getUpgrade()) ) {
+					resWriter = createH2cUpgradeWriter(req, connData.port, writeBuffer(connData));
+				} else if( null != req ) {
 					Logger.getLogger("http").info("ACCESS: " + req.getMethod() + " " + req.getRequestURI() + "\t" + req.getContentLength() + " bytes");
-					HttpResponse res = processor.process(req);
-					if( null == res ) {
-						throw new HttpException(HttpResponse.Status.NOT_FOUND, "Not Found: " + req.getRequestPath());
+					req.setArrivalNanos(loopWakeNanos);
+					HttpEvents.requestParsed(req, "HTTP/1.1");
+					req.setHandlerStartNanos(System.nanoTime());
+					HttpEvents.HandlerInvocation handlerEvent = HttpEvents.beginHandler();
+					CompletionStage<HttpResponse> stage = processor.processAsync(req);
+					final CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+					stage.whenComplete((res, err) -> {
+						req.setHandlerEndNanos(System.nanoTime());
+						if( null != err ) result.completeExceptionally(err);
+						else result.complete(res);
+					});
+					HttpEvents.endHandler(handlerEvent, req, !result.isDone());
+					if( result.isDone() ) {
+						resWriter = createResponseWriter(req, result.getNow(null), writeBuffer(connData));
+					} else {
+						connData.pendingResponse = stage;
+						result.whenComplete((res, err) -> runInLoop(() -> resumeResponse(key, req, result)));
+						return SelectionKey.OP_READ;
 					}
-					resWriter = new HttpResponseWriter(res.getResponseData(), buffer);
 				}
 			} else {
 				return -1;
 			}
-		} catch(HttpException ex) {
-			Logger.getLogger("http").info(ex.getStatus() + "\t" + ex.getMessage());
-			HttpResponse res = new HttpResponse(ex.getStatus(), ex.getMessage().getBytes("UTF-8"));
-			res.setHeader("Content-Type", "text/plain; charset=utf-8");
-			res.disableKeepAlive();
-			try {
-				resWriter = new HttpResponseWriter(res.getResponseData(), buffer);
-			} catch (Exception ignore) {
+		} catch(RejectedRequestException ex) {
+			HttpEvents.requestError(ex.getStatus(), ex);
+			resWriter = HttpResponseWriter.forBytes(ex.getResponse(), writeBuffer(connData));
+		} catch(Exception ex) {
+			resWriter = createErrorResponseWriter(unwrap(ex), writeBuffer(connData));
+			if( null == resWriter ) {
 				return -1;
 			}
+		}
+		if( null != resWriter ) {
+			startResponse(key, resWriter);
+			return SelectionKey.OP_WRITE;
+		} else {
+			return SelectionKey.OP_READ;
+		}
+	}
+	
+	private HttpResponseWriter createH2cUpgradeWriter(final HttpRequest req, final int port, ByteBuffer buffer) throws Exception {
+		final String http2Settings = req.getHeaderIgnoreCase("HTTP2-Settings");
+		HttpResponse res = new HttpResponse(HttpResponse.Status.SWITCHING_PROTOCOLS);
+		res.setHeader("Upgrade", "h2c");
+		final SlowRequestLog slowLog = slowRequestLog;
+		res.setUpgrade(writeRequester -> Http2Connection.startUpgrade(processor, port, this::runInLoop, writeRequester, slowLog, req, http2Settings));
+		return new HttpResponseWriter(res.getResponseData(), buffer);
+	}
+	
+	// streams go through the same rate limit and admission checks as http/1.1 requests. the upgrade request itself was
+	// checked by the parser
+	private void setUpHttp2(ConnectionData connData, Http2Connection h2) {
+		h2.setRequestFilter(connData.requestFilter);
+		h2.setFileBufferPool(fileBufferPool);
+	}
+	
+	private Runnable newWriteRequester(final SelectionKey key) {
+		return () -> runInLoop(() -> {
+			if( key.isValid() ) {
+				setInterest(key, ((ConnectionData)key.attachment()).appOps | SelectionKey.OP_WRITE);
+			}
+		});
+	}
+	
+	private void startResponse(final SelectionKey key, final HttpResponseWriter resWriter) {
+		final ConnectionData connData = (ConnectionData)key.attachment();
+		connData.resWriter = resWriter;
+		connData.writeStartNanos = System.nanoTime();
+		resWriter.setMemoryAccount(connData.account, fileBufferPool);
+		resWriter.setReadyListener(() -> runInLoop(() -> {
+			if( key.isValid() && connData.resWriter == resWriter ) {
+				setInterest(key, SelectionKey.OP_WRITE);
+			}
+		}));
+	}
+	
+	private void resumeResponse(SelectionKey key, HttpRequest req, CompletableFuture<HttpResponse> result) {
+		ConnectionData connData = (ConnectionData)key.attachment();
+		if( !key.isValid() || null == connData.pendingResponse ) {
+			return;
+		}
+		connData.pendingResponse = null;
+		HttpResponseWriter resWriter;
+		try {
+			resWriter = createResponseWriter(req, result.join(), writeBuffer(connData));
 		} catch(Exception ex) {
+			resWriter = createErrorResponseWriter(unwrap(ex), writeBuffer(connData));
+		}
+		try {
+			if( null == resWriter ) {
+				closeConnection(key);
+			} else {
+				startResponse(key, resWriter);
+				setInterest(key, SelectionKey.OP_WRITE);
+			}
+		} catch( IOException ex ) {
+			Logger.getLogger("http").error(ex, ex);
+		}
+	}
+	
+	private HttpResponseWriter createResponseWriter(HttpRequest req, HttpResponse res, ByteBuffer buffer) throws Exception {
+		if( null == res ) {
+			throw new HttpException(HttpResponse.Status.NOT_FOUND, "Not Found: " + req.getRequestPath());
+		}
+		return new HttpResponseWriter(res.getResponseData(), buffer);
+	}
+	
+	// the processor's own exception. getNow and join wrap a failed stage's one in a CompletionException
+	private static Exception unwrap(Exception ex) {
+		if( ex instanceof CompletionException && ex.getCause() instanceof Exception ) {
+			return (Exception)ex.getCause();
+		}
+		return ex;
+	}
+	
+	private HttpResponseWriter createErrorResponseWriter(Exception ex, ByteBuffer buffer) {
+		if( ex instanceof RejectedRequestException ) {
+			HttpEvents.requestError(((RejectedRequestException)ex).getStatus(), ex);
+			return HttpResponseWriter.forBytes(((RejectedRequestException)ex).getResponse(), buffer);
+		}
+		try {
+			return new HttpResponseWriter(createErrorResponse(ex).getResponseData(), buffer);
+		} catch (Exception ignore) {
+			return null;
+		}
+	}
+	
+	static HttpResponse createErrorResponse(Exception ex) throws UnsupportedEncodingException {
+		HttpResponse res;
+		ex = unwrap(ex);
+		if( ex instanceof IOException && ex.getCause() instanceof HttpException ) {
+			// a body processor turning the body down
+			ex = (Exception)ex.getCause();
+		}
+		if( ex instanceof HttpException ) {
+			HttpException httpEx = (HttpException)ex;
+			Logger.getLogger("http").info(httpEx.getStatus() + "\t" + httpEx.getMessage());
+			HttpEvents.requestError(httpEx.getStatus(), ex);
+			res = new HttpResponse(httpEx.getStatus(), String.valueOf(httpEx.getMessage()).getBytes("UTF-8"));
+			if( ex instanceof RejectedRequestException && 0 <= ((RejectedRequestException)ex).getRetryAfterSeconds() ) {
+				res.setHeader("Retry-After", String.valueOf(((RejectedRequestException)ex).getRetryAfterSeconds()));
+			}
+		} else {
 			Logger.getLogger("http").fatal(ex, ex);
+			HttpEvents.requestError(HttpResponse.Status.INTERNAL_SERVER_ERROR, ex);
 			String message = "INTERNAL_SERVER_ERROR: " + ex.getClass().getName();
 			if( null != ex.getMessage() ) {
 				message += " - " + ex.getMessage();
 			}
-			HttpResponse res = new HttpResponse(HttpResponse.Status.INTERNAL_SERVER_ERROR, message.getBytes("UTF-8"));
-			res.setHeader("Content-Type", "text/plain; charset=utf-8");
-			res.disableKeepAlive();
-			try {
-				resWriter = new HttpResponseWriter(res.getResponseData(), buffer);
-			} catch (Exception ignore) {
-				return -1;
-			}
+			res = new HttpResponse(HttpResponse.Status.INTERNAL_SERVER_ERROR, message.getBytes("UTF-8"));
 		}
-		if( null != resWriter ) {
-			connData.resWriter = resWriter;
-			return SelectionKey.OP_WRITE;
-		} else {
-			return SelectionKey.OP_READ;
+		res.setHeader("Content-Type", "text/plain; charset=utf-8");
+		res.disableKeepAlive();
+		return res;
+	}
+	
+	private int processProtocol(SelectionKey key, boolean readable, boolean writable) throws IOException {
+		ConnectionData connData = (ConnectionData)key.attachment();
+		ByteChannel sockCh = connData.channel;
+		int nextOp = SelectionKey.OP_READ;
+		if( readable ) {
+			nextOp = connData.protocolHandler.processRead(sockCh);
+		}
+		if( 0 <= nextOp && writable ) {
+			nextOp = connData.protocolHandler.processWrite(sockCh);
+		}
+		return nextOp;
+	}
+	
+	// the last byte of an http/1.1 response went out. a 101 isn't the request's response; the h2 stream reports that
+	private void finishedResponse(ConnectionData connData, HttpResponseWriter resWriter) {
+		if( null != resWriter.getUpgrade() ) {
+			return;
+		}
+		HttpRequest req = connData.parser.getRequest();
+		HttpEvents.responseWritten(req, "HTTP/1.1", resWriter.getStatusCode(), resWriter.getWrittenBytes(), connData.writeStartNanos);
+		if( null != slowRequestLog && null != req ) {
+			slowRequestLog.record(req, "HTTP/1.1", resWriter.getStatusCode(), resWriter.getWrittenBytes(), connData.writeStartNanos);
 		}
 	}
 	
 	private int processWrite(SelectionKey key) throws IOException {
 		ConnectionData connData = (ConnectionData)key.attachment();
+		if( null != connData.interim ) {
+			return writeInterim(connData) ? SelectionKey.OP_READ : SelectionKey.OP_WRITE;
+		}
 		HttpResponseWriter resWriter = connData.resWriter;
-		SocketChannel sockCh = (SocketChannel)key.channel();
+		ByteChannel sockCh = connData.channel;
 		if( !resWriter.process(sockCh) ) {
 			resWriter.close();
 			connData.resWriter = null;
+			releaseWriteBuffer(connData);
+			finishedResponse(connData, resWriter);
+			ConnectionUpgrade upgrade = resWriter.getUpgrade();
+			if( null != upgrade ) {
+				stopCapture(connData, true);
+				connData.protocolHandler = upgrade.upgrade(newWriteRequester(key));
+				if( connData.protocolHandler instanceof Http2Connection ) {
+					setUpHttp2(connData, (Http2Connection)connData.protocolHandler);
+				}
+				connData.protocolHandler.setMemoryAccount(connData.account);
+				return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+			}
 			// disconnect. don't support keep-alive mode;
 			return -1;
+		} else if( resWriter.isWaitingForData() ) {
+			return SelectionKey.OP_READ;
 		} else {
 			return SelectionKey.OP_WRITE;
 		}
@@ -0,0 +1,60 @@
+package huck.simplehttp;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+// accept counters of one listening socket. updated by the server loop, readable from any thread
+public class ListenerStats {
+	private SocketAddress address;
+	private int backlog;
+	private boolean reusePort;
+	private LongAdder acceptedCnt;
+	private LongAdder refusedCnt;
+	private LongAdder pausedCnt;
+
+	ListenerStats(SocketAddress address, int backlog, boolean reusePort) {
+		this.address = address;
+		this.backlog = backlog;
+		this.reusePort = reusePort;
+		this.acceptedCnt = new LongAdder();
+		this.refusedCnt = new LongAdder();
+		this.pausedCnt = new LongAdder();
+	}
+
+	public SocketAddress getAddress() {
+		return address;
+	}
+	public int getBacklog() {
+		return backlog;
+	}
+	public boolean isReusePort() {
+		return reusePort;
+	}
+	// connections taken into the loop
+	public long getAcceptedCount() {
+		return acceptedCnt.sum();
+	}
+	// connections accepted and closed at once by the rate limiter
+	public long getRefusedCount() {
+		return refusedCnt.sum();
+	}
+	// how many times accepting stopped because the server was at maxConnection
+	public long getPausedCount() {
+		return pausedCnt.sum();
+	}
+
+	void accepted() {
+		acceptedCnt.increment();
+	}
+	void refused() {
+		refusedCnt.increment();
+	}
+	void paused() {
+		pausedCnt.increment();
+	}
+
+	@Override
+	public String toString() {
+		return address + " backlog=" + backlog + (reusePort ? " reuseport" : "") + " accepted=" + getAcceptedCount() + " refused=" + getRefusedCount() + " paused=" + getPausedCount();
+	}
+}
@@ -0,0 +1,165 @@
+package huck.simplehttp;
+
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+
+// codel style load shedding. the delay of a request is the time from the selector wakeup that delivered its last bytes
+// to the start of processing, measured by the processor returned from wrap(). once every delay has stayed above target
+// for a whole interval, new requests get a precomputed 503 until a request starts below target again.
+// wrap the processor that does the work: an async processor that queues requests on its own pool should wrap the inner
+// processor its pool runs, so the pool's queue is part of the delay
+public class LoadShedder {
+	private long targetNanos;
+	private long intervalNanos;
+	private RouteTable<Boolean> exemptRoutes;
+	private int retryAfterSeconds;
+	private byte[] rejectResponse;
+
+	// codel state, guarded by this
+	private long firstAboveNanos;
+	private long lastSampleNanos;
+	private boolean dropping;
+	private volatile boolean shedding;
+
+	private volatile long lastDelayNanos;
+	private LongAdder sampleCnt;
+	private LongAdder shedAtAdmissionCnt;
+	private LongAdder shedAtProcessCnt;
+	private LongAdder dropStateCnt;
+
+	public LoadShedder(long targetMillis, long intervalMillis) {
+		if( 0 >= targetMillis || 0 >= intervalMillis ) {
+			throw new IllegalArgumentException("targetMillis and intervalMillis must be positive");
+		}
+		this.targetNanos = targetMillis * 1000000L;
+		this.intervalNanos = intervalMillis * 1000000L;
+		this.exemptRoutes = new RouteTable<>();
+		this.firstAboveNanos = 0;
+		this.lastSampleNanos = 0;
+		this.dropping = false;
+		this.shedding = false;
+		this.lastDelayNanos = 0;
+		this.sampleCnt = new LongAdder();
+		this.shedAtAdmissionCnt = new LongAdder();
+		this.shedAtProcessCnt = new LongAdder();
+		this.dropStateCnt = new LongAdder();
+		setRetryAfterSeconds(1);
+	}
+
+	// requests under this path prefix are never shed, e.g. health checks or admin routes
+	public void addExemptRoute(String pathPrefix) {
+		exemptRoutes.add(pathPrefix, Boolean.TRUE);
+	}
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+		this.rejectResponse = RejectedRequestException.precomputed(HttpResponse.Status.SERVICE_UNAVAILABLE, retryAfterSeconds);
+	}
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	public boolean isShedding() {
+		return shedding;
+	}
+	public long getLastDelayMicros() {
+		return lastDelayNanos / 1000;
+	}
+	public long getSampleCount() {
+		return sampleCnt.sum();
+	}
+	public long getShedAtAdmissionCount() {
+		return shedAtAdmissionCnt.sum();
+	}
+	// requests that were admitted but had waited past target by the time they started while shedding
+	public long getShedAtProcessCount() {
+		return shedAtProcessCnt.sum();
+	}
+	// how many times shedding was switched on
+	public long getShedStateCount() {
+		return dropStateCnt.sum();
+	}
+
+	public HttpProcessor wrap(final HttpProcessor processor) {
+		return new HttpProcessor() {
+			@Override
+			public HttpResponse process(HttpRequest req) throws HttpException, Exception {
+				if( !onProcessStart(req) ) {
+					throw newRejection();
+				}
+				return processor.process(req);
+			}
+			@Override
+			public CompletionStage<HttpResponse> processAsync(HttpRequest req) {
+				if( !onProcessStart(req) ) {
+					CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+					result.completeExceptionally(newRejection());
+					return result;
+				}
+				return processor.processAsync(req);
+			}
+			@Override
+			public void checkBeforeBody(HttpRequest req) throws HttpException {
+				processor.checkBeforeBody(req);
+			}
+			@Override
+			public WritableByteChannel getBodyProcessor(HttpRequest req) {
+				return processor.getBodyProcessor(req);
+			}
+		};
+	}
+
+	// records the delay of a request that is about to be processed. false if it should be turned away instead
+	public boolean onProcessStart(HttpRequest req) {
+		long now = System.nanoTime();
+		long delay = now - req.getArrivalNanos();
+		lastDelayNanos = delay;
+		sampleCnt.increment();
+		boolean drop;
+		synchronized( this ) {
+			lastSampleNanos = now;
+			if( delay < targetNanos ) {
+				firstAboveNanos = 0;
+				dropping = false;
+			} else if( 0 == firstAboveNanos ) {
+				firstAboveNanos = now + intervalNanos;
+			} else if( !dropping && 0 <= now - firstAboveNanos ) {
+				dropping = true;
+				dropStateCnt.increment();
+			}
+			shedding = dropping;
+			drop = dropping;
+		}
+		if( drop && !isExempt(req) ) {
+			shedAtProcessCnt.increment();
+			return false;
+		}
+		return true;
+	}
+
+	void checkAdmission(HttpRequest req) throws RejectedRequestException {
+		if( !shedding || isExempt(req) ) {
+			return;
+		}
+		synchronized( this ) {
+			// nothing started for an interval: whatever was queued has drained
+			if( intervalNanos < System.nanoTime() - lastSampleNanos ) {
+				firstAboveNanos = 0;
+				dropping = false;
+				shedding = false;
+				return;
+			}
+		}
+		shedAtAdmissionCnt.increment();
+		throw newRejection();
+	}
+
+	private RejectedRequestException newRejection() {
+		return new RejectedRequestException(HttpResponse.Status.SERVICE_UNAVAILABLE, rejectResponse, retryAfterSeconds);
+	}
+
+	private boolean isExempt(HttpRequest req) {
+		return null != exemptRoutes.match(req);
+	}
+}
@@ -0,0 +1,250 @@
+package huck.simplehttp;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+// watches the server loop for iterations that run longer than budgetMillis. processors, body processors and body
+// channels all run on the loop thread, so one blocking call stops every connection. a watchdog thread checks the
+// running iteration every budget / 4; once it is over budget the loop thread's stack is sampled, once per iteration,
+// and logged with the connection and request being worked on. when the iteration ends the stall goes to the histogram
+// and the ring of recent stalls. time spent waiting in select is not an iteration
+public class LoopWatchdog {
+	public static class Stall {
+		private long finishedMillis;
+		private long durationMillis;
+		private String work;
+		private StackTraceElement[] stack;
+
+		public long getFinishedMillis() {
+			return finishedMillis;
+		}
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+		// the connection, request or loop task in progress when the stack was sampled
+		public String getWork() {
+			return work;
+		}
+		// empty when the iteration ended before the watchdog looked
+		public StackTraceElement[] getStack() {
+			return stack.clone();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder buf = new StringBuilder();
+			buf.append(Instant.ofEpochMilli(finishedMillis)).append(" stall ").append(durationMillis).append("ms in ").append(work);
+			for( StackTraceElement element : stack ) {
+				buf.append("\n\tat ").append(element);
+			}
+			return buf.toString();
+		}
+	}
+
+	private static class Sample {
+		long iteration;
+		String work;
+		StackTraceElement[] stack;
+	}
+
+	private static final int BUCKET_COUNT = 8;
+	private static final StackTraceElement[] NO_STACK = new StackTraceElement[0];
+
+	private long budgetNanos;
+	private long budgetMillis;
+	private BoundedRing<Stall> ring;
+	private LongAdder[] bucketCnt;
+	private LongAdder stallCnt;
+	private LongAdder stallMillis;
+	private AtomicLong maxStallMillis;
+
+	// written by the loop thread, read by the watchdog
+	private volatile long iteration;
+	private volatile long iterationStartNanos;
+	private volatile Object work;
+	private volatile Sample sample;
+
+	private Thread loopThread;
+	private Thread watchThread;
+	private Function<Object, String> describer;
+
+	// capacity : how many recent stalls snapshot() keeps
+	public LoopWatchdog(long budgetMillis, int capacity) {
+		if( 0 >= budgetMillis || 0 >= capacity ) {
+			throw new IllegalArgumentException("budget and capacity must be positive");
+		}
+		this.budgetMillis = budgetMillis;
+		this.budgetNanos = budgetMillis * 1000000L;
+		this.ring = new BoundedRing<>(capacity);
+		this.bucketCnt = new LongAdder[BUCKET_COUNT];
+		for( int i = 0; i < BUCKET_COUNT; i++ ) {
+			this.bucketCnt[i] = new LongAdder();
+		}
+		this.stallCnt = new LongAdder();
+		this.stallMillis = new LongAdder();
+		this.maxStallMillis = new AtomicLong(0);
+		this.iteration = 0;
+		this.iterationStartNanos = 0;
+		this.work = null;
+		this.sample = null;
+	}
+
+	public long getBudgetMillis() {
+		return budgetMillis;
+	}
+	public long getStallCount() {
+		return stallCnt.sum();
+	}
+	public long getTotalStallMillis() {
+		return stallMillis.sum();
+	}
+	public long getMaxStallMillis() {
+		return maxStallMillis.get();
+	}
+
+	// stall counts by duration. bucket i holds stalls shorter than getBucketLimitMillis(i), the last one the rest
+	public int getBucketCount() {
+		return BUCKET_COUNT;
+	}
+	// budget * 2, * 4, ... ; Long.MAX_VALUE for the last bucket
+	public long getBucketLimitMillis(int bucket) {
+		return BUCKET_COUNT - 1 == bucket ? Long.MAX_VALUE : budgetMillis << (bucket + 1);
+	}
+	public long[] getHistogram() {
+		long[] counts = new long[BUCKET_COUNT];
+		for( int i = 0; i < BUCKET_COUNT; i++ ) {
+			counts[i] = bucketCnt[i].sum();
+		}
+		return counts;
+	}
+
+	// oldest first
+	public List<Stall> snapshot() {
+		return ring.snapshot();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		buf.append("stalls=").append(getStallCount()).append(" total=").append(getTotalStallMillis()).append("ms max=").append(getMaxStallMillis()).append("ms");
+		long[] counts = getHistogram();
+		for( int i = 0; i < BUCKET_COUNT; i++ ) {
+			buf.append(BUCKET_COUNT - 1 == i ? " >=" + (budgetMillis << i) : " <" + getBucketLimitMillis(i)).append("ms:").append(counts[i]);
+		}
+		return buf.toString();
+	}
+
+	// called by the server on its loop thread when runServer starts and stops
+	synchronized void start(Function<Object, String> describer) {
+		this.loopThread = Thread.currentThread();
+		this.describer = describer;
+		this.iterationStartNanos = 0;
+		this.work = null;
+		this.sample = null;
+		final long checkMillis = Math.max(1, budgetMillis / 4);
+		watchThread = new Thread(() -> {
+			try {
+				while( !Thread.currentThread().isInterrupted() ) {
+					Thread.sleep(checkMillis);
+					check();
+				}
+			} catch( InterruptedException ignore ) {
+			}
+		}, "loop-watchdog");
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+	synchronized void stop() {
+		if( null != watchThread ) {
+			watchThread.interrupt();
+			watchThread = null;
+		}
+		endIteration();
+		loopThread = null;
+	}
+
+	// loop thread : select returned / is about to be called again
+	void beginIteration(long nowNanos) {
+		iteration += 1;
+		iterationStartNanos = nowNanos;
+	}
+	void endIteration() {
+		long start = iterationStartNanos;
+		if( 0 == start ) {
+			return;
+		}
+		iterationStartNanos = 0;
+		work = null;
+		long elapsed = System.nanoTime() - start;
+		if( elapsed < budgetNanos ) {
+			return;
+		}
+		Sample sampled = sample;
+		Stall stall = new Stall();
+		stall.finishedMillis = System.currentTimeMillis();
+		stall.durationMillis = elapsed / 1000000L;
+		if( null != sampled && iteration == sampled.iteration ) {
+			stall.work = sampled.work;
+			stall.stack = sampled.stack;
+		} else {
+			stall.work = "unknown";
+			stall.stack = NO_STACK;
+		}
+		stallCnt.increment();
+		stallMillis.add(stall.durationMillis);
+		bucketCnt[bucketOf(stall.durationMillis)].increment();
+		long max = maxStallMillis.get();
+		while( stall.durationMillis > max && !maxStallMillis.compareAndSet(max, stall.durationMillis) ) {
+			max = maxStallMillis.get();
+		}
+		ring.add(stall);
+	}
+	// loop thread : what it is about to work on. a SelectionKey or a loop task, described only when a stall is sampled
+	void setWork(Object work) {
+		this.work = work;
+	}
+
+	private int bucketOf(long durationMillis) {
+		int bucket = 0;
+		while( bucket < BUCKET_COUNT - 1 && durationMillis >= getBucketLimitMillis(bucket) ) {
+			bucket += 1;
+		}
+		return bucket;
+	}
+
+	// watchdog thread
+	private void check() {
+		long current = iteration;
+		long start = iterationStartNanos;
+		Thread th = loopThread;
+		if( 0 == start || null == th || System.nanoTime() - start < budgetNanos ) {
+			return;
+		}
+		Sample sampled = sample;
+		if( null != sampled && current == sampled.iteration ) {
+			return;
+		}
+		Sample newSample = new Sample();
+		newSample.iteration = current;
+		newSample.stack = th.getStackTrace();
+		Object currentWork = work;
+		try {
+			newSample.work = null == currentWork ? "loop" : describer.apply(currentWork);
+		} catch( RuntimeException ex ) {
+			// the loop changes what it works on while this reads it
+			newSample.work = String.valueOf(currentWork);
+		}
+		sample = newSample;
+		StringBuilder buf = new StringBuilder();
+		buf.append("server loop blocked over ").append(budgetMillis).append("ms in ").append(newSample.work);
+		for( StackTraceElement element : newSample.stack ) {
+			buf.append("\n\tat ").append(element);
+		}
+		Logger.getLogger("http").warn(buf.toString());
+	}
+}
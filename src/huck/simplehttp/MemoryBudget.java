@@ -0,0 +1,221 @@
+package huck.simplehttp;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// bytes the server holds for connections, by category. HttpServer charges its read, parser, response and tls buffers here,
+// and response bytes queued in StreamingBody, WebSocket and http/2 frame queues as SEND_QUEUE. AsyncFileBody read-ahead
+// buffers are FILE_BUFFER. http/2 connections charge their frame buffers and header tables as HTTP2, the reverse proxy its
+// upstream buffers as UPSTREAM. body processors that keep bodies in memory charge BODY. once the budget is used up the
+// server stops reading from connections that would need a new buffer until usage drops again.
+// each connection has an Account with its own figure of what it holds; getAccounts() lists the open ones.
+// buffers sitting unused in pools are not counted, so size -Xmx and -XX:MaxDirectMemorySize with some room above maxBytes
+public class MemoryBudget {
+	public static enum Category {
+		READ_BUFFER, PARSER_BUFFER, RESPONSE_BUFFER, TLS_BUFFER, FILE_BUFFER, BODY, SEND_QUEUE, HTTP2, UPSTREAM
+	}
+
+	// what one connection holds. charges go to the budget as well. once closed the account charges nothing; closing gives
+	// back whatever is still charged, so queues dropped with the connection need not be counted down
+	public static class Account {
+		private final MemoryBudget budget;
+		private final InetAddress remoteAddress;
+		private final int port;
+		private final long[] categoryBytes;
+		private long usedBytes;
+		private long peakBytes;
+		private boolean closed;
+
+		private Account(MemoryBudget budget, InetAddress remoteAddress, int port) {
+			this.budget = budget;
+			this.remoteAddress = remoteAddress;
+			this.port = port;
+			this.categoryBytes = new long[Category.values().length];
+			this.usedBytes = 0;
+			this.peakBytes = 0;
+			this.closed = false;
+		}
+
+		public InetAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+		// the local port
+		public int getPort() {
+			return port;
+		}
+		public synchronized long getUsedBytes() {
+			return usedBytes;
+		}
+		public synchronized long getUsedBytes(Category category) {
+			return categoryBytes[category.ordinal()];
+		}
+		public synchronized long getPeakBytes() {
+			return peakBytes;
+		}
+
+		public synchronized boolean tryReserve(Category category, long bytes) {
+			if( closed ) {
+				return true;
+			}
+			if( !budget.tryReserve(category, bytes) ) {
+				return false;
+			}
+			charged(category, bytes);
+			return true;
+		}
+		public synchronized void reserve(Category category, long bytes) {
+			if( closed ) {
+				return;
+			}
+			budget.reserve(category, bytes);
+			charged(category, bytes);
+		}
+		public synchronized void release(Category category, long bytes) {
+			if( closed ) {
+				return;
+			}
+			budget.release(category, bytes);
+			charged(category, -bytes);
+		}
+
+		private void charged(Category category, long bytes) {
+			categoryBytes[category.ordinal()] += bytes;
+			usedBytes += bytes;
+			peakBytes = Math.max(peakBytes, usedBytes);
+		}
+
+		synchronized void close() {
+			if( closed ) {
+				return;
+			}
+			closed = true;
+			for( Category category : Category.values() ) {
+				long bytes = categoryBytes[category.ordinal()];
+				if( 0 != bytes ) {
+					budget.release(category, bytes);
+					categoryBytes[category.ordinal()] = 0;
+				}
+			}
+			usedBytes = 0;
+			budget.accountSet.remove(this);
+		}
+
+		@Override
+		public synchronized String toString() {
+			return remoteAddress.getHostAddress() + " port " + port + " used=" + usedBytes + " peak=" + peakBytes;
+		}
+	}
+
+	private long maxBytes;
+	private AtomicLong usedBytes;
+	private AtomicLong peakBytes;
+	private AtomicLongArray categoryBytes;
+	private AtomicInteger pausedCnt;
+	private Set<Account> accountSet;
+
+	// maxBytes <= 0 : no limit, accounting only
+	public MemoryBudget(long maxBytes) {
+		this.maxBytes = 0 < maxBytes ? maxBytes : Long.MAX_VALUE;
+		this.usedBytes = new AtomicLong(0);
+		this.peakBytes = new AtomicLong(0);
+		this.categoryBytes = new AtomicLongArray(Category.values().length);
+		this.pausedCnt = new AtomicInteger(0);
+		this.accountSet = ConcurrentHashMap.newKeySet();
+	}
+
+	// for a new connection. the server closes it with the connection
+	Account newAccount(InetAddress remoteAddress, int port) {
+		Account account = new Account(this, remoteAddress, port);
+		accountSet.add(account);
+		return account;
+	}
+	// the open connections, the ones holding the most first
+	public List<Account> getAccounts() {
+		ArrayList<Account> accountList = new ArrayList<>(accountSet);
+		accountList.sort((a, b) -> Long.compare(b.getUsedBytes(), a.getUsedBytes()));
+		return accountList;
+	}
+	public long getLargestAccountBytes() {
+		long largest = 0;
+		for( Account account : accountSet ) {
+			largest = Math.max(largest, account.getUsedBytes());
+		}
+		return largest;
+	}
+
+	// false, and nothing charged, when the bytes don't fit
+	public boolean tryReserve(Category category, long bytes) {
+		while( true ) {
+			long used = usedBytes.get();
+			if( used + bytes > maxBytes ) {
+				return false;
+			}
+			if( usedBytes.compareAndSet(used, used + bytes) ) {
+				charged(category, used + bytes, bytes);
+				return true;
+			}
+		}
+	}
+	// charges even past the limit. for memory needed to finish work already admitted
+	public void reserve(Category category, long bytes) {
+		charged(category, usedBytes.addAndGet(bytes), bytes);
+	}
+	public void release(Category category, long bytes) {
+		usedBytes.addAndGet(-bytes);
+		categoryBytes.addAndGet(category.ordinal(), -bytes);
+	}
+
+	private void charged(Category category, long used, long bytes) {
+		categoryBytes.addAndGet(category.ordinal(), bytes);
+		long peak = peakBytes.get();
+		while( used > peak && !peakBytes.compareAndSet(peak, used) ) {
+			peak = peakBytes.get();
+		}
+	}
+
+	public boolean isExhausted() {
+		return usedBytes.get() >= maxBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+	public long getUsedBytes(Category category) {
+		return categoryBytes.get(category.ordinal());
+	}
+	public long getPeakBytes() {
+		return peakBytes.get();
+	}
+	// connections whose reads are paused for memory
+	public int getPausedConnectionCount() {
+		return pausedCnt.get();
+	}
+
+	void paused(int delta) {
+		pausedCnt.addAndGet(delta);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buf = new StringBuilder();
+		buf.append("used=").append(getUsedBytes()).append(" peak=").append(getPeakBytes());
+		if( Long.MAX_VALUE != maxBytes ) {
+			buf.append(" max=").append(maxBytes);
+		}
+		for( Category category : Category.values() ) {
+			buf.append(' ').append(category.name().toLowerCase()).append('=').append(getUsedBytes(category));
+		}
+		buf.append(" paused=").append(getPausedConnectionCount());
+		buf.append(" connections=").append(accountSet.size()).append(" largest=").append(getLargestAccountBytes());
+		return buf.toString();
+	}
+}
@@ -0,0 +1,8 @@
+package huck.simplehttp;
+
+import java.nio.channels.ReadableByteChannel;
+
+// a body channel that returns 0 while no data is ready and calls the listener (from any thread) when it becomes readable
+interface NotifyingChannel extends ReadableByteChannel {
+	public void setReadyListener(Runnable listener);
+}
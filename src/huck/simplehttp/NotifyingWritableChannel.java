@@ -0,0 +1,9 @@
+package huck.simplehttp;
+
+import java.nio.channels.WritableByteChannel;
+
+// a body processor that returns 0 while it is full and calls the listener (from any thread) when it can take more.
+// it only returns 0 after a listener is set; callers that can't pause never set one
+interface NotifyingWritableChannel extends WritableByteChannel {
+	public void setReadyListener(Runnable listener);
+}
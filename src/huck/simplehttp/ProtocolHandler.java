@@ -0,0 +1,14 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+
+// takes over a connection after an upgrade. the methods run on the selector thread and return the next interest ops, or -1 to close
+interface ProtocolHandler {
+	public int processRead(ByteChannel sockCh) throws IOException;
+	public int processWrite(ByteChannel sockCh) throws IOException;
+	public void close();
+	// what the handler queues or buffers is charged to the connection's account from here on
+	public default void setMemoryAccount(MemoryBudget.Account account) {
+	}
+}
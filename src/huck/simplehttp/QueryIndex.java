@@ -0,0 +1,140 @@
+package huck.simplehttp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// offsets of the name=value pairs of a query string, found in one pass. names and values are decoded when asked for.
+// lookups scan the pairs instead of hashing, and pairs past maxCount are ignored, so a crafted query can't flood a table
+class QueryIndex {
+	private String query;
+	// per pair : start, index of '=' (or end), end
+	private int[] offsets;
+	private int count;
+
+	public QueryIndex(String query, int maxCount) {
+		this.query = null == query ? "" : query;
+		this.offsets = new int[3 * Math.min(maxCount, 8)];
+		this.count = 0;
+		int len = this.query.length();
+		int start = 0;
+		while( start <= len && count < maxCount ) {
+			int end = this.query.indexOf('&', start);
+			if( 0 > end ) {
+				end = len;
+			}
+			if( start < end ) {
+				int eq = this.query.indexOf('=', start);
+				if( 0 > eq || eq > end ) {
+					eq = end;
+				}
+				// a pair without a name is dropped
+				if( start < eq ) {
+					add(start, eq, end);
+				}
+			}
+			start = end + 1;
+		}
+	}
+
+	private void add(int start, int eq, int end) {
+		if( offsets.length < 3 * (count + 1) ) {
+			int[] newOffsets = new int[offsets.length * 2];
+			System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+			offsets = newOffsets;
+		}
+		offsets[3*count] = start;
+		offsets[3*count+1] = eq;
+		offsets[3*count+2] = end;
+		count++;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public String getFirst(String name) {
+		for( int i = 0; i < count; i++ ) {
+			if( nameEquals(i, name) ) {
+				return getValue(i);
+			}
+		}
+		return null;
+	}
+
+	public List<String> getAll(String name) {
+		List<String> valueList = null;
+		for( int i = 0; i < count; i++ ) {
+			if( nameEquals(i, name) ) {
+				if( null == valueList ) {
+					valueList = new ArrayList<>(2);
+				}
+				valueList.add(getValue(i));
+			}
+		}
+		return null == valueList ? Collections.<String>emptyList() : Collections.unmodifiableList(valueList);
+	}
+
+	public Set<String> getNames() {
+		LinkedHashSet<String> nameSet = new LinkedHashSet<>();
+		for( int i = 0; i < count; i++ ) {
+			nameSet.add(decode(query, offsets[3*i], offsets[3*i+1]));
+		}
+		return Collections.unmodifiableSet(nameSet);
+	}
+
+	private String getValue(int i) {
+		int eq = offsets[3*i+1];
+		int end = offsets[3*i+2];
+		return eq >= end ? "" : decode(query, eq + 1, end);
+	}
+
+	// compares without decoding when the name has no escapes, which is the usual case
+	private boolean nameEquals(int i, String name) {
+		int start = offsets[3*i];
+		int eq = offsets[3*i+1];
+		for( int j = start; j < eq; j++ ) {
+			char ch = query.charAt(j);
+			if( '%' == ch || '+' == ch ) {
+				return name.equals(decode(query, start, eq));
+			}
+		}
+		return eq - start == name.length() && query.regionMatches(start, name, 0, eq - start);
+	}
+
+	// percent and plus decoding as utf-8. a broken escape is kept as it is
+	static String decode(String src, int start, int end) {
+		int idx = start;
+		while( idx < end && '%' != src.charAt(idx) && '+' != src.charAt(idx) ) {
+			idx++;
+		}
+		if( idx == end ) {
+			return src.substring(start, end);
+		}
+		byte[] buf = new byte[(end - start) * 3];
+		int len = 0;
+		for( int i = start; i < end; i++ ) {
+			char ch = src.charAt(i);
+			if( '+' == ch ) {
+				buf[len++] = ' ';
+			} else if( '%' == ch && i + 2 < end && 0 <= Character.digit(src.charAt(i+1), 16) && 0 <= Character.digit(src.charAt(i+2), 16) ) {
+				buf[len++] = (byte)(Character.digit(src.charAt(i+1), 16) * 16 + Character.digit(src.charAt(i+2), 16));
+				i += 2;
+			} else if( 0x80 > ch ) {
+				buf[len++] = (byte)ch;
+			} else {
+				byte[] bytes = String.valueOf(ch).getBytes(StandardCharsets.UTF_8);
+				if( Character.isHighSurrogate(ch) && i + 1 < end ) {
+					bytes = src.substring(i, i + 2).getBytes(StandardCharsets.UTF_8);
+					i++;
+				}
+				System.arraycopy(bytes, 0, buf, len, bytes.length);
+				len += bytes.length;
+			}
+		}
+		return new String(buf, 0, len, StandardCharsets.UTF_8);
+	}
+}
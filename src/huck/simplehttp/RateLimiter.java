@@ -0,0 +1,176 @@
+package huck.simplehttp;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// token buckets per client, keyed by remote address or a header. HttpServer charges them when a request header is parsed,
+// on http/1.1 and per http/2 stream alike, and turns away new connections from an address whose bucket is already empty.
+// a bucket is one AtomicLong (the time it is next full, GCRA), updated by CAS
+public class RateLimiter {
+	private static class Rule {
+		final long intervalNanos;
+		final long toleranceNanos;
+		final ConcurrentHashMap<String, AtomicLong> bucketMap;
+
+		Rule(double permitsPerSecond, int burst) {
+			if( 0 >= permitsPerSecond || 0 >= burst ) {
+				throw new IllegalArgumentException("permitsPerSecond and burst must be positive");
+			}
+			this.intervalNanos = Math.max(1, (long)(1000000000L / permitsPerSecond));
+			this.toleranceNanos = intervalNanos * burst;
+			this.bucketMap = new ConcurrentHashMap<>();
+		}
+	}
+
+	private Rule defaultRule;
+	private RouteTable<Rule> routeRules;
+	private String keyHeader;
+	private long ttlNanos;
+	private AtomicLong nextSweepNanos;
+	private int retryAfterSeconds;
+	private byte[] rejectResponse;
+	private LongAdder rejectedConnectionCnt;
+	private LongAdder rejectedRequestCnt;
+
+	// permitsPerSecond <= 0 : no limit outside of the route limits
+	public RateLimiter(double permitsPerSecond, int burst) {
+		this.defaultRule = 0 < permitsPerSecond ? new Rule(permitsPerSecond, burst) : null;
+		this.routeRules = new RouteTable<>();
+		this.keyHeader = null;
+		this.ttlNanos = 60L * 1000000000L;
+		this.nextSweepNanos = new AtomicLong(System.nanoTime() + ttlNanos);
+		this.rejectedConnectionCnt = new LongAdder();
+		this.rejectedRequestCnt = new LongAdder();
+		setRetryAfterSeconds(1);
+	}
+
+	// key requests on this header (e.g. X-Forwarded-For, X-Api-Key) instead of the remote address. requests without it use the address
+	public void setKeyHeader(String keyHeader) {
+		this.keyHeader = keyHeader;
+	}
+	// a bucket that stayed full this long is dropped
+	public void setBucketTtlMillis(long ttlMillis) {
+		this.ttlNanos = ttlMillis * 1000000L;
+	}
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+		this.rejectResponse = RejectedRequestException.precomputed(HttpResponse.Status.TOO_MANY_REQUESTS, retryAfterSeconds);
+	}
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+	// applies on top of the default limit to request paths starting with pathPrefix. the longest prefix wins
+	public void addRouteLimit(String pathPrefix, double permitsPerSecond, int burst) {
+		routeRules.add(pathPrefix, new Rule(permitsPerSecond, burst));
+	}
+
+	public long getRejectedConnectionCount() {
+		return rejectedConnectionCnt.sum();
+	}
+	public long getRejectedRequestCount() {
+		return rejectedRequestCnt.sum();
+	}
+	public int getBucketCount() {
+		int cnt = null == defaultRule ? 0 : defaultRule.bucketMap.size();
+		for( Rule rule : routeRules.values() ) {
+			cnt += rule.bucketMap.size();
+		}
+		return cnt;
+	}
+
+	// takes a token from the default bucket of the key
+	public boolean tryAcquire(String key) {
+		return null == defaultRule || tryAcquire(defaultRule, key, System.nanoTime());
+	}
+
+	// at accept time only the default limit keyed by address can be checked. nothing is taken here, the requests pay
+	boolean tryAcceptConnection(InetAddress remoteAddress) {
+		if( null == defaultRule || null != keyHeader || null == remoteAddress ) {
+			return true;
+		}
+		if( hasToken(defaultRule, remoteAddress.getHostAddress(), System.nanoTime()) ) {
+			return true;
+		}
+		rejectedConnectionCnt.increment();
+		return false;
+	}
+
+	void checkRequest(HttpRequest req, InetAddress remoteAddress) throws RejectedRequestException {
+		String key = null;
+		if( null != keyHeader ) {
+			key = req.getHeaderIgnoreCase(keyHeader);
+		}
+		if( null == key ) {
+			key = null == remoteAddress ? "" : remoteAddress.getHostAddress();
+		}
+		long now = System.nanoTime();
+		boolean allowed = true;
+		if( null != defaultRule ) {
+			allowed = tryAcquire(defaultRule, key, now);
+		}
+		if( allowed ) {
+			Rule rule = routeRules.match(req);
+			if( null != rule ) {
+				allowed = tryAcquire(rule, key, now);
+			}
+		}
+		if( !allowed ) {
+			rejectedRequestCnt.increment();
+			throw new RejectedRequestException(HttpResponse.Status.TOO_MANY_REQUESTS, rejectResponse, retryAfterSeconds);
+		}
+	}
+
+	byte[] getRejectResponse() {
+		return rejectResponse;
+	}
+
+	private boolean tryAcquire(Rule rule, String key, long now) {
+		sweepIfDue(now);
+		AtomicLong bucket = rule.bucketMap.get(key);
+		if( null == bucket ) {
+			bucket = rule.bucketMap.computeIfAbsent(key, k -> new AtomicLong(now));
+		}
+		while( true ) {
+			long fullAt = bucket.get();
+			long next = Math.max(fullAt, now) + rule.intervalNanos;
+			if( next - now > rule.toleranceNanos ) {
+				return false;
+			}
+			if( bucket.compareAndSet(fullAt, next) ) {
+				return true;
+			}
+		}
+	}
+
+	private static boolean hasToken(Rule rule, String key, long now) {
+		AtomicLong bucket = rule.bucketMap.get(key);
+		return null == bucket || Math.max(bucket.get(), now) + rule.intervalNanos - now <= rule.toleranceNanos;
+	}
+
+	// one caller at a time walks the tables and drops buckets that have been full for ttl
+	private void sweepIfDue(long now) {
+		long due = nextSweepNanos.get();
+		if( now - due < 0 || !nextSweepNanos.compareAndSet(due, now + ttlNanos/2) ) {
+			return;
+		}
+		if( null != defaultRule ) {
+			sweep(defaultRule, now);
+		}
+		for( Rule rule : routeRules.values() ) {
+			sweep(rule, now);
+		}
+	}
+	private void sweep(Rule rule, long now) {
+		Iterator<Map.Entry<String, AtomicLong>> it = rule.bucketMap.entrySet().iterator();
+		while( it.hasNext() ) {
+			Map.Entry<String, AtomicLong> entry = it.next();
+			if( ttlNanos < now - entry.getValue().get() ) {
+				rule.bucketMap.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package huck.simplehttp;
+
+import java.nio.charset.StandardCharsets;
+
+// a request turned away before it reaches the processor. the response is already serialized
+class RejectedRequestException extends HttpException {
+	private static final long serialVersionUID = 6021468391377202318L;
+
+	private byte[] response;
+	private int retryAfterSeconds;
+
+	public RejectedRequestException(HttpResponse.Status status, byte[] response) {
+		this(status, response, -1);
+	}
+	public RejectedRequestException(HttpResponse.Status status, byte[] response, int retryAfterSeconds) {
+		super(status, status.message());
+		this.response = response;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	// a plain text response with the status message and Retry-After, serialized once for a limiter to send on every
+	// rejection. retryAfterSeconds -1 : no Retry-After
+	static byte[] precomputed(HttpResponse.Status status, int retryAfterSeconds) {
+		HttpResponse res = new HttpResponse(status, (status.message() + "\n").getBytes(StandardCharsets.UTF_8));
+		res.setHeader("Content-Type", "text/plain; charset=utf-8");
+		if( 0 <= retryAfterSeconds ) {
+			res.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+		}
+		res.disableKeepAlive();
+		try {
+			return HttpResponseWriter.toBytes(res);
+		} catch( Exception ex ) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public byte[] getResponse() {
+		return response;
+	}
+	// -1 when the response has no Retry-After
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
@@ -0,0 +1,268 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// forwards requests to a list of backends over pooled keep-alive connections. bodies are streamed both ways
+public class ReverseProxyHttpProcessor implements HttpProcessor {
+	public static enum Balance {
+		ROUND_ROBIN, LEAST_CONNECTIONS
+	}
+
+	private static final String EXCHANGE_ATTRIBUTE = ReverseProxyHttpProcessor.class.getName() + ".exchange";
+	private static HashSet<String> hopByHopHeaderSet = new HashSet<>();
+	static {
+		hopByHopHeaderSet.add("connection");
+		hopByHopHeaderSet.add("keep-alive");
+		hopByHopHeaderSet.add("proxy-connection");
+		hopByHopHeaderSet.add("proxy-authenticate");
+		hopByHopHeaderSet.add("proxy-authorization");
+		hopByHopHeaderSet.add("te");
+		hopByHopHeaderSet.add("trailer");
+		hopByHopHeaderSet.add("transfer-encoding");
+		hopByHopHeaderSet.add("upgrade");
+		hopByHopHeaderSet.add("content-length");
+		hopByHopHeaderSet.add("expect");
+		hopByHopHeaderSet.add("http2-settings");
+	}
+
+	private ArrayList<UpstreamClient.Backend> backendList;
+	private Balance balance;
+	private AtomicInteger nextIdx;
+	private UpstreamClient client;
+
+	public ReverseProxyHttpProcessor(List<InetSocketAddress> backends) throws IOException {
+		this(backends, Balance.ROUND_ROBIN);
+	}
+	public ReverseProxyHttpProcessor(List<InetSocketAddress> backends, Balance balance) throws IOException {
+		if( null == backends || backends.isEmpty() || null == balance ) {
+			throw new IllegalArgumentException("no backend");
+		}
+		this.backendList = new ArrayList<>();
+		for( InetSocketAddress address : backends ) {
+			this.backendList.add(new UpstreamClient.Backend(address));
+		}
+		this.balance = balance;
+		this.nextIdx = new AtomicInteger(0);
+		this.client = new UpstreamClient(Collections.unmodifiableList(backendList));
+	}
+
+	public void setMaxIdlePerBackend(int maxIdlePerBackend) {
+		client.maxIdlePerBackend = maxIdlePerBackend;
+	}
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		client.idleTimeoutMillis = idleTimeoutMillis;
+	}
+	public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+		client.connectTimeoutMillis = connectTimeoutMillis;
+	}
+	// until the upstream response header arrives
+	public void setResponseTimeoutMillis(long responseTimeoutMillis) {
+		client.responseTimeoutMillis = responseTimeoutMillis;
+	}
+	// a backend that refused or timed out a connect is skipped for this long, unless every backend is down
+	public void setFailureBackoffMillis(long failureBackoffMillis) {
+		client.failureBackoffMillis = failureBackoffMillis;
+	}
+	// request body bytes buffered per exchange before the client upload is paused
+	public void setMaxQueuedBodyBytes(int maxQueuedBodyBytes) {
+		client.maxQueuedBodyBytes = maxQueuedBodyBytes;
+	}
+
+	// upstream connection buffers and request body bytes waiting for the upstream are charged as UPSTREAM
+	public void setMemoryBudget(MemoryBudget budget) {
+		client.budget = budget;
+	}
+
+	public int getInFlightCount(InetSocketAddress backend) {
+		for( UpstreamClient.Backend b : backendList ) {
+			if( b.address.equals(backend) ) {
+				return b.inFlightCnt.get();
+			}
+		}
+		return 0;
+	}
+	public int getIdleCount(InetSocketAddress backend) {
+		for( UpstreamClient.Backend b : backendList ) {
+			if( b.address.equals(backend) ) {
+				return b.idleCnt.get();
+			}
+		}
+		return 0;
+	}
+
+	// stops the upstream thread. in-flight exchanges fail with 502
+	public void close() {
+		client.shutdown();
+	}
+
+	// the exchange starts here so the body goes upstream while it is still arriving
+	@Override
+	public WritableByteChannel getBodyProcessor(HttpRequest req) {
+		return start(req).body;
+	}
+
+	@Override
+	public CompletionStage<HttpResponse> processAsync(HttpRequest req) {
+		UpstreamClient.Exchange ex = (UpstreamClient.Exchange)req.getAttribute(EXCHANGE_ATTRIBUTE);
+		if( null == ex ) {
+			ex = start(req);
+		}
+		return ex.response;
+	}
+
+	// blocks for the response header, at most as long as the upstream timeouts allow
+	@Override
+	public HttpResponse process(HttpRequest req) throws HttpException, Exception {
+		CompletableFuture<HttpResponse> response = processAsync(req).toCompletableFuture();
+		try {
+			return response.get(client.connectTimeoutMillis + client.responseTimeoutMillis + 1000, TimeUnit.MILLISECONDS);
+		} catch( TimeoutException ex ) {
+			response.cancel(false);
+			throw new HttpException(HttpResponse.Status.GATEWAY_TIMEOUT, "no response from upstream");
+		} catch( ExecutionException ex ) {
+			Throwable cause = ex.getCause();
+			if( cause instanceof Exception ) {
+				throw (Exception)cause;
+			}
+			throw ex;
+		}
+	}
+
+	private UpstreamClient.Exchange start(HttpRequest req) {
+		UpstreamClient.Backend backend = selectBackend();
+		UpstreamClient.Exchange ex = client.start(backend, createRequestHead(req, backend), req.getContentLength(), "HEAD".equals(req.getMethod()));
+		req.setAttribute(EXCHANGE_ATTRIBUTE, ex);
+		// the request can end without processAsync : the body was turned down or the client went away. nothing once the response is sent
+		req.addCompletionListener(() -> client.release(ex));
+		return ex;
+	}
+
+	private UpstreamClient.Backend selectBackend() {
+		int size = backendList.size();
+		int startIdx = Math.floorMod(nextIdx.getAndIncrement(), size);
+		long now = System.currentTimeMillis();
+		UpstreamClient.Backend selected = null;
+		for( int i = 0; i < size; i++ ) {
+			UpstreamClient.Backend backend = backendList.get((startIdx + i) % size);
+			if( now < backend.downUntilMillis ) {
+				continue;
+			}
+			if( null == selected ) {
+				selected = backend;
+				if( Balance.ROUND_ROBIN == balance ) {
+					break;
+				}
+			} else if( backend.inFlightCnt.get() < selected.inFlightCnt.get() ) {
+				// ties go round robin
+				selected = backend;
+			}
+		}
+		if( null == selected ) {
+			selected = backendList.get(startIdx);
+		}
+		selected.inFlightCnt.incrementAndGet();
+		return selected;
+	}
+
+	private static byte[] createRequestHead(HttpRequest req, UpstreamClient.Backend backend) {
+		StringBuilder buf = new StringBuilder(512);
+		buf.append(req.getMethod()).append(' ').append(req.getRequestPath());
+		if( null != req.getQueryString() ) {
+			buf.append('?').append(req.getQueryString());
+		}
+		buf.append(" HTTP/1.1\r\n");
+
+		HashSet<String> connectionTokenSet = new HashSet<>();
+		List<String> connectionList = getHeaderIgnoreCase(req.getHeaderMap(), "Connection");
+		if( null != connectionList ) {
+			for( String value : connectionList ) {
+				for( String token : value.split(",") ) {
+					connectionTokenSet.add(token.trim().toLowerCase());
+				}
+			}
+		}
+		boolean hasHost = false;
+		for( Map.Entry<String, List<String>> entry : req.getHeaderMap().entrySet() ) {
+			String name = entry.getKey().toLowerCase();
+			if( hopByHopHeaderSet.contains(name) || connectionTokenSet.contains(name) || name.startsWith(":") ) {
+				continue;
+			}
+			if( "host".equals(name) ) {
+				hasHost = true;
+			}
+			for( String value : entry.getValue() ) {
+				buf.append(entry.getKey()).append(": ").append(value).append("\r\n");
+			}
+		}
+		if( !hasHost ) {
+			String host = req.getHost();
+			if( null == host ) {
+				host = backend.address.getHostString() + ":" + backend.address.getPort();
+			}
+			buf.append("Host: ").append(host).append("\r\n");
+		}
+		if( 0 < req.getContentLength() ) {
+			buf.append("Content-Length: ").append(req.getContentLength()).append("\r\n");
+		}
+		buf.append("\r\n");
+		return buf.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	static Map<String, List<String>> filterHeaders(Map<String, List<String>> headerMap) {
+		HashSet<String> connectionTokenSet = new HashSet<>();
+		List<String> connectionList = getHeaderIgnoreCase(headerMap, "Connection");
+		if( null != connectionList ) {
+			for( String value : connectionList ) {
+				for( String token : value.split(",") ) {
+					connectionTokenSet.add(token.trim().toLowerCase());
+				}
+			}
+		}
+		HashMap<String, List<String>> result = new HashMap<>();
+		for( Map.Entry<String, List<String>> entry : headerMap.entrySet() ) {
+			String name = entry.getKey().toLowerCase();
+			if( !hopByHopHeaderSet.contains(name) && !connectionTokenSet.contains(name) ) {
+				result.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return result;
+	}
+
+	static List<String> getHeaderIgnoreCase(Map<String, List<String>> headerMap, String name) {
+		for( Map.Entry<String, List<String>> entry : headerMap.entrySet() ) {
+			if( name.equalsIgnoreCase(entry.getKey()) ) {
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	static boolean containsToken(List<String> valueList, String token) {
+		if( null == valueList ) {
+			return false;
+		}
+		for( String value : valueList ) {
+			for( String item : value.split(",") ) {
+				if( token.equalsIgnoreCase(item.trim()) ) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,63 @@
+package huck.simplehttp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// values by request path prefix, the longest matching prefix wins; of two equal prefixes the one added first.
+// copy on write, so lookups from any thread take no lock. routes are meant to be added at startup
+class RouteTable<T> {
+	private static class Route<T> {
+		final String pathPrefix;
+		final T value;
+
+		Route(String pathPrefix, T value) {
+			this.pathPrefix = pathPrefix;
+			this.value = value;
+		}
+	}
+
+	// longest prefix first
+	private volatile ArrayList<Route<T>> routeList;
+
+	RouteTable() {
+		this.routeList = new ArrayList<>();
+	}
+
+	synchronized void add(String pathPrefix, T value) {
+		if( null == pathPrefix || null == value ) {
+			throw new NullPointerException();
+		}
+		ArrayList<Route<T>> newRouteList = new ArrayList<>(routeList);
+		int idx = 0;
+		while( idx < newRouteList.size() && newRouteList.get(idx).pathPrefix.length() >= pathPrefix.length() ) {
+			idx++;
+		}
+		newRouteList.add(idx, new Route<>(pathPrefix, value));
+		routeList = newRouteList;
+	}
+
+	// null when no prefix matches or there is no path
+	T match(String path) {
+		if( null == path ) {
+			return null;
+		}
+		for( Route<T> route : routeList ) {
+			if( path.startsWith(route.pathPrefix) ) {
+				return route.value;
+			}
+		}
+		return null;
+	}
+	T match(HttpRequest req) {
+		return match(req.getRequestPath());
+	}
+
+	// in the order they are matched
+	List<T> values() {
+		ArrayList<T> valueList = new ArrayList<>();
+		for( Route<T> route : routeList ) {
+			valueList.add(route.value);
+		}
+		return valueList;
+	}
+}
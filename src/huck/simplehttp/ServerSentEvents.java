@@ -0,0 +1,123 @@
+package huck.simplehttp;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// text/event-stream framing over a StreamingBody
+public class ServerSentEvents {
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes();
+	
+	private StreamingBody body;
+	private volatile long lastSendNanos;
+	private ScheduledFuture<?> heartbeat;
+	
+	public ServerSentEvents() {
+		this(new StreamingBody());
+	}
+	public ServerSentEvents(StreamingBody body) {
+		this.body = body;
+		this.lastSendNanos = System.nanoTime();
+		this.heartbeat = null;
+	}
+	
+	public HttpResponse newResponse() {
+		HttpResponse res = new HttpResponse(HttpResponse.Status.OK, body);
+		res.setHeader("Content-Type", "text/event-stream; charset=utf-8");
+		res.setHeader("Cache-Control", "no-cache");
+		return res;
+	}
+	
+	public StreamingBody getBody() {
+		return body;
+	}
+	
+	public boolean send(String data) {
+		return send(null, null, data);
+	}
+	// returns false when the event was not queued : the stream is closed or the client is not keeping up
+	public boolean send(String event, String id, String data) {
+		StringBuilder buf = new StringBuilder();
+		if( null != id ) {
+			buf.append("id: ").append(checkField("id", id)).append('\n');
+		}
+		if( null != event ) {
+			buf.append("event: ").append(checkField("event", event)).append('\n');
+		}
+		if( null != data ) {
+			appendLines(buf, "data: ", data);
+		}
+		buf.append('\n');
+		return sendRaw(buf.toString());
+	}
+	public boolean sendRetry(long retryMillis) {
+		return sendRaw("retry: " + retryMillis + "\n\n");
+	}
+	public boolean sendComment(String comment) {
+		StringBuilder buf = new StringBuilder();
+		appendLines(buf, ": ", comment);
+		buf.append('\n');
+		return sendRaw(buf.toString());
+	}
+	
+	// sends a comment line when nothing was sent during the period, so that proxies keep the stream open
+	public synchronized void startHeartbeat(ScheduledExecutorService scheduler, final long periodMillis) {
+		stopHeartbeat();
+		final long periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+		heartbeat = scheduler.scheduleAtFixedRate(() -> {
+			if( body.isClosed() ) {
+				stopHeartbeat();
+			} else if( System.nanoTime() - lastSendNanos >= periodNanos ) {
+				lastSendNanos = System.nanoTime();
+				body.publish(ByteBuffer.wrap(HEARTBEAT));
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+	public synchronized void stopHeartbeat() {
+		if( null != heartbeat ) {
+			heartbeat.cancel(false);
+			heartbeat = null;
+		}
+	}
+	
+	public void close() {
+		stopHeartbeat();
+		body.finish();
+	}
+	
+	// a line break inside id or event would start a new field on the client
+	private static String checkField(String name, String value) {
+		if( 0 <= value.indexOf('\r') || 0 <= value.indexOf('\n') ) {
+			throw new IllegalArgumentException(name + " must not contain CR or LF");
+		}
+		return value;
+	}
+	
+	// the client ends a line at CR, LF or CRLF, so every one of them starts a new prefixed line
+	private static void appendLines(StringBuilder buf, String prefix, String text) {
+		int start = 0;
+		int len = text.length();
+		for( int i = 0; i < len; i++ ) {
+			char c = text.charAt(i);
+			if( '\r' == c || '\n' == c ) {
+				buf.append(prefix).append(text, start, i).append('\n');
+				if( '\r' == c && i + 1 < len && '\n' == text.charAt(i + 1) ) {
+					i++;
+				}
+				start = i + 1;
+			}
+		}
+		buf.append(prefix).append(text, start, len).append('\n');
+	}
+	
+	private boolean sendRaw(String frame) {
+		lastSendNanos = System.nanoTime();
+		try {
+			return body.publish(frame.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException ignore) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package huck.simplehttp;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// the phase breakdown of requests slower than a threshold, kept in a ring of the last capacity entries.
+// phases, all from System.nanoTime() :
+//   parse   first bytes of the request to the end of its headers
+//   body    end of headers to the whole request read
+//   queue   request read to the processor called
+//   handler processor called to the response ready
+//   write   response ready to its last byte handed to the socket
+public class SlowRequestLog {
+	public static class Entry {
+		private long finishedMillis;
+		private String protocol;
+		private String method;
+		private String path;
+		private String status;
+		private long bytes;
+		private long parseMicros;
+		private long bodyMicros;
+		private long queueMicros;
+		private long handlerMicros;
+		private long writeMicros;
+		private long totalMicros;
+
+		public long getFinishedMillis() {
+			return finishedMillis;
+		}
+		public String getProtocol() {
+			return protocol;
+		}
+		public String getMethod() {
+			return method;
+		}
+		public String getPath() {
+			return path;
+		}
+		public String getStatus() {
+			return status;
+		}
+		public long getBytes() {
+			return bytes;
+		}
+		public long getParseMicros() {
+			return parseMicros;
+		}
+		public long getBodyMicros() {
+			return bodyMicros;
+		}
+		public long getQueueMicros() {
+			return queueMicros;
+		}
+		public long getHandlerMicros() {
+			return handlerMicros;
+		}
+		public long getWriteMicros() {
+			return writeMicros;
+		}
+		public long getTotalMicros() {
+			return totalMicros;
+		}
+
+		@Override
+		public String toString() {
+			return Instant.ofEpochMilli(finishedMillis) + " " + protocol + " " + method + " " + path + " " + status + " " + bytes + " bytes"
+				+ " total=" + totalMicros + "us parse=" + parseMicros + "us body=" + bodyMicros + "us queue=" + queueMicros
+				+ "us handler=" + handlerMicros + "us write=" + writeMicros + "us";
+		}
+	}
+
+	private long thresholdNanos;
+	private BoundedRing<Entry> ring;
+	private LongAdder slowCnt;
+
+	public SlowRequestLog(long thresholdMillis, int capacity) {
+		this.thresholdNanos = thresholdMillis * 1000000L;
+		this.ring = new BoundedRing<>(capacity);
+		this.slowCnt = new LongAdder();
+	}
+
+	// all requests that were over the threshold, including those pushed out of the ring
+	public long getSlowCount() {
+		return slowCnt.sum();
+	}
+
+	// oldest first
+	public List<Entry> snapshot() {
+		return ring.snapshot();
+	}
+
+	// one line per entry, oldest first
+	public String dump() {
+		StringBuilder buf = new StringBuilder();
+		for( Entry entry : snapshot() ) {
+			buf.append(entry).append('\n');
+		}
+		return buf.toString();
+	}
+
+	public void clear() {
+		ring.clear();
+	}
+
+	// called when the last byte of the response went out
+	void record(HttpRequest req, String protocol, String status, long bytes, long writeStartNanos) {
+		long now = System.nanoTime();
+		long start = 0 != req.getParseStartNanos() ? req.getParseStartNanos() : req.getArrivalNanos();
+		if( now - start < thresholdNanos ) {
+			return;
+		}
+		Entry entry = new Entry();
+		entry.finishedMillis = System.currentTimeMillis();
+		entry.protocol = protocol;
+		entry.method = req.getMethod();
+		entry.path = req.getRequestPath();
+		entry.status = status;
+		entry.bytes = bytes;
+		entry.parseMicros = micros(req.getParseStartNanos(), req.getHeaderEndNanos());
+		entry.bodyMicros = micros(req.getHeaderEndNanos(), req.getArrivalNanos());
+		entry.queueMicros = micros(req.getArrivalNanos(), req.getHandlerStartNanos());
+		entry.handlerMicros = micros(req.getHandlerStartNanos(), req.getHandlerEndNanos());
+		entry.writeMicros = micros(writeStartNanos, now);
+		entry.totalMicros = (now - start) / 1000;
+		slowCnt.increment();
+		ring.add(entry);
+	}
+
+	// 0 for a phase that didn't happen. the loop takes one timestamp per wakeup, so a phase that ended in the same wakeup
+	// it started can come out slightly negative
+	private static long micros(long from, long to) {
+		return 0 == from || 0 == to ? 0 : Math.max(0, to - from) / 1000;
+	}
+}
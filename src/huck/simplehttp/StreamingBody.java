@@ -0,0 +1,218 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+
+// push-style body : producers publish buffers from any thread, the connection only wants OP_WRITE while data is queued
+public class StreamingBody implements HttpResponse.BodySupplier {
+	private final int lowWatermark;
+	private final int highWatermark;
+	
+	private final ArrayDeque<ByteBuffer> queue;
+	private long queuedBytes;
+	private boolean finished;
+	private boolean closed;
+	private boolean aboveHighWatermark;
+	private boolean supplied;
+	
+	private Runnable readyListener;
+	private boolean readyListenerArmed;
+	private Runnable writabilityListener;
+	private MemoryBudget.Account account;
+	
+	public StreamingBody() {
+		this(16*1024, 64*1024);
+	}
+	public StreamingBody(int lowWatermark, int highWatermark) {
+		if( lowWatermark > highWatermark ) {
+			throw new IllegalArgumentException("lowWatermark > highWatermark");
+		}
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.queue = new ArrayDeque<>();
+		this.queuedBytes = 0;
+		this.finished = false;
+		this.closed = false;
+		this.aboveHighWatermark = false;
+		this.supplied = false;
+		this.readyListener = null;
+		this.readyListenerArmed = false;
+		this.writabilityListener = null;
+		this.account = null;
+	}
+	
+	// the buffer is owned by the stream after publish. returns false when the stream is closed or already above the high watermark;
+	// the buffer is not queued then. a buffer that crosses the high watermark is queued, isWritable() turns false
+	// and the writability listener fires once the queue has drained
+	public boolean publish(ByteBuffer buf) {
+		Runnable listener = null;
+		synchronized(this) {
+			if( closed || finished || aboveHighWatermark ) {
+				return false;
+			}
+			if( 0 < buf.remaining() ) {
+				queue.add(buf);
+				queuedBytes += buf.remaining();
+				if( null != account ) {
+					account.reserve(MemoryBudget.Category.SEND_QUEUE, buf.remaining());
+				}
+				listener = takeReadyListener();
+			}
+			if( queuedBytes >= highWatermark ) {
+				aboveHighWatermark = true;
+			}
+		}
+		if( null != listener ) {
+			listener.run();
+		}
+		return true;
+	}
+	public boolean publish(byte[] bytes) {
+		return publish(ByteBuffer.wrap(bytes));
+	}
+	
+	// no more data. the response ends after the queued bytes are written
+	public void finish() {
+		Runnable listener;
+		synchronized(this) {
+			if( finished ) {
+				return;
+			}
+			finished = true;
+			listener = takeReadyListener();
+		}
+		if( null != listener ) {
+			listener.run();
+		}
+	}
+	
+	// ends the response without completing the body. the connection is dropped instead of being terminated normally
+	public void abort() {
+		Runnable listener;
+		synchronized(this) {
+			if( closed ) {
+				return;
+			}
+			closed = true;
+			dropQueue();
+			listener = takeReadyListener();
+		}
+		if( null != listener ) {
+			listener.run();
+		}
+	}
+	
+	public synchronized boolean isWritable() {
+		return !closed && !finished && !aboveHighWatermark;
+	}
+	// true after the connection is gone or the response is finished
+	public synchronized boolean isClosed() {
+		return closed || finished;
+	}
+	public synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+	
+	// called on the selector thread when the queue drops below the low watermark after crossing the high watermark
+	public synchronized void setWritabilityListener(Runnable listener) {
+		this.writabilityListener = listener;
+	}
+	
+	@Override
+	public synchronized ReadableByteChannel get() throws Exception {
+		if( supplied ) {
+			throw new IllegalStateException("StreamingBody can be used for only one response");
+		}
+		supplied = true;
+		return new StreamChannel();
+	}
+	
+	// the queued bytes are charged to the connection from here on
+	synchronized void setMemoryAccount(MemoryBudget.Account account) {
+		this.account = account;
+		if( null != account && 0 < queuedBytes ) {
+			account.reserve(MemoryBudget.Category.SEND_QUEUE, queuedBytes);
+		}
+	}
+	
+	private void dropQueue() {
+		if( null != account && 0 < queuedBytes ) {
+			account.release(MemoryBudget.Category.SEND_QUEUE, queuedBytes);
+		}
+		queue.clear();
+		queuedBytes = 0;
+	}
+	
+	private Runnable takeReadyListener() {
+		if( readyListenerArmed && null != readyListener ) {
+			readyListenerArmed = false;
+			return readyListener;
+		}
+		return null;
+	}
+	
+	private class StreamChannel implements NotifyingChannel {
+		@Override
+		public boolean isOpen() {
+			synchronized(StreamingBody.this) {
+				return !closed;
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			synchronized(StreamingBody.this) {
+				closed = true;
+				dropQueue();
+			}
+		}
+		@Override
+		public void setReadyListener(Runnable listener) {
+			synchronized(StreamingBody.this) {
+				readyListener = listener;
+			}
+		}
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			Runnable listener = null;
+			int readLen = 0;
+			synchronized(StreamingBody.this) {
+				if( closed ) {
+					throw new ClosedChannelException();
+				}
+				while( 0 < dst.remaining() && !queue.isEmpty() ) {
+					ByteBuffer head = queue.peek();
+					int len = Math.min(dst.remaining(), head.remaining());
+					int orgLimit = head.limit();
+					head.limit(head.position() + len);
+					dst.put(head);
+					head.limit(orgLimit);
+					readLen += len;
+					if( 0 >= head.remaining() ) {
+						queue.poll();
+					}
+				}
+				queuedBytes -= readLen;
+				if( null != account && 0 < readLen ) {
+					account.release(MemoryBudget.Category.SEND_QUEUE, readLen);
+				}
+				if( 0 == readLen ) {
+					if( finished ) {
+						return -1;
+					}
+					readyListenerArmed = true;
+				}
+				if( aboveHighWatermark && queuedBytes <= lowWatermark ) {
+					aboveHighWatermark = false;
+					listener = writabilityListener;
+				}
+			}
+			if( null != listener ) {
+				listener.run();
+			}
+			return readLen;
+		}
+	}
+}
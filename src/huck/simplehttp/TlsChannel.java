@@ -0,0 +1,325 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+// SSLEngine over a non-blocking socket. read and write never block; they return 0 while the handshake waits for the peer or a delegated task
+class TlsChannel implements ByteChannel {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private SocketChannel sockCh;
+	private SSLEngine engine;
+	private ByteBufferPool netPool;
+	private ByteBufferPool appPool;
+	private Executor taskExecutor;
+	private Runnable taskListener;
+	private MemoryBudget.Account account;
+
+	// netIn is in write mode, netOut and appIn in read mode. each is null while empty, so idle connections hold no buffers
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+	private boolean netInUnderflow;
+	private volatile boolean taskRunning;
+	private boolean inboundDone;
+	private boolean open;
+
+	// taskListener is called from the executor thread after delegated tasks have run
+	public TlsChannel(SocketChannel sockCh, SSLEngine engine, ByteBufferPool netPool, ByteBufferPool appPool, Executor taskExecutor, Runnable taskListener) throws SSLException {
+		this.sockCh = sockCh;
+		this.engine = engine;
+		this.netPool = netPool;
+		this.appPool = appPool;
+		this.taskExecutor = taskExecutor;
+		this.taskListener = taskListener;
+		this.account = null;
+		this.netIn = null;
+		this.netOut = null;
+		this.appIn = null;
+		this.netInUnderflow = false;
+		this.taskRunning = false;
+		this.inboundDone = false;
+		this.open = true;
+		engine.setUseClientMode(false);
+		engine.beginHandshake();
+	}
+
+	// pooled buffers are charged to the connection's account. set before the first read or write
+	void setMemoryAccount(MemoryBudget.Account account) {
+		this.account = account;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if( !open ) {
+			throw new ClosedChannelException();
+		}
+		int total = 0;
+		while( dst.hasRemaining() ) {
+			if( null != appIn ) {
+				int len = Math.min(appIn.remaining(), dst.remaining());
+				ByteBuffer src = appIn.duplicate();
+				src.limit(src.position() + len);
+				dst.put(src);
+				appIn.position(appIn.position() + len);
+				total += len;
+				if( !appIn.hasRemaining() ) {
+					appPool.release(appIn, account);
+					appIn = null;
+				}
+				continue;
+			}
+			if( inboundDone || !progressHandshake() || 0 >= unwrap() ) {
+				break;
+			}
+		}
+		if( 0 == total && inboundDone ) {
+			return -1;
+		}
+		return total;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if( !open ) {
+			throw new ClosedChannelException();
+		}
+		int total = 0;
+		while( src.hasRemaining() ) {
+			if( !progressHandshake() ) {
+				break;
+			}
+			if( SSLEngineResult.HandshakeStatus.NEED_UNWRAP == engine.getHandshakeStatus() ) {
+				// handshake needs the peer. application records arriving meanwhile stay in appIn
+				if( 0 >= unwrap() ) {
+					break;
+				}
+				continue;
+			}
+			SSLEngineResult result = wrap(src);
+			if( SSLEngineResult.Status.CLOSED == result.getStatus() ) {
+				throw new ClosedChannelException();
+			}
+			total += result.bytesConsumed();
+		}
+		flush();
+		return total;
+	}
+
+	// plaintext or a whole record is buffered, so the selector won't report it
+	public boolean hasBufferedInput() {
+		return null != appIn || (null != netIn && 0 < netIn.position() && !netInUnderflow);
+	}
+
+	// socket interest ops needed to serve the application's interest ops
+	public int interestOps(int appOps) {
+		if( taskRunning ) {
+			return 0;
+		}
+		int ops = appOps;
+		if( null != netOut ) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		if( SSLEngineResult.HandshakeStatus.NEED_UNWRAP == engine.getHandshakeStatus() && !hasBufferedInput() ) {
+			ops |= SelectionKey.OP_READ;
+		}
+		return ops;
+	}
+
+	// true when nothing is left to send
+	public boolean flush() throws IOException {
+		if( null == netOut ) {
+			return true;
+		}
+		sockCh.write(netOut);
+		if( netOut.hasRemaining() ) {
+			return false;
+		}
+		netPool.release(netOut, account);
+		netOut = null;
+		return true;
+	}
+
+	// queues close_notify. true once it has been sent
+	public boolean shutdownOutput() throws IOException {
+		if( !open || taskRunning ) {
+			return true;
+		}
+		engine.closeOutbound();
+		while( flush() ) {
+			if( engine.isOutboundDone() ) {
+				return true;
+			}
+			wrap(EMPTY);
+		}
+		return false;
+	}
+
+	@Override
+	public void close() {
+		if( !open ) {
+			return;
+		}
+		open = false;
+		engine.closeOutbound();
+		netPool.release(netIn, account);
+		netPool.release(netOut, account);
+		appPool.release(appIn, account);
+		netIn = null;
+		netOut = null;
+		appIn = null;
+	}
+
+	// false while the handshake waits for a delegated task or for the socket to drain
+	private boolean progressHandshake() throws IOException {
+		while( true ) {
+			if( taskRunning || !flush() ) {
+				return false;
+			}
+			switch( engine.getHandshakeStatus() ) {
+			case NEED_TASK:
+				runDelegatedTasks();
+				return false;
+			case NEED_WRAP:
+				wrap(EMPTY);
+				break;
+			default:
+				return true;
+			}
+		}
+	}
+
+	private void runDelegatedTasks() {
+		taskRunning = true;
+		Runnable runner = () -> {
+			try {
+				Runnable task;
+				while( null != (task = engine.getDelegatedTask()) ) {
+					task.run();
+				}
+			} finally {
+				taskRunning = false;
+				taskListener.run();
+			}
+		};
+		try {
+			taskExecutor.execute(runner);
+		} catch( RejectedExecutionException ex ) {
+			runner.run();
+		}
+	}
+
+	// called with netOut flushed
+	private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+		ByteBuffer out = netPool.acquire(account);
+		SSLEngineResult result;
+		try {
+			result = engine.wrap(src, out);
+		} catch( SSLException ex ) {
+			netPool.release(out, account);
+			throw ex;
+		}
+		out.flip();
+		if( out.hasRemaining() ) {
+			netOut = out;
+		} else {
+			netPool.release(out, account);
+		}
+		if( SSLEngineResult.Status.BUFFER_OVERFLOW == result.getStatus() ) {
+			throw new SSLException("packet buffer too small: " + netPool.getBufferSize());
+		}
+		return result;
+	}
+
+	// unwraps one record. 1 on progress, 0 when the socket has no more data, -1 at the end of the inbound stream
+	private int unwrap() throws IOException {
+		while( true ) {
+			if( null == netIn ) {
+				netIn = netPool.acquire(account);
+			}
+			if( 0 == netIn.position() || netInUnderflow ) {
+				int readLen = sockCh.read(netIn);
+				if( 0 > readLen ) {
+					// peer closed without close_notify
+					inboundDone = true;
+					return -1;
+				} else if( 0 == readLen ) {
+					releaseEmptyNetIn();
+					return 0;
+				}
+				netInUnderflow = false;
+			}
+
+			boolean appEmpty = null == appIn;
+			ByteBuffer app = appEmpty ? newAppBuffer() : appIn.compact();
+			SSLEngineResult result;
+			netIn.flip();
+			try {
+				result = engine.unwrap(netIn, app);
+			} finally {
+				netIn.compact();
+				app.flip();
+				if( app.hasRemaining() ) {
+					appIn = app;
+				} else {
+					appPool.release(app, account);
+					appIn = null;
+				}
+			}
+			releaseEmptyNetIn();
+
+			switch( result.getStatus() ) {
+			case OK:
+				return 1;
+			case BUFFER_UNDERFLOW:
+				if( null != netIn && !netIn.hasRemaining() ) {
+					throw new SSLException("record larger than packet buffer: " + netPool.getBufferSize());
+				}
+				netInUnderflow = true;
+				break;
+			case BUFFER_OVERFLOW:
+				if( !appEmpty ) {
+					// let the caller drain appIn first
+					return 1;
+				}
+				if( engine.getSession().getApplicationBufferSize() <= app.capacity() ) {
+					throw new SSLException("application buffer too small: " + app.capacity());
+				}
+				break;
+			case CLOSED:
+			default:
+				// close_notify received. ours is sent when the connection closes, so a pending response still goes out
+				inboundDone = true;
+				return -1;
+			}
+		}
+	}
+
+	private ByteBuffer newAppBuffer() {
+		int size = engine.getSession().getApplicationBufferSize();
+		return size <= appPool.getBufferSize() ? appPool.acquire(account) : ByteBuffer.allocate(size);
+	}
+
+	private void releaseEmptyNetIn() {
+		if( null != netIn && 0 == netIn.position() ) {
+			netPool.release(netIn, account);
+			netIn = null;
+			netInUnderflow = false;
+		}
+	}
+}
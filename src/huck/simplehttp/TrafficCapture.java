@@ -0,0 +1,289 @@
+package huck.simplehttp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+// raw inbound bytes of http/1.1 connections as the server read them, with the fragment boundaries and timing, for
+// replaying a real request mix. see TrafficReplay in example/. the file holds whatever clients sent, cookies and
+// credentials included.
+// the loop thread only copies into a chunk; a writer thread writes full chunks out. when maxPendingChunks are waiting
+// or maxBytes have been written, records are dropped and counted instead of stalling the loop. a connection that lost
+// records ends with TRUNCATED instead of CLOSE, or with nothing when that record is dropped too; replay skips both. a
+// connection that switches to http/2 is captured up to the switch, which is marked with SWITCH instead of CLOSE.
+// file : "SHCAP1\r\n", the start time in epoch millis, then records
+//   byte type, int connection, long nanos since the start, and for DATA int length and the bytes
+public class TrafficCapture implements Closeable {
+	public static final byte OPEN = 1;
+	public static final byte DATA = 2;
+	public static final byte CLOSE = 3;
+	public static final byte SWITCH = 4;
+	public static final byte TRUNCATED = 5;
+
+	private static final byte[] MAGIC = "SHCAP1\r\n".getBytes(StandardCharsets.ISO_8859_1);
+	private static final int RECORD_HEADER_SIZE = 1 + 4 + 8;
+
+	public static class Record {
+		private byte type;
+		private int connection;
+		private long nanos;
+		private byte[] bytes;
+
+		public byte getType() {
+			return type;
+		}
+		public int getConnection() {
+			return connection;
+		}
+		// since the capture started
+		public long getNanos() {
+			return nanos;
+		}
+		// DATA only
+		public byte[] getBytes() {
+			return bytes;
+		}
+	}
+
+	// reads a capture file back, record by record
+	public static class Reader implements Closeable {
+		private FileChannel ch;
+		private ByteBuffer buf;
+		private long startMillis;
+
+		public Reader(Path path) throws IOException {
+			this.ch = FileChannel.open(path, StandardOpenOption.READ);
+			this.buf = ByteBuffer.allocate(64 * 1024);
+			this.buf.limit(0);
+			try {
+				fill(MAGIC.length + 8);
+				for( byte b : MAGIC ) {
+					if( b != buf.get() ) {
+						throw new IOException("not a capture file : " + path);
+					}
+				}
+				this.startMillis = buf.getLong();
+			} catch( IOException ex ) {
+				ch.close();
+				throw ex;
+			}
+		}
+
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		// null at the end of the file. a record cut short by a crash ends the file too
+		public Record next() throws IOException {
+			try {
+				fill(RECORD_HEADER_SIZE);
+				Record record = new Record();
+				record.type = buf.get();
+				record.connection = buf.getInt();
+				record.nanos = buf.getLong();
+				if( DATA == record.type ) {
+					fill(4);
+					record.bytes = new byte[buf.getInt()];
+					int offset = 0;
+					while( offset < record.bytes.length ) {
+						fill(1);
+						int len = Math.min(buf.remaining(), record.bytes.length - offset);
+						buf.get(record.bytes, offset, len);
+						offset += len;
+					}
+				}
+				return record;
+			} catch( EOFException ex ) {
+				return null;
+			}
+		}
+
+		private void fill(int len) throws IOException {
+			if( buf.remaining() >= len ) {
+				return;
+			}
+			buf.compact();
+			while( buf.position() < len ) {
+				if( 0 > ch.read(buf) ) {
+					throw new EOFException();
+				}
+			}
+			buf.flip();
+		}
+
+		@Override
+		public void close() throws IOException {
+			ch.close();
+		}
+	}
+
+	private FileChannel ch;
+	private long startNanos;
+	private long maxBytes;
+	private int chunkSize;
+	private ByteBuffer chunk;
+	private ArrayBlockingQueue<ByteBuffer> pendingQueue;
+	private ConcurrentLinkedQueue<ByteBuffer> freeQueue;
+	private Thread writerThread;
+	private volatile boolean closed;
+	private volatile long writtenBytes;
+	private int nextConnection;
+	private LongAdder droppedCnt;
+	// loop thread only. open connections that lost a record
+	private HashSet<Integer> truncatedSet;
+
+	public TrafficCapture(Path path) throws IOException {
+		this(path, Long.MAX_VALUE, 64 * 1024, 64);
+	}
+	// maxBytes : the file stops growing at about this size
+	public TrafficCapture(Path path, long maxBytes, int chunkSize, int maxPendingChunks) throws IOException {
+		this.ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.startNanos = System.nanoTime();
+		this.maxBytes = maxBytes;
+		this.chunkSize = Math.max(1024, chunkSize);
+		this.pendingQueue = new ArrayBlockingQueue<>(Math.max(1, maxPendingChunks));
+		this.freeQueue = new ConcurrentLinkedQueue<>();
+		this.closed = false;
+		this.nextConnection = 0;
+		this.droppedCnt = new LongAdder();
+		this.truncatedSet = new HashSet<>();
+		ByteBuffer head = ByteBuffer.allocate(MAGIC.length + 8);
+		head.put(MAGIC).putLong(System.currentTimeMillis()).flip();
+		while( head.hasRemaining() ) {
+			ch.write(head);
+		}
+		this.writtenBytes = head.capacity();
+		this.chunk = ByteBuffer.allocate(this.chunkSize);
+		this.writerThread = new Thread(this::writeChunks, "traffic-capture");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	// records left out because the writer fell behind or the file was full
+	public long getDroppedCount() {
+		return droppedCnt.sum();
+	}
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	// loop thread. returns the connection number for data and close
+	int open() {
+		int connection = nextConnection++;
+		append(OPEN, connection, null, 0, 0);
+		return connection;
+	}
+	void data(int connection, byte[] src, int offset, int len) {
+		append(DATA, connection, src, offset, len);
+	}
+	void close(int connection) {
+		append(truncatedSet.remove(connection) ? TRUNCATED : CLOSE, connection, null, 0, 0);
+	}
+	void switched(int connection) {
+		append(truncatedSet.remove(connection) ? TRUNCATED : SWITCH, connection, null, 0, 0);
+	}
+
+	private void append(byte type, int connection, byte[] src, int offset, int len) {
+		if( closed ) {
+			return;
+		}
+		int size = RECORD_HEADER_SIZE + (DATA == type ? 4 + len : 0);
+		if( chunk.remaining() < size && !handOff(size) ) {
+			droppedCnt.increment();
+			if( DATA == type ) {
+				truncatedSet.add(connection);
+			}
+			return;
+		}
+		chunk.put(type).putInt(connection).putLong(System.nanoTime() - startNanos);
+		if( DATA == type ) {
+			chunk.putInt(len).put(src, offset, len);
+		}
+	}
+
+	// queues the full chunk and takes an empty one that fits size. false when the record has to be dropped
+	private boolean handOff(int size) {
+		if( writtenBytes + chunkSize * (long)pendingQueue.size() > maxBytes ) {
+			return false;
+		}
+		if( 0 < chunk.position() ) {
+			chunk.flip();
+			if( !pendingQueue.offer(chunk) ) {
+				chunk.compact();
+				return chunk.remaining() >= size;
+			}
+			ByteBuffer free = freeQueue.poll();
+			chunk = null == free ? ByteBuffer.allocate(chunkSize) : free;
+		}
+		if( chunk.capacity() < size ) {
+			// one fragment bigger than a chunk
+			chunk = ByteBuffer.allocate(size);
+		}
+		return true;
+	}
+
+	private void writeChunks() {
+		try {
+			while( true ) {
+				ByteBuffer buf = pendingQueue.take();
+				if( 0 == buf.capacity() ) {
+					return;
+				}
+				writeOut(buf);
+			}
+		} catch( InterruptedException ignore ) {
+		} catch( IOException ex ) {
+			Logger.getLogger("http").warn("traffic capture stopped : " + ex);
+			closed = true;
+		}
+	}
+
+	private void writeOut(ByteBuffer buf) throws IOException {
+		int len = buf.remaining();
+		while( buf.hasRemaining() ) {
+			ch.write(buf);
+		}
+		writtenBytes += len;
+		buf.clear();
+		if( buf.capacity() == chunkSize ) {
+			freeQueue.add(buf);
+		}
+	}
+
+	// call after the server has stopped, or from its loop thread. writes what is buffered and closes the file
+	@Override
+	public void close() throws IOException {
+		if( !ch.isOpen() ) {
+			return;
+		}
+		boolean failed = closed;
+		closed = true;
+		try {
+			if( writerThread.isAlive() ) {
+				pendingQueue.put(ByteBuffer.allocate(0));
+				writerThread.join();
+			}
+		} catch( InterruptedException ex ) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if( !failed && 0 < chunk.position() ) {
+				chunk.flip();
+				writeOut(chunk);
+			}
+		} finally {
+			ch.close();
+		}
+	}
+}
@@ -0,0 +1,862 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+// non-blocking http/1.1 client for ReverseProxyHttpProcessor. one selector thread owns every upstream connection and exchange.
+// with a budget, connection buffers and queued request body bytes are charged as UPSTREAM
+class UpstreamClient {
+	private static final int LINE_BUFFER_SIZE = 16*1024;
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	static class Backend {
+		final InetSocketAddress address;
+		final AtomicInteger inFlightCnt;
+		final AtomicInteger idleCnt;
+		// skipped by the balancer until then, after a failed connect
+		volatile long downUntilMillis;
+		// upstream thread only. most recently used first
+		final ArrayDeque<Connection> idleQueue;
+
+		Backend(InetSocketAddress address) {
+			this.address = address;
+			this.inFlightCnt = new AtomicInteger(0);
+			this.idleCnt = new AtomicInteger(0);
+			this.downUntilMillis = 0;
+			this.idleQueue = new ArrayDeque<>();
+		}
+	}
+
+	private enum Phase {
+		STATUS_LINE, HEADER, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, BODY_UNTIL_CLOSE, DONE
+	}
+
+	private List<Backend> backendList;
+	private Selector selector;
+	private ConcurrentLinkedQueue<Runnable> taskQueue;
+	private HashSet<Exchange> activeSet;
+	private volatile boolean running;
+	private Thread thread;
+
+	int maxIdlePerBackend;
+	long idleTimeoutMillis;
+	long connectTimeoutMillis;
+	long responseTimeoutMillis;
+	long failureBackoffMillis;
+	int maxQueuedBodyBytes;
+	volatile MemoryBudget budget;
+
+	UpstreamClient(List<Backend> backendList) throws IOException {
+		this.backendList = backendList;
+		this.selector = Selector.open();
+		this.taskQueue = new ConcurrentLinkedQueue<>();
+		this.activeSet = new HashSet<>();
+		this.running = true;
+		this.maxIdlePerBackend = 32;
+		this.idleTimeoutMillis = 30000;
+		this.connectTimeoutMillis = 3000;
+		this.responseTimeoutMillis = 30000;
+		this.failureBackoffMillis = 2000;
+		this.maxQueuedBodyBytes = 64*1024;
+		this.budget = null;
+		this.thread = new Thread(this::run, "proxy-upstream");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	// runs the task on the upstream thread
+	void execute(Runnable task) {
+		taskQueue.add(task);
+		selector.wakeup();
+	}
+
+	// head is the serialized request line and headers. the body, if any, is written to exchange.body
+	Exchange start(Backend backend, byte[] head, int contentLength, boolean headRequest) {
+		final Exchange ex = new Exchange(backend, head, 0 < contentLength, headRequest);
+		ex.response.whenComplete((res, err) -> {
+			if( err instanceof CancellationException ) {
+				// the client went away while waiting
+				execute(() -> abort(ex));
+			}
+		});
+		execute(() -> begin(ex));
+		return ex;
+	}
+
+	private void run() {
+		long lastCheckMillis = System.currentTimeMillis();
+		try {
+			while( running ) {
+				selector.select(250);
+				Runnable task;
+				while( null != (task = taskQueue.poll()) ) {
+					try {
+						task.run();
+					} catch( Exception ex ) {
+						Logger.getLogger("http").error(ex, ex);
+					}
+				}
+				Iterator<SelectionKey> keyIt = selector.selectedKeys().iterator();
+				while( keyIt.hasNext() ) {
+					SelectionKey key = keyIt.next();
+					keyIt.remove();
+					Connection conn = (Connection)key.attachment();
+					try {
+						conn.process(key);
+					} catch( Exception ex ) {
+						conn.fail(ex);
+					}
+				}
+				long now = System.currentTimeMillis();
+				if( 250 <= now - lastCheckMillis ) {
+					checkTimeouts(now);
+					lastCheckMillis = now;
+				}
+			}
+		} catch( IOException ex ) {
+			Logger.getLogger("http").fatal(ex, ex);
+		} finally {
+			for( Exchange ex : new ArrayList<>(activeSet) ) {
+				failExchange(ex, new HttpException(HttpResponse.Status.BAD_GATEWAY, "proxy is shut down"));
+			}
+			for( SelectionKey key : selector.keys() ) {
+				((Connection)key.attachment()).close();
+			}
+			try {
+				selector.close();
+			} catch( IOException ignore ) {}
+		}
+	}
+
+	private void begin(Exchange ex) {
+		if( ex.finished ) {
+			return;
+		}
+		activeSet.add(ex);
+		try {
+			Connection conn = ex.retried ? null : pollIdle(ex.backend);
+			if( null == conn ) {
+				conn = connect(ex.backend);
+			}
+			conn.assign(ex);
+		} catch( IOException e ) {
+			if( null == ex.conn ) {
+				ex.backend.downUntilMillis = System.currentTimeMillis() + failureBackoffMillis;
+			}
+			failExchange(ex, e);
+		}
+	}
+
+	private Connection pollIdle(Backend backend) {
+		Connection conn;
+		while( null != (conn = backend.idleQueue.pollFirst()) ) {
+			backend.idleCnt.decrementAndGet();
+			conn.idle = false;
+			if( conn.ch.isOpen() ) {
+				return conn;
+			}
+		}
+		return null;
+	}
+
+	private Connection connect(Backend backend) throws IOException {
+		SocketChannel ch = SocketChannel.open();
+		Connection conn = null;
+		try {
+			ch.configureBlocking(false);
+			ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			boolean connected = ch.connect(backend.address);
+			conn = new Connection(backend, ch, connected);
+			conn.key = ch.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, conn);
+			return conn;
+		} catch( IOException ex ) {
+			if( null != conn ) {
+				conn.close();
+			} else {
+				ch.close();
+			}
+			throw ex;
+		}
+	}
+
+	// the client side is done with the exchange. aborts it unless it has finished
+	void release(Exchange ex) {
+		execute(() -> abort(ex));
+	}
+
+	private void abort(Exchange ex) {
+		Connection conn = ex.conn;
+		if( null != conn && conn.exchange == ex ) {
+			conn.exchange = null;
+			conn.close();
+		}
+		failExchange(ex, new CancellationException());
+	}
+
+	private void failExchange(Exchange ex, Exception cause) {
+		if( ex.finished ) {
+			return;
+		}
+		ex.finished = true;
+		activeSet.remove(ex);
+		ex.backend.inFlightCnt.decrementAndGet();
+		if( null != ex.body ) {
+			ex.body.discard();
+		}
+		if( !ex.response.isDone() ) {
+			Logger.getLogger("http").info("PROXY: " + ex.backend.address + "\t" + cause);
+			if( cause instanceof HttpException ) {
+				ex.response.completeExceptionally(cause);
+			} else {
+				ex.response.completeExceptionally(new HttpException(HttpResponse.Status.BAD_GATEWAY, "upstream " + ex.backend.address + ": " + cause));
+			}
+		} else if( null != ex.responseBody ) {
+			ex.responseBody.abort();
+		}
+	}
+
+	private void checkTimeouts(long now) {
+		for( Exchange ex : new ArrayList<>(activeSet) ) {
+			Connection conn = ex.conn;
+			if( null != conn && !conn.connected && connectTimeoutMillis < now - conn.connectStartMillis ) {
+				ex.backend.downUntilMillis = now + failureBackoffMillis;
+				conn.fail(new HttpException(HttpResponse.Status.BAD_GATEWAY, "connect timeout: " + ex.backend.address));
+			} else if( !ex.response.isDone() && responseTimeoutMillis < now - ex.startMillis ) {
+				if( null != conn && conn.exchange == ex ) {
+					conn.exchange = null;
+					conn.close();
+				}
+				failExchange(ex, new HttpException(HttpResponse.Status.GATEWAY_TIMEOUT, "response timeout: " + ex.backend.address));
+			} else if( null != ex.responseBody && ex.responseBody.isClosed() ) {
+				// client went away while the upstream was paused
+				abort(ex);
+			}
+		}
+		for( Backend backend : backendList ) {
+			Iterator<Connection> it = backend.idleQueue.descendingIterator();
+			while( it.hasNext() ) {
+				Connection conn = it.next();
+				if( idleTimeoutMillis >= now - conn.idleSinceMillis ) {
+					break;
+				}
+				it.remove();
+				backend.idleCnt.decrementAndGet();
+				conn.idle = false;
+				conn.close();
+			}
+		}
+	}
+
+	class Exchange {
+		final Backend backend;
+		final ByteBuffer head;
+		final RequestBody body;
+		final boolean headRequest;
+		final CompletableFuture<HttpResponse> response;
+		final long startMillis;
+		// upstream thread only
+		Connection conn;
+		StreamingBody responseBody;
+		boolean retried;
+		boolean finished;
+
+		Exchange(Backend backend, byte[] head, boolean hasBody, boolean headRequest) {
+			this.backend = backend;
+			this.head = ByteBuffer.wrap(head);
+			this.body = hasBody ? new RequestBody(this) : null;
+			this.headRequest = headRequest;
+			this.response = new CompletableFuture<>();
+			this.startMillis = System.currentTimeMillis();
+			this.conn = null;
+			this.responseBody = null;
+			this.retried = false;
+			this.finished = false;
+		}
+
+		// only requests without a body are sent again after a stale keep-alive connection
+		boolean canRetry() {
+			return !retried && null == body && !response.isDone();
+		}
+	}
+
+	// request body bytes from the server thread, queued until the upstream connection takes them
+	class RequestBody implements NotifyingWritableChannel {
+		private final Exchange exchange;
+		private final MemoryBudget budget;
+		private final ArrayDeque<ByteBuffer> queue;
+		private long queuedBytes;
+		private boolean finished;
+		private boolean discarding;
+		private boolean pumpScheduled;
+		private Runnable readyListener;
+		private boolean readyListenerArmed;
+
+		RequestBody(Exchange exchange) {
+			this.exchange = exchange;
+			this.budget = UpstreamClient.this.budget;
+			this.queue = new ArrayDeque<>();
+			this.queuedBytes = 0;
+			this.finished = false;
+			this.discarding = false;
+			this.pumpScheduled = false;
+			this.readyListener = null;
+			this.readyListenerArmed = false;
+		}
+
+		@Override
+		public synchronized void setReadyListener(Runnable listener) {
+			this.readyListener = listener;
+		}
+		@Override
+		public synchronized boolean isOpen() {
+			return !finished;
+		}
+		// takes what fits under maxQueuedBodyBytes and the budget. once full it returns 0 if a ready listener is set;
+		// a caller that can't wait gets a 503 instead of growing the queue
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int len;
+			synchronized(this) {
+				if( discarding ) {
+					// upstream already answered or failed. swallow the rest so the client can get the response
+					len = src.remaining();
+					src.position(src.limit());
+					return len;
+				}
+				len = (int)Math.min(src.remaining(), Math.max(0, maxQueuedBodyBytes - queuedBytes));
+				if( 0 < len && null != budget && !budget.tryReserve(MemoryBudget.Category.UPSTREAM, len) ) {
+					if( queue.isEmpty() ) {
+						// nothing queued would free the budget by draining
+						throw new IOException(new HttpException(HttpResponse.Status.SERVICE_UNAVAILABLE, "memory budget is used up"));
+					}
+					len = 0;
+				}
+				if( 0 == len ) {
+					if( null == readyListener ) {
+						throw new IOException(new HttpException(HttpResponse.Status.SERVICE_UNAVAILABLE, "upstream is not taking the request body"));
+					}
+					readyListenerArmed = true;
+					return 0;
+				}
+				ByteBuffer copy = ByteBuffer.allocate(len);
+				int orgLimit = src.limit();
+				src.limit(src.position() + len);
+				copy.put(src);
+				src.limit(orgLimit);
+				copy.flip();
+				queue.add(copy);
+				queuedBytes += len;
+			}
+			schedulePump();
+			return len;
+		}
+		@Override
+		public void close() throws IOException {
+			synchronized(this) {
+				finished = true;
+			}
+			schedulePump();
+		}
+
+		// upstream thread
+		ByteBuffer take() {
+			Runnable listener = null;
+			ByteBuffer buf;
+			synchronized(this) {
+				buf = queue.poll();
+				if( null != buf ) {
+					queuedBytes -= buf.remaining();
+					if( null != budget ) {
+						budget.release(MemoryBudget.Category.UPSTREAM, buf.remaining());
+					}
+				}
+				if( readyListenerArmed && queuedBytes <= maxQueuedBodyBytes/2 ) {
+					readyListenerArmed = false;
+					listener = readyListener;
+				}
+			}
+			if( null != listener ) {
+				listener.run();
+			}
+			return buf;
+		}
+		synchronized boolean hasData() {
+			return !queue.isEmpty();
+		}
+		synchronized boolean isFinished() {
+			return finished && queue.isEmpty();
+		}
+		void discard() {
+			Runnable listener = null;
+			synchronized(this) {
+				discarding = true;
+				if( null != budget && 0 < queuedBytes ) {
+					budget.release(MemoryBudget.Category.UPSTREAM, queuedBytes);
+				}
+				queue.clear();
+				queuedBytes = 0;
+				if( readyListenerArmed ) {
+					readyListenerArmed = false;
+					listener = readyListener;
+				}
+			}
+			if( null != listener ) {
+				listener.run();
+			}
+		}
+
+		private void schedulePump() {
+			synchronized(this) {
+				if( pumpScheduled ) {
+					return;
+				}
+				pumpScheduled = true;
+			}
+			execute(() -> {
+				synchronized(this) {
+					pumpScheduled = false;
+				}
+				Connection conn = exchange.conn;
+				if( null != conn && conn.exchange == exchange && conn.connected ) {
+					try {
+						conn.writeRequest();
+						conn.updateInterest();
+					} catch( Exception ex ) {
+						conn.fail(ex);
+					}
+				}
+			});
+		}
+	}
+
+	class Connection {
+		final Backend backend;
+		final SocketChannel ch;
+		final MemoryBudget budget;
+		SelectionKey key;
+		boolean connected;
+		boolean closed;
+		long connectStartMillis;
+		long idleSinceMillis;
+		boolean idle;
+		boolean reused;
+
+		Exchange exchange;
+		ByteBuffer writeBuf;
+		boolean requestDone;
+
+		final HttpRequestParser.LineByteBuffer lines;
+		final byte[] readBuf;
+		Phase phase;
+		String version;
+		int statusCode;
+		String statusString;
+		LinkedHashMap<String, List<String>> headerMap;
+		long remaining;
+		boolean keepAlive;
+		boolean responseStarted;
+		boolean paused;
+
+		Connection(Backend backend, SocketChannel ch, boolean connected) {
+			this.backend = backend;
+			this.ch = ch;
+			this.budget = UpstreamClient.this.budget;
+			this.key = null;
+			this.connected = connected;
+			this.closed = false;
+			this.connectStartMillis = System.currentTimeMillis();
+			this.idleSinceMillis = 0;
+			this.idle = false;
+			this.reused = false;
+			this.exchange = null;
+			this.lines = new HttpRequestParser.LineByteBuffer(LINE_BUFFER_SIZE);
+			this.readBuf = new byte[READ_BUFFER_SIZE];
+			if( null != budget ) {
+				budget.reserve(MemoryBudget.Category.UPSTREAM, LINE_BUFFER_SIZE + READ_BUFFER_SIZE);
+			}
+		}
+
+		void assign(Exchange ex) throws IOException {
+			exchange = ex;
+			ex.conn = this;
+			writeBuf = ex.head.duplicate();
+			requestDone = false;
+			phase = Phase.STATUS_LINE;
+			headerMap = new LinkedHashMap<>();
+			remaining = 0;
+			keepAlive = false;
+			responseStarted = false;
+			paused = false;
+			if( connected ) {
+				writeRequest();
+			}
+			updateInterest();
+		}
+
+		void process(SelectionKey key) throws IOException {
+			if( key.isConnectable() ) {
+				try {
+					if( !ch.finishConnect() ) {
+						return;
+					}
+				} catch( IOException ex ) {
+					backend.downUntilMillis = System.currentTimeMillis() + failureBackoffMillis;
+					throw ex;
+				}
+				connected = true;
+			}
+			if( null == exchange ) {
+				// idle connection became readable : closed by the upstream, or it sent something unexpected
+				if( idle ) {
+					backend.idleQueue.remove(this);
+					backend.idleCnt.decrementAndGet();
+					idle = false;
+				}
+				close();
+				return;
+			}
+			if( key.isValid() && (key.isWritable() || key.isConnectable()) ) {
+				writeRequest();
+			}
+			if( null != exchange && key.isValid() && key.isReadable() ) {
+				readResponse();
+			}
+			updateInterest();
+		}
+
+		void updateInterest() {
+			if( !key.isValid() ) {
+				return;
+			}
+			int ops = 0;
+			if( null == exchange ) {
+				ops = SelectionKey.OP_READ;
+			} else if( !connected ) {
+				ops = SelectionKey.OP_CONNECT;
+			} else {
+				if( !paused ) {
+					ops |= SelectionKey.OP_READ;
+				}
+				if( !requestDone && (null != writeBuf || (null != exchange.body && exchange.body.hasData())) ) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+			}
+			key.interestOps(ops);
+		}
+
+		void writeRequest() throws IOException {
+			while( !requestDone ) {
+				if( null == writeBuf ) {
+					if( null == exchange.body ) {
+						requestDone = true;
+						return;
+					}
+					writeBuf = exchange.body.take();
+					if( null == writeBuf ) {
+						requestDone = exchange.body.isFinished();
+						return;
+					}
+				}
+				ch.write(writeBuf);
+				if( writeBuf.hasRemaining() ) {
+					return;
+				}
+				writeBuf = null;
+			}
+		}
+
+		private void readResponse() throws IOException {
+			int room = Math.min(readBuf.length, lines.available());
+			if( 0 >= room ) {
+				throw new IOException("upstream response header too large");
+			}
+			int readLen = ch.read(ByteBuffer.wrap(readBuf, 0, room));
+			if( 0 > readLen ) {
+				if( Phase.BODY_UNTIL_CLOSE == phase ) {
+					phase = Phase.DONE;
+					parse();
+				} else {
+					throw new IOException("upstream closed the connection");
+				}
+				return;
+			}
+			if( 0 < readLen ) {
+				responseStarted = true;
+				lines.addBytes(readBuf, 0, readLen);
+				parse();
+			}
+		}
+
+		void resume(Exchange ex) {
+			if( exchange != ex || !paused ) {
+				return;
+			}
+			paused = false;
+			try {
+				parse();
+				if( null != exchange ) {
+					updateInterest();
+				}
+			} catch( Exception e ) {
+				fail(e);
+			}
+		}
+
+		private void parse() throws IOException {
+			String line;
+			while( null != exchange && !paused ) {
+				switch( phase ) {
+				case STATUS_LINE :
+					if( null == (line = lines.getLine()) ) {
+						return;
+					}
+					parseStatusLine(line);
+					phase = Phase.HEADER;
+					break;
+				case HEADER :
+					if( null == (line = lines.getLine()) ) {
+						return;
+					}
+					if( line.isEmpty() ) {
+						headersDone();
+					} else {
+						parseHeader(line);
+					}
+					break;
+				case BODY :
+				case CHUNK_DATA :
+				case BODY_UNTIL_CLOSE :
+					if( Phase.BODY_UNTIL_CLOSE != phase && 0 >= remaining ) {
+						phase = Phase.BODY == phase ? Phase.DONE : Phase.CHUNK_END;
+						break;
+					}
+					ByteBuffer piece = lines.asReadOnlyByteBuffer(Phase.BODY_UNTIL_CLOSE == phase ? Integer.MAX_VALUE : (int)Math.min(remaining, Integer.MAX_VALUE));
+					if( !piece.hasRemaining() ) {
+						return;
+					}
+					remaining -= piece.remaining();
+					publish(piece);
+					break;
+				case CHUNK_SIZE :
+					if( null == (line = lines.getLine()) ) {
+						return;
+					}
+					int extIdx = line.indexOf(';');
+					try {
+						remaining = Long.parseLong((0 <= extIdx ? line.substring(0, extIdx) : line).trim(), 16);
+					} catch( NumberFormatException ex ) {
+						throw new IOException("bad chunk size from upstream: " + line);
+					}
+					phase = 0 == remaining ? Phase.TRAILER : Phase.CHUNK_DATA;
+					break;
+				case CHUNK_END :
+					if( null == (line = lines.getLine()) ) {
+						return;
+					}
+					if( !line.isEmpty() ) {
+						throw new IOException("bad chunk from upstream");
+					}
+					phase = Phase.CHUNK_SIZE;
+					break;
+				case TRAILER :
+					// trailers are dropped
+					if( null == (line = lines.getLine()) ) {
+						return;
+					}
+					if( line.isEmpty() ) {
+						phase = Phase.DONE;
+					}
+					break;
+				case DONE :
+					finishExchange();
+					return;
+				}
+			}
+		}
+
+		private void parseStatusLine(String line) throws IOException {
+			int firstSpaceIdx = line.indexOf(' ');
+			if( 0 >= firstSpaceIdx || !line.startsWith("HTTP/1.") ) {
+				throw new IOException("bad status line from upstream: " + line);
+			}
+			int secondSpaceIdx = line.indexOf(' ', firstSpaceIdx+1);
+			String code = 0 > secondSpaceIdx ? line.substring(firstSpaceIdx+1) : line.substring(firstSpaceIdx+1, secondSpaceIdx);
+			try {
+				statusCode = Integer.parseInt(code.trim());
+			} catch( NumberFormatException ex ) {
+				throw new IOException("bad status line from upstream: " + line);
+			}
+			version = line.substring(0, firstSpaceIdx);
+			statusString = 0 > secondSpaceIdx ? "" : line.substring(secondSpaceIdx+1).trim();
+		}
+
+		private void parseHeader(String line) throws IOException {
+			int idx = line.indexOf(':');
+			if( 0 >= idx ) {
+				throw new IOException("bad header from upstream: " + line);
+			}
+			String name = line.substring(0, idx).trim();
+			String value = line.substring(idx+1).trim();
+			List<String> valueList = headerMap.get(name);
+			if( null == valueList ) {
+				valueList = new ArrayList<>();
+				headerMap.put(name, valueList);
+			}
+			valueList.add(value);
+		}
+
+		private void headersDone() throws IOException {
+			if( 100 <= statusCode && 200 > statusCode ) {
+				if( 101 == statusCode ) {
+					throw new IOException("upstream switched protocols");
+				}
+				// interim response such as 100 Continue
+				headerMap.clear();
+				phase = Phase.STATUS_LINE;
+				return;
+			}
+			List<String> connectionList = ReverseProxyHttpProcessor.getHeaderIgnoreCase(headerMap, "Connection");
+			if( "HTTP/1.0".equals(version) ) {
+				keepAlive = ReverseProxyHttpProcessor.containsToken(connectionList, "keep-alive");
+			} else {
+				keepAlive = !ReverseProxyHttpProcessor.containsToken(connectionList, "close");
+			}
+
+			long contentLength = -1;
+			List<String> contentLengthList = ReverseProxyHttpProcessor.getHeaderIgnoreCase(headerMap, "Content-Length");
+			if( 204 == statusCode || 304 == statusCode || exchange.headRequest ) {
+				contentLength = 0;
+				phase = Phase.DONE;
+			} else if( ReverseProxyHttpProcessor.containsToken(ReverseProxyHttpProcessor.getHeaderIgnoreCase(headerMap, "Transfer-Encoding"), "chunked") ) {
+				phase = Phase.CHUNK_SIZE;
+			} else if( null != contentLengthList ) {
+				try {
+					contentLength = Long.parseLong(contentLengthList.get(0).trim());
+				} catch( NumberFormatException ex ) {
+					throw new IOException("bad content-length from upstream: " + contentLengthList);
+				}
+				remaining = contentLength;
+				phase = Phase.BODY;
+			} else {
+				keepAlive = false;
+				phase = Phase.BODY_UNTIL_CLOSE;
+			}
+
+			HttpResponseData data = new HttpResponseData();
+			data.statusCode = String.valueOf(statusCode);
+			data.statusString = statusString;
+			data.keepAlive = true;
+			data.upgrade = null;
+			data.header = HeaderList.fromMap(ReverseProxyHttpProcessor.filterHeaders(headerMap));
+			if( 0 == contentLength ) {
+				data.contentLength = 0;
+				data.bodySupplier = () -> new HttpResponse.ReadableByteArrayChannel(new byte[0]);
+			} else {
+				final Exchange ex = exchange;
+				ex.responseBody = new StreamingBody();
+				ex.responseBody.setWritabilityListener(() -> execute(() -> resume(ex)));
+				data.contentLength = contentLength;
+				data.bodySupplier = ex.responseBody;
+			}
+			if( !exchange.response.complete(new HttpResponse(data)) ) {
+				abort(exchange);
+			}
+		}
+
+		private void publish(ByteBuffer piece) {
+			ByteBuffer copy = ByteBuffer.allocate(piece.remaining());
+			copy.put(piece);
+			copy.flip();
+			StreamingBody responseBody = exchange.responseBody;
+			// reading stops at the high watermark, so a refused piece means the client is gone
+			if( !responseBody.publish(copy) ) {
+				abort(exchange);
+			} else if( !responseBody.isWritable() ) {
+				// the client is slower than the upstream. stop reading until the body drains
+				paused = true;
+			}
+		}
+
+		private void finishExchange() {
+			Exchange ex = exchange;
+			exchange = null;
+			ex.finished = true;
+			activeSet.remove(ex);
+			backend.inFlightCnt.decrementAndGet();
+			if( null != ex.responseBody ) {
+				ex.responseBody.finish();
+			}
+			boolean reusable = keepAlive && requestDone && 0 == lines.length() && running;
+			if( !requestDone ) {
+				// answered before the whole body was sent
+				ex.body.discard();
+			}
+			if( reusable && backend.idleCnt.get() < maxIdlePerBackend ) {
+				reused = true;
+				idle = true;
+				idleSinceMillis = System.currentTimeMillis();
+				backend.idleQueue.addFirst(this);
+				backend.idleCnt.incrementAndGet();
+				updateInterest();
+			} else {
+				close();
+			}
+		}
+
+		void fail(Exception cause) {
+			Exchange ex = exchange;
+			exchange = null;
+			close();
+			if( null == ex ) {
+				return;
+			}
+			if( reused && !responseStarted && ex.canRetry() ) {
+				// stale keep-alive connection. try once more on a fresh one
+				ex.retried = true;
+				ex.conn = null;
+				begin(ex);
+			} else {
+				failExchange(ex, cause);
+			}
+		}
+
+		void close() {
+			if( closed ) {
+				return;
+			}
+			closed = true;
+			if( null != budget ) {
+				budget.release(MemoryBudget.Category.UPSTREAM, LINE_BUFFER_SIZE + READ_BUFFER_SIZE);
+			}
+			if( null != key ) {
+				key.cancel();
+			}
+			try {
+				ch.close();
+			} catch( IOException ignore ) {}
+		}
+	}
+}
@@ -0,0 +1,500 @@
+package huck.simplehttp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+// RFC 6455 connection. frames are parsed and written on the selector thread, send methods may be called from any thread
+public final class WebSocket {
+	// callbacks run on the selector thread and must not block. buffers passed to callbacks are only valid during the call
+	public static interface Listener {
+		public default void onOpen(WebSocket ws) {}
+		public default void onText(WebSocket ws, String text) {}
+		public default void onBinary(WebSocket ws, ByteBuffer data) {}
+		public default void onPong(WebSocket ws, ByteBuffer data) {}
+		public default void onClose(WebSocket ws, int code, String reason) {}
+	}
+
+	public static final int CLOSE_NORMAL = 1000;
+	public static final int CLOSE_GOING_AWAY = 1001;
+	public static final int CLOSE_PROTOCOL_ERROR = 1002;
+	public static final int CLOSE_UNSUPPORTED_DATA = 1003;
+	public static final int CLOSE_NO_STATUS = 1005;
+	public static final int CLOSE_ABNORMAL = 1006;
+	public static final int CLOSE_INVALID_PAYLOAD = 1007;
+	public static final int CLOSE_POLICY_VIOLATION = 1008;
+	public static final int CLOSE_MESSAGE_TOO_BIG = 1009;
+	public static final int CLOSE_INTERNAL_ERROR = 1011;
+
+	static final int OP_CONTINUATION = 0x0;
+	static final int OP_TEXT = 0x1;
+	static final int OP_BINARY = 0x2;
+	static final int OP_CLOSE = 0x8;
+	static final int OP_PING = 0x9;
+	static final int OP_PONG = 0xA;
+
+	private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+	public static HttpResponse accept(HttpRequest req, Listener listener) throws HttpException {
+		return accept(req, listener, 1024*1024, 4*1024*1024);
+	}
+	public static HttpResponse accept(final HttpRequest req, final Listener listener, final int maxMessageSize, final long maxQueuedBytes) throws HttpException {
+		if( !req.isWebSocketUpgrade() ) {
+			throw new HttpException(HttpResponse.Status.BAD_REQUEST, "Bad Request : not a websocket upgrade");
+		}
+		String key = req.getHeaderIgnoreCase("Sec-WebSocket-Key");
+		HttpResponse res = new HttpResponse(HttpResponse.Status.SWITCHING_PROTOCOLS);
+		res.setHeader("Upgrade", "websocket");
+		res.setHeader("Sec-WebSocket-Accept", acceptKey(key));
+		res.setUpgrade(writeRequester -> {
+			WebSocket ws = new WebSocket(req, listener, maxMessageSize, maxQueuedBytes, writeRequester);
+			ws.callListener(() -> listener.onOpen(ws));
+			return ws.handler;
+		});
+		return res;
+	}
+
+	static String acceptKey(String key) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+			return Base64.getEncoder().encodeToString(digest);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	// server frames are never masked, so one encoded frame can be shared by many connections
+	static ByteBuffer encodeFrame(int opcode, byte[] payload, int offset, int len) {
+		int headerLen = 125 >= len ? 2 : (0xFFFF >= len ? 4 : 10);
+		ByteBuffer frame = ByteBuffer.allocate(headerLen + len);
+		frame.put((byte)(0x80 | opcode));
+		if( 2 == headerLen ) {
+			frame.put((byte)len);
+		} else if( 4 == headerLen ) {
+			frame.put((byte)126);
+			frame.putShort((short)len);
+		} else {
+			frame.put((byte)127);
+			frame.putLong(len);
+		}
+		frame.put(payload, offset, len);
+		frame.flip();
+		return frame;
+	}
+
+	private HttpRequest request;
+	private Listener listener;
+	private int maxMessageSize;
+	private long maxQueuedBytes;
+	private Runnable writeRequester;
+	private ProtocolHandler handler;
+	private volatile Object attachment;
+
+	// selector thread only
+	private ByteBuffer readBuf;
+	private int fragmentOpcode;
+	private byte[] fragmentBuf;
+	private int fragmentLen;
+	private boolean closeReceived;
+	private boolean closeNotified;
+
+	private final Object sendLock;
+	private final ArrayDeque<ByteBuffer> outQueue;
+	private final AtomicLong queuedBytes;
+	private final AtomicBoolean writeRequested;
+	private volatile boolean closeSent;
+	// set under sendLock
+	private volatile MemoryBudget.Account account;
+
+	private WebSocket(HttpRequest request, Listener listener, int maxMessageSize, long maxQueuedBytes, Runnable writeRequester) {
+		this.request = request;
+		this.listener = listener;
+		this.maxMessageSize = maxMessageSize;
+		this.maxQueuedBytes = maxQueuedBytes;
+		this.writeRequester = writeRequester;
+		this.attachment = null;
+
+		this.readBuf = ByteBuffer.allocate(Math.min(8192, maxMessageSize + 14));
+		this.fragmentOpcode = -1;
+		this.fragmentBuf = null;
+		this.fragmentLen = 0;
+		this.closeReceived = false;
+		this.closeNotified = false;
+
+		this.sendLock = new Object();
+		this.outQueue = new ArrayDeque<>();
+		this.queuedBytes = new AtomicLong(0);
+		this.writeRequested = new AtomicBoolean(false);
+		this.closeSent = false;
+		this.account = null;
+
+		this.handler = new FrameHandler();
+	}
+
+	public HttpRequest getRequest() {
+		return request;
+	}
+	public Object getAttachment() {
+		return attachment;
+	}
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+	public boolean isOpen() {
+		return !closeSent;
+	}
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	// send methods return false when the connection is closing or too many bytes are queued
+	public boolean sendText(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		return sendFrame(encodeFrame(OP_TEXT, bytes, 0, bytes.length));
+	}
+	public boolean sendBinary(byte[] data) {
+		return sendFrame(encodeFrame(OP_BINARY, data, 0, data.length));
+	}
+	public boolean ping(byte[] data) {
+		if( 125 < data.length ) {
+			throw new IllegalArgumentException("control frame payload > 125");
+		}
+		return sendFrame(encodeFrame(OP_PING, data, 0, data.length));
+	}
+	public void close(int code, String reason) {
+		byte[] reasonBytes = null == reason ? new byte[0] : reason.getBytes(StandardCharsets.UTF_8);
+		int reasonLen = Math.min(123, reasonBytes.length);
+		byte[] payload = new byte[2 + reasonLen];
+		payload[0] = (byte)(code >> 8);
+		payload[1] = (byte)code;
+		System.arraycopy(reasonBytes, 0, payload, 2, reasonLen);
+		synchronized(sendLock) {
+			if( closeSent ) {
+				return;
+			}
+			enqueue(encodeFrame(OP_CLOSE, payload, 0, payload.length));
+			closeSent = true;
+		}
+		requestWrite();
+	}
+
+	boolean sendFrame(ByteBuffer frame) {
+		synchronized(sendLock) {
+			if( closeSent || queuedBytes.get() > maxQueuedBytes ) {
+				return false;
+			}
+			enqueue(frame);
+		}
+		requestWrite();
+		return true;
+	}
+
+	private void enqueue(ByteBuffer frame) {
+		outQueue.add(frame);
+		queuedBytes.addAndGet(frame.remaining());
+		if( null != account ) {
+			account.reserve(MemoryBudget.Category.SEND_QUEUE, frame.remaining());
+		}
+	}
+
+	private void requestWrite() {
+		if( writeRequested.compareAndSet(false, true) ) {
+			writeRequester.run();
+		}
+	}
+
+	private void callListener(Runnable callback) {
+		try {
+			callback.run();
+		} catch( Exception ex ) {
+			Logger.getLogger("http").error("websocket listener failed", ex);
+			close(CLOSE_INTERNAL_ERROR, "");
+		}
+	}
+
+	private void notifyClose(int code, String reason) {
+		if( closeNotified ) {
+			return;
+		}
+		closeNotified = true;
+		callListener(() -> listener.onClose(this, code, reason));
+	}
+
+	// protocol error : nothing more is read, the connection closes after the close frame is written
+	private void fail(int code, String reason) {
+		closeReceived = true;
+		close(code, reason);
+		notifyClose(code, reason);
+	}
+
+	private class FrameHandler implements ProtocolHandler {
+		@Override
+		public int processRead(ByteChannel sockCh) throws IOException {
+			int readLen = sockCh.read(readBuf);
+			if( 0 > readLen ) {
+				notifyClose(CLOSE_ABNORMAL, "");
+				return -1;
+			}
+			readBuf.flip();
+			while( !closeReceived && parseFrame() ) {}
+			if( closeReceived ) {
+				// nothing is read after a close frame
+				readBuf.clear();
+			} else {
+				readBuf.compact();
+			}
+			return getInterestOps();
+		}
+
+		@Override
+		public int processWrite(ByteChannel sockCh) throws IOException {
+			writeRequested.set(false);
+			while( true ) {
+				ByteBuffer frame;
+				synchronized(sendLock) {
+					frame = outQueue.peek();
+				}
+				if( null == frame ) {
+					break;
+				}
+				int written = sockCh.write(frame);
+				queuedBytes.addAndGet(-written);
+				MemoryBudget.Account account = WebSocket.this.account;
+				if( null != account && 0 < written ) {
+					account.release(MemoryBudget.Category.SEND_QUEUE, written);
+				}
+				if( frame.hasRemaining() ) {
+					return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+				}
+				synchronized(sendLock) {
+					outQueue.poll();
+				}
+			}
+			return getInterestOps();
+		}
+
+		@Override
+		public void close() {
+			notifyClose(CLOSE_ABNORMAL, "");
+			synchronized(sendLock) {
+				closeSent = true;
+				outQueue.clear();
+				long dropped = queuedBytes.getAndSet(0);
+				if( null != account && 0 < dropped ) {
+					account.release(MemoryBudget.Category.SEND_QUEUE, dropped);
+				}
+			}
+		}
+
+		// the read buffer and the frames queued from now on are charged to the connection
+		@Override
+		public void setMemoryAccount(MemoryBudget.Account newAccount) {
+			synchronized(sendLock) {
+				account = newAccount;
+				if( null != newAccount ) {
+					newAccount.reserve(MemoryBudget.Category.READ_BUFFER, readBuf.capacity());
+					if( 0 < queuedBytes.get() ) {
+						newAccount.reserve(MemoryBudget.Category.SEND_QUEUE, queuedBytes.get());
+					}
+				}
+			}
+		}
+
+		private int getInterestOps() {
+			boolean pending;
+			synchronized(sendLock) {
+				pending = !outQueue.isEmpty();
+			}
+			if( pending ) {
+				return SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+			}
+			if( closeSent && closeReceived ) {
+				// close handshake done. the server closes the TCP connection first
+				return -1;
+			}
+			return SelectionKey.OP_READ;
+		}
+	}
+
+	private boolean parseFrame() {
+		int start = readBuf.position();
+		int available = readBuf.remaining();
+		if( 2 > available ) {
+			return false;
+		}
+		int b0 = readBuf.get(start) & 0xFF;
+		int b1 = readBuf.get(start+1) & 0xFF;
+		boolean fin = 0 != (b0 & 0x80);
+		int opcode = b0 & 0x0F;
+		boolean masked = 0 != (b1 & 0x80);
+		long payloadLen = b1 & 0x7F;
+		int headerLen = 2;
+		if( 126 == payloadLen ) {
+			if( 4 > available ) return false;
+			payloadLen = readBuf.getShort(start+2) & 0xFFFF;
+			headerLen = 4;
+		} else if( 127 == payloadLen ) {
+			if( 10 > available ) return false;
+			payloadLen = readBuf.getLong(start+2);
+			headerLen = 10;
+		}
+		headerLen += 4;
+
+		if( 0 != (b0 & 0x70) || !masked || 0 > payloadLen ) {
+			fail(CLOSE_PROTOCOL_ERROR, "");
+			return false;
+		}
+		if( OP_CLOSE <= opcode && (!fin || 125 < payloadLen) ) {
+			fail(CLOSE_PROTOCOL_ERROR, "");
+			return false;
+		}
+		if( maxMessageSize < payloadLen ) {
+			fail(CLOSE_MESSAGE_TOO_BIG, "");
+			return false;
+		}
+		int frameLen = headerLen + (int)payloadLen;
+		if( available < frameLen ) {
+			if( readBuf.capacity() < frameLen ) {
+				ByteBuffer larger = ByteBuffer.allocate(frameLen);
+				larger.put(readBuf);
+				larger.flip();
+				readBuf = larger;
+			}
+			return false;
+		}
+
+		// unmask in place
+		byte[] arr = readBuf.array();
+		int maskPos = readBuf.arrayOffset() + start + headerLen - 4;
+		int payloadPos = maskPos + 4;
+		for( int i = 0; i < payloadLen; i++ ) {
+			arr[payloadPos+i] ^= arr[maskPos + (i & 3)];
+		}
+		ByteBuffer payload = ByteBuffer.wrap(arr, payloadPos, (int)payloadLen).slice();
+		readBuf.position(start + frameLen);
+		handleFrame(fin, opcode, payload);
+		return true;
+	}
+
+	private void handleFrame(boolean fin, int opcode, ByteBuffer payload) {
+		if( closeSent && OP_CLOSE != opcode ) {
+			// waiting for the peer's close frame
+			return;
+		}
+		switch( opcode ) {
+		case OP_PING : {
+			byte[] data = new byte[payload.remaining()];
+			payload.get(data);
+			sendFrame(encodeFrame(OP_PONG, data, 0, data.length));
+			break;
+		}
+		case OP_PONG :
+			callListener(() -> listener.onPong(this, payload));
+			break;
+		case OP_CLOSE : {
+			closeReceived = true;
+			if( 1 == payload.remaining() ) {
+				fail(CLOSE_PROTOCOL_ERROR, "");
+				break;
+			}
+			int code = CLOSE_NO_STATUS;
+			String reason = "";
+			if( 2 <= payload.remaining() ) {
+				code = payload.getShort() & 0xFFFF;
+				String decoded = decodeUtf8(payload);
+				if( null == decoded ) {
+					fail(CLOSE_INVALID_PAYLOAD, "");
+					break;
+				}
+				reason = decoded;
+			}
+			close(CLOSE_NO_STATUS == code ? CLOSE_NORMAL : code, "");
+			notifyClose(code, reason);
+			break;
+		}
+		case OP_TEXT :
+		case OP_BINARY :
+			if( -1 != fragmentOpcode ) {
+				fail(CLOSE_PROTOCOL_ERROR, "");
+			} else if( fin ) {
+				deliver(opcode, payload);
+			} else {
+				fragmentOpcode = opcode;
+				fragmentLen = 0;
+				appendFragment(payload);
+			}
+			break;
+		case OP_CONTINUATION :
+			if( -1 == fragmentOpcode ) {
+				fail(CLOSE_PROTOCOL_ERROR, "");
+			} else if( appendFragment(payload) && fin ) {
+				int messageOpcode = fragmentOpcode;
+				ByteBuffer message = ByteBuffer.wrap(fragmentBuf, 0, fragmentLen);
+				fragmentOpcode = -1;
+				fragmentBuf = null;
+				fragmentLen = 0;
+				deliver(messageOpcode, message);
+			}
+			break;
+		default :
+			fail(CLOSE_PROTOCOL_ERROR, "");
+		}
+	}
+
+	private boolean appendFragment(ByteBuffer payload) {
+		int len = payload.remaining();
+		if( maxMessageSize - fragmentLen < len ) {
+			fail(CLOSE_MESSAGE_TOO_BIG, "");
+			return false;
+		}
+		if( null == fragmentBuf || fragmentBuf.length - fragmentLen < len ) {
+			byte[] larger = new byte[Math.min(maxMessageSize, Math.max(fragmentLen + len, 2 * (fragmentLen + len)))];
+			if( null != fragmentBuf ) {
+				System.arraycopy(fragmentBuf, 0, larger, 0, fragmentLen);
+			}
+			fragmentBuf = larger;
+		}
+		payload.get(fragmentBuf, fragmentLen, len);
+		fragmentLen += len;
+		return true;
+	}
+
+	private void deliver(int opcode, ByteBuffer message) {
+		if( OP_TEXT == opcode ) {
+			String text = decodeUtf8(message);
+			if( null == text ) {
+				fail(CLOSE_INVALID_PAYLOAD, "");
+			} else {
+				callListener(() -> listener.onText(this, text));
+			}
+		} else {
+			callListener(() -> listener.onBinary(this, message));
+		}
+	}
+
+	private static String decodeUtf8(ByteBuffer bytes) {
+		try {
+			CharBuffer chars = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(bytes);
+			return chars.toString();
+		} catch( CharacterCodingException ex ) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package huck.simplehttp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// broadcast target. a message is encoded once and the frame bytes are shared by all members
+public class WebSocketGroup {
+	private Set<WebSocket> members;
+	
+	public WebSocketGroup() {
+		this.members = ConcurrentHashMap.newKeySet();
+	}
+	
+	public void add(WebSocket ws) {
+		members.add(ws);
+	}
+	public void remove(WebSocket ws) {
+		members.remove(ws);
+	}
+	public int size() {
+		return members.size();
+	}
+	
+	// returns the number of members the message was queued for. closed members are removed
+	public int broadcastText(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		return broadcast(WebSocket.encodeFrame(WebSocket.OP_TEXT, bytes, 0, bytes.length));
+	}
+	public int broadcastBinary(byte[] data) {
+		return broadcast(WebSocket.encodeFrame(WebSocket.OP_BINARY, data, 0, data.length));
+	}
+	
+	private int broadcast(ByteBuffer frame) {
+		ByteBuffer shared = frame.asReadOnlyBuffer();
+		int sent = 0;
+		Iterator<WebSocket> it = members.iterator();
+		while( it.hasNext() ) {
+			WebSocket ws = it.next();
+			if( !ws.isOpen() ) {
+				it.remove();
+			} else if( ws.sendFrame(shared.duplicate()) ) {
+				sent++;
+			}
+		}
+		return sent;
+	}
+}